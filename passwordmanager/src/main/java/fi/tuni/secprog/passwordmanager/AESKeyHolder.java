@@ -2,29 +2,111 @@ package fi.tuni.secprog.passwordmanager;
 
 import javax.crypto.spec.SecretKeySpec;
 
+import java.util.Map;
+
 /*
  * This class is used to store and retrieve the AES key used for encryption and decryption.
+ * Besides the current data key of the vault, it keeps the older ones that some entries
+ * are still encrypted with until they are re-encrypted in the background, and the key
+ * of the blind index of the passwords.
  */
 public class AESKeyHolder {
-    private static SecretKeySpec aesKey;
+    private static volatile SecretKeySpec aesKey;
+    private static volatile int keyVersion = 0;
+    private static volatile Map<Integer, SecretKeySpec> olderKeys = Map.of();
+    private static volatile SecretKeySpec indexKey;
 
     public static void storeKey(SecretKeySpec key) {
+        storeKeys(key, 0, Map.of());
+    }
+
+    /*
+     * A function to store the current data key with its version and the older keys
+     * still in use by their versions.
+     */
+    public static synchronized void storeKeys(SecretKeySpec key, int version, Map<Integer, SecretKeySpec> older) {
         aesKey = key;
+        keyVersion = version;
+        olderKeys = Map.copyOf(older);
     }
 
     public static SecretKeySpec getKey() {
         return aesKey;
     }
-    
-    public static void clearKey() {
-        if (aesKey != null) {
-            byte[] keyData = aesKey.getEncoded();
+
+    public static int getKeyVersion() {
+        return keyVersion;
+    }
+
+    /*
+     * A function to get the current data key together with its version, so that
+     * ciphertext can be recorded with the version of the key that encrypted it.
+     */
+    public static synchronized DataKey getDataKey() {
+        return new DataKey(aesKey, keyVersion);
+    }
+
+    /*
+     * A function to get the data key of the given version, the current one or an older
+     * one, or null if it is not loaded.
+     */
+    public static synchronized SecretKeySpec getKey(int version) {
+        return version == keyVersion ? aesKey : olderKeys.get(version);
+    }
+
+    public static Map<Integer, SecretKeySpec> getOlderKeys() {
+        return olderKeys;
+    }
+
+    public static void storeIndexKey(SecretKeySpec key) {
+        indexKey = key;
+    }
+
+    public static SecretKeySpec getIndexKey() {
+        return indexKey;
+    }
+
+    public static synchronized void clearKey() {
+        clear(aesKey);
+        for (SecretKeySpec key : olderKeys.values()) {
+            clear(key);
+        }
+        clear(indexKey);
+        aesKey = null;
+        indexKey = null;
+        keyVersion = 0;
+        olderKeys = Map.of();
+    }
+
+    /*
+     * A data key of the vault with its version.
+     */
+    public static class DataKey {
+        private final SecretKeySpec key;
+        private final int version;
+
+        DataKey(SecretKeySpec key, int version) {
+            this.key = key;
+            this.version = version;
+        }
+
+        public SecretKeySpec getKey() {
+            return key;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+    }
+
+    private static void clear(SecretKeySpec key) {
+        if (key != null) {
+            byte[] keyData = key.getEncoded();
             if (keyData != null) {
                 for (int i = 0; i < keyData.length; i++) {
                     keyData[i] = 0;
                 }
             }
         }
-        aesKey = null;
     }
 }
@@ -1,45 +1,65 @@
 package fi.tuni.secprog.passwordmanager;
 
-import javax.crypto.Cipher;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import java.security.SecureRandom;
-import java.security.spec.KeySpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
 import java.util.Base64;
 
 /*
  * This class provides methods for AES encryption and decryption.
  * It uses AES-256 encryption with GCM mode for authenticated encryption.
+ * Data is encrypted with the current data key of the vault, and an entry is
+ * decrypted with the key of the version recorded with it.
  */
 public class AESUtil {
     private static final int KEY_LENGTH = 256; // AES-256 key
-    private static final int ITERATIONS = 100_000;
-    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
 
-    private static final int GCM_IV_LENGTH = 12;
-    private static final int GCM_TAG_LENGTH = 128;
+    // Shared engine, so that bulk operations do not pay the cipher setup cost per field
+    private static final CryptoEngine ENGINE = new CryptoEngine();
+
+    public static CryptoEngine getEngine() {
+        return ENGINE;
+    }
 
     /*
      * Generate a random salt for the user's encryption key.
      */
     public static String generateSalt() {
         byte[] salt = new byte[16];
-        new SecureRandom().nextBytes(salt);
+        ENGINE.nextBytes(salt);
         return Base64.getEncoder().encodeToString(salt);
     }
 
     /*
-     * Derive an encryption key from the user's master password and salt.
+     * Derive an encryption key from the user's master password and salt
+     * with the legacy parameters.
      */
     public static SecretKeySpec deriveKey(char[] masterPassword, String salt) throws Exception {
+        return deriveKey(masterPassword, salt, KdfParameters.LEGACY);
+    }
+
+    /*
+     * Derive an encryption key from the user's master password and salt
+     * with the user's key derivation parameters.
+     */
+    public static SecretKeySpec deriveKey(char[] masterPassword, String salt,
+                                          KdfParameters parameters) throws Exception {
+        byte[] keyBytes = deriveKeyMaterial(masterPassword, salt, parameters);
+        SecretKeySpec key = new SecretKeySpec(keyBytes, "AES");
+        Arrays.fill(keyBytes, (byte) 0);
+        return key;
+    }
+
+    /*
+     * Derive the raw key bytes from the user's master password and salt.
+     * The caller owns the returned array and should clear it after use.
+     */
+    public static byte[] deriveKeyMaterial(char[] masterPassword, String salt,
+                                           KdfParameters parameters) throws Exception {
         byte[] saltBytes = Base64.getDecoder().decode(salt);
-        KeySpec spec = new PBEKeySpec(masterPassword, saltBytes, ITERATIONS, KEY_LENGTH);
-        SecretKeyFactory factory = SecretKeyFactory.getInstance(ALGORITHM);
-        byte[] keyBytes = factory.generateSecret(spec).getEncoded();
-        return new SecretKeySpec(keyBytes, "AES");
+        return KeyDerivation.derive(parameters, masterPassword, saltBytes, KEY_LENGTH);
     }
 
     /*
@@ -47,23 +67,7 @@ public class AESUtil {
      * The method uses a random IV for each encryption to ensure uniqueness.
      */
     public static String encrypt(String data) throws Exception {
-        SecretKeySpec key = AESKeyHolder.getKey();
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-
-        // Generate a random Initialization Vector (IV) for this encryption operation
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        new SecureRandom().nextBytes(iv);
-
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, gcmSpec);
-        
-        // Perform the actual encryption of the input data
-        byte[] encryptedData = cipher.doFinal(data.getBytes());
-
-        // Combine IV + ciphertext
-        byte[] ivAndEncrypted = new byte[iv.length + encryptedData.length];
-        System.arraycopy(iv, 0, ivAndEncrypted, 0, iv.length);
-        System.arraycopy(encryptedData, 0, ivAndEncrypted, iv.length, encryptedData.length);
+        byte[] ivAndEncrypted = ENGINE.encrypt(AESKeyHolder.getKey(), data.getBytes());
 
         // Encode the combined IV and ciphertext as a Base64 string for safe storage/transmission
         return Base64.getEncoder().encodeToString(ivAndEncrypted);
@@ -75,22 +79,50 @@ public class AESUtil {
      * The input must contain both the IV and the ciphertext.
      */
     public static String decrypt(String encryptedData) throws Exception {
-        SecretKeySpec key = AESKeyHolder.getKey();
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-
-        // Decode the Base64-encoded input to get the raw bytes (IV + ciphertext)
         byte[] ivAndEncrypted = Base64.getDecoder().decode(encryptedData);
+        return new String(decrypt(ivAndEncrypted));
+    }
 
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        byte[] ciphertext = new byte[ivAndEncrypted.length - GCM_IV_LENGTH];
-        System.arraycopy(ivAndEncrypted, 0, iv, 0, GCM_IV_LENGTH);
-        System.arraycopy(ivAndEncrypted, GCM_IV_LENGTH, ciphertext, 0, ciphertext.length);
+    /*
+     * Encrypt binary data with provided AES key.
+     * Returns the IV followed by the ciphertext without any text encoding.
+     */
+    public static byte[] encrypt(byte[] data) throws Exception {
+        return ENGINE.encrypt(AESKeyHolder.getKey(), data);
+    }
 
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, gcmSpec);
+    /*
+     * Decrypt binary IV + ciphertext with provided AES key.
+     */
+    public static byte[] decrypt(byte[] ivAndEncrypted) throws Exception {
+        return ENGINE.decrypt(AESKeyHolder.getKey(), ivAndEncrypted);
+    }
 
-        // Perform the actual decryption and return the plaintext as a string
-        byte[] decryptedData = cipher.doFinal(ciphertext);
-        return new String(decryptedData);
+    /*
+     * Decrypt binary IV + ciphertext with the data key of the given version,
+     * i.e. the key_version recorded with the row.
+     */
+    public static byte[] decrypt(byte[] ivAndEncrypted, int keyVersion) throws Exception {
+        SecretKeySpec key = AESKeyHolder.getKey(keyVersion);
+        if (key == null) throw new InvalidKeyException("The data key of version " + keyVersion + " is not loaded");
+        return ENGINE.decrypt(key, ivAndEncrypted);
+    }
+
+    /*
+     * Encrypt the remaining bytes of the plaintext buffer with provided AES key,
+     * writing IV + ciphertext into the caller-provided buffer.
+     * Returns the number of bytes written.
+     */
+    public static int encrypt(ByteBuffer plaintext, ByteBuffer out) throws Exception {
+        return ENGINE.encrypt(AESKeyHolder.getKey(), plaintext, out);
+    }
+
+    /*
+     * Decrypt the remaining IV + ciphertext bytes of the input buffer with provided AES key,
+     * writing the plaintext into the caller-provided buffer.
+     * Returns the number of bytes written.
+     */
+    public static int decrypt(ByteBuffer ivAndEncrypted, ByteBuffer out) throws Exception {
+        return ENGINE.decrypt(AESKeyHolder.getKey(), ivAndEncrypted, out);
     }
 }
@@ -1,20 +1,35 @@
 package fi.tuni.secprog.passwordmanager;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import javafx.animation.PauseTransition;
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.PasswordField;
+import javafx.scene.control.ProgressIndicator;
+import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 
@@ -32,10 +47,17 @@ public class App extends Application {
     private Stage stage;
     private VBox root;
     private Button logOutBtn;
+    private LoginSession loginSession;
     private final String backgroundColor = "#22162B";
 
     @Override
     public void start(Stage stage) {
+        // An abandoned login must not keep its derived key around
+        if (loginSession != null) {
+            loginSession.discard();
+            loginSession = null;
+        }
+
         // Create the root layout
         this.root = new VBox(20);
         root.setPadding(new Insets(20, 30, 20, 30));
@@ -56,10 +78,10 @@ public class App extends Application {
 
         logOutBtn = createSmallBtn("Log Out");
         logOutBtn.setPrefSize(80, 35);
-        logOutBtn.setOnAction(e -> {
+        logOutBtn.setOnAction(e -> runInBackground(() -> {
             UserAuthentication.logoutUser();
-            start(stage);
-        });
+            return null;
+        }, done -> start(stage), null, "Logging out failed."));
 
         // Set layout
         root.getChildren().addAll(keyIcon, logInBtn, signInBtn);
@@ -80,36 +102,38 @@ public class App extends Application {
         Button loginBtn = createBigBtn("Log In");
         loginBtn.setOnAction(e -> {
             errorField.setText("");
-            // Check if account is locked
-            if (UserAuthentication.isAccountLocked(usernameField.getText())) {
-                errorField.setText("Account is locked. Try again later.");
-            } else {
-                // Try to authenticate the user with username and password
-                boolean isSuccesful = UserAuthentication.authenticateUser(usernameField.getText(),
-                                                                        passField.getText().toCharArray());
-                if (isSuccesful)  {
-                    // Check user with TOTP
-                    TextField TOTPcodeField = new TextField();
-                    Button verifyBtn = createBigBtn("Verify");
-                    TOTPcodeBox.getChildren().addAll(createLabeledField("TOTP code:", TOTPcodeField),
-                                                    verifyBtn);
-                    root.getChildren().remove(loginBtn);
-                    verifyBtn.setOnAction(ev ->  {
-                        boolean isTOTPValid = UserAuthentication.verifyTOTP(usernameField.getText(),
-                                                                passField.getText().toCharArray(),
-                                                                TOTPcodeField.getText());
-                        if (isTOTPValid) {
-                            mainScene();
-                        } else {
-                            errorField.setText("Invalid TOTP code. Please try again.");
-                            TOTPcodeBox.getChildren().clear();
-                            root.getChildren().add(loginBtn);
-                        }
-                    });
-                } else {
+            String username = usernameField.getText();
+            char[] password = passField.getText().toCharArray();
+            // Load the user and check the password in the background
+            runInBackground(() -> {
+                LoginSession session = LoginSession.start(username);
+                if (session != null) session.checkPassword(password);
+                // Clear the password from memory after use
+                java.util.Arrays.fill(password, ' ');
+                return session;
+            }, session -> {
+                if (session != null && session.isLocked()) {
+                    errorField.setText("Account is locked. Try again later.");
+                    return;
+                }
+                if (session == null || !session.isPasswordVerified()) {
                     errorField.setText("Invalid login credentials. Please try again.");
+                    return;
                 }
-            }
+                // Check user with TOTP, the key is derived meanwhile
+                loginSession = session;
+                TextField TOTPcodeField = new TextField();
+                Button verifyBtn = createBigBtn("Verify");
+                TOTPcodeBox.getChildren().addAll(createLabeledField("TOTP code:", TOTPcodeField),
+                                                verifyBtn);
+                root.getChildren().remove(loginBtn);
+                verifyBtn.setOnAction(ev -> {
+                    char[] TOTPpassword = passField.getText().toCharArray();
+                    String code = TOTPcodeField.getText();
+                    verifyTOTPCode(() -> session.verifyTOTP(TOTPpassword, code),
+                                   errorField, TOTPcodeBox, loginBtn);
+                });
+            }, errorField, "Logging in failed.");
         });
 
         // Set layout
@@ -155,14 +179,20 @@ public class App extends Application {
             } else if (!passField.getText().equals(passRepetitionField.getText())) {
                 errorField.setText("Passwords don't match.");
             } else {
-                // Register the user
-                Image QRcode = UserAuthentication.registerUser(usernameField.getText(),
-                                                            password.toCharArray());
-                if (QRcode != null) {
-                    // Show the QR code and input field for TOTP code to the user
+                // Register the user in the background
+                String username = usernameField.getText();
+                runInBackground(() -> UserAuthentication.registerAndLogin(username, password.toCharArray()),
+                                registration -> {
+                    if (registration == null) {
+                        errorField.setText("User registration failed.");
+                        return;
+                    }
+                    // Show the QR code and input field for TOTP code to the user, the key is derived meanwhile
+                    LoginSession session = registration.getSession();
+                    loginSession = session;
                     TextField TOTPcodeField = new TextField();
                     Button verifyBtn = createBigBtn("Verify");
-                    ImageView QRcodeIV = new ImageView(QRcode);
+                    ImageView QRcodeIV = new ImageView(registration.getQRcode());
                     QRcodeIV.setFitWidth(150);
                     QRcodeIV.setFitHeight(150);
                     TOTPcodeBox.getChildren().addAll(QRcodeIV,
@@ -171,19 +201,13 @@ public class App extends Application {
                     root.getChildren().remove(signinBtn);
 
                     // Verify the TOTP code
-                    verifyBtn.setOnAction(ev ->  {
-                        boolean isTOTPValid = UserAuthentication.verifyTOTP(usernameField.getText(),
-                                                                passField.getText().toCharArray(),
-                                                                TOTPcodeField.getText());
-                        if (isTOTPValid) {
-                            mainScene();
-                        } else {
-                            errorField.setText("Invalid TOTP code. Please try again.");
-                            TOTPcodeBox.getChildren().clear();
-                            root.getChildren().add(signinBtn);
-                        }
+                    verifyBtn.setOnAction(ev -> {
+                        char[] TOTPpassword = passField.getText().toCharArray();
+                        String code = TOTPcodeField.getText();
+                        verifyTOTPCode(() -> session.verifyTOTP(TOTPpassword, code),
+                                       errorField, TOTPcodeBox, signinBtn);
                     });
-                } else errorField.setText("User registration failed.");
+                }, errorField, "User registration failed.");
             }
         });
 
@@ -204,79 +228,104 @@ public class App extends Application {
     }
 
     /*
-     * Creates the main scene when logged in, where user can either view their keys
-     * or add a new key.
+     * Verifies the TOTP code in the background. On success the main scene is shown,
+     * otherwise the button that started the login is brought back.
+     */
+    private void verifyTOTPCode(Callable<Boolean> verification, Label errorField,
+                                VBox TOTPcodeBox, Button retryBtn) {
+        runInBackground(verification, isTOTPValid -> {
+            if (isTOTPValid) {
+                mainScene();
+            } else {
+                errorField.setText("Invalid TOTP code. Please try again.");
+                TOTPcodeBox.getChildren().clear();
+                root.getChildren().add(retryBtn);
+            }
+        }, errorField, "Verifying the TOTP code failed.");
+    }
+
+    /*
+     * Creates the main scene when logged in, where user can either view their keys,
+     * add a new key, import and back up keys, or change the master password.
      */
     private void mainScene() {
-        // Create buttons for keys and adding a key
+        // Create buttons for keys, adding a key and importing keys
         Button keysBtn = GUIElements.createBigBtn("My keys");
         Button addBtn = GUIElements.createBigBtn("+ Add key");
+        Button importBtn = GUIElements.createBigBtn("Import / backup");
+        Button changePassBtn = GUIElements.createBigBtn("Change password");
         keysBtn.setOnAction(e -> keysScene());
         addBtn.setOnAction(e -> addKeyScene());
+        importBtn.setOnAction(e -> importScene());
+        changePassBtn.setOnAction(e -> changePasswordScene());
 
         HBox mainTopBox = new HBox(20, logOutBtn);
         mainTopBox.setAlignment(Pos.TOP_RIGHT);
 
         root.getChildren().clear();
-        root.getChildren().addAll(mainTopBox, keysBtn, addBtn);
+        root.getChildren().addAll(mainTopBox, keysBtn, addBtn, importBtn, changePassBtn);
     }
 
     /*
      * Creates the scene where the credentials are shown.
      * Website name and username are shown, and the password can be
-     * copied to clipboard.
+     * copied to clipboard. The credentials are loaded in the background.
      */
     private void keysScene() {
-        // Create a list of keys and present them in a VBox with headers
-        VBox keysVBox = new VBox(5);
-        keysVBox.setPadding(new Insets(5, 5, 5, 5));
-        HBox headerBox = new HBox(10);
-        headerBox.setAlignment(Pos.CENTER);
-        Label websiteHeader = createHeaderLabel("Website");
-        Label usernameHeader = createHeaderLabel("Username");
-        Label passwordHeader = createHeaderLabel("Password");
-        Label errorField = createErrorLabel("");
-        headerBox.getChildren().addAll(websiteHeader, usernameHeader,
-                                       passwordHeader, createHeaderLabel(""));
-        keysVBox.getChildren().addAll(headerBox);
-
-        for (String website : ManageCredentials.getWebsites()) {
-            // Get the credentials for the website
-            List<String> credentials = ManageCredentials.getCredentials(website);
-            if (credentials == null) {
-                errorField.setText("Error in getting the credentials.");
-                continue;
-            }
-
-            // Create a button to copy the password to clipboard
-            Button copyPasswordBtn = createSmallBtn("Copy");
-            copyPasswordBtn.setOnAction(e -> {
-                StringSelection stringSelection = new StringSelection(credentials.get(1));
-                Toolkit.getDefaultToolkit().getSystemClipboard().setContents(stringSelection, null);
-
-                // Clear clipboard after 10 seconds
-                PauseTransition pause = new PauseTransition(Duration.seconds(10));
-                pause.setOnFinished(event -> {
-                    StringSelection empty = new StringSelection("");
-                    Toolkit.getDefaultToolkit().getSystemClipboard().setContents(empty, null);
-                });
-                pause.play();
-            });
+        runInBackground(() -> {
+            List<VaultEntry> entries = ManageCredentials.getAllCredentials();
+            // Build the search index while the credentials are loaded anyway
+            ManageCredentials.prepareSearch();
+            return entries;
+        }, this::showKeys, null, "Error in getting the credentials.");
+    }
 
-            // Create a button to edit the keys
-            Button editBtn = createSmallBtn("Edit");
-            editBtn.setOnAction(e -> editKeyScene(website));
+    private void showKeys(List<VaultEntry> entries) {
+        Label errorField = createErrorLabel("");
+        if (entries == null) {
+            errorField.setText("Error in getting the credentials.");
+            entries = List.of();
+        }
 
-            HBox infoBox = new HBox(30, createLabel(website),
-                                    createLabel(credentials.get(0)),
-                                    copyPasswordBtn,
-                                    editBtn);
-            infoBox.setAlignment(Pos.CENTER);
-            keysVBox.getChildren().addAll(infoBox);
+        // Present the keys in a table, which only lays out the visible rows
+        // The passwords stay encrypted until they are copied
+        TableView<VaultEntry> keysTable = createKeysTable(entry -> {
+            String password = entry.getPassword();
+            if (password == null) errorField.setText("Error in decrypting the password.");
+            else copyToClipboard(password);
+        }, entry -> editKeyScene(entry.getSiteName()));
+        ObservableList<VaultEntry> allEntries = FXCollections.observableArrayList(entries);
+        keysTable.setItems(allEntries);
+        VBox.setVgrow(keysTable, Priority.ALWAYS);
+
+        // Filter the table by website as the user types, best matches first
+        Map<String, VaultEntry> entriesBySite = new HashMap<>();
+        for (VaultEntry entry : entries) {
+            entriesBySite.put(entry.getSiteName(), entry);
         }
+        TextField searchField = new TextField();
+        searchField.setPromptText("Search websites");
+        searchField.textProperty().addListener((observable, oldQuery, query) -> {
+            if (query.isBlank()) {
+                keysTable.setItems(allEntries);
+                return;
+            }
+            List<String> sites = ManageCredentials.searchWebsites(query.trim(), 200);
+            if (sites == null) {
+                errorField.setText("Error in searching the websites.");
+                return;
+            }
+            ObservableList<VaultEntry> matches = FXCollections.observableArrayList();
+            for (String site : sites) {
+                VaultEntry entry = entriesBySite.get(site);
+                if (entry != null) matches.add(entry);
+            }
+            // Keep the ranking instead of the column sort
+            keysTable.getSortOrder().clear();
+            keysTable.setItems(matches);
+        });
 
         // Set layout
-        keysVBox.getChildren().add(errorField);
         Button returnBtn = GUIElements.createReturnBtn();
         returnBtn.setOnAction(e -> mainScene());
 
@@ -285,7 +334,23 @@ public class App extends Application {
         HBox keysTopBox = new HBox(20, returnBtn, spacer, logOutBtn);
         keysTopBox.setAlignment(Pos.TOP_LEFT);
         root.getChildren().clear();
-        root.getChildren().addAll(keysTopBox, keysVBox);
+        root.getChildren().addAll(keysTopBox, searchField, keysTable, errorField);
+    }
+
+    /*
+     * Copies the text to clipboard and clears the clipboard after 10 seconds.
+     */
+    private void copyToClipboard(String text) {
+        StringSelection stringSelection = new StringSelection(text);
+        Toolkit.getDefaultToolkit().getSystemClipboard().setContents(stringSelection, null);
+
+        // Clear clipboard after 10 seconds
+        PauseTransition pause = new PauseTransition(Duration.seconds(10));
+        pause.setOnFinished(event -> {
+            StringSelection empty = new StringSelection("");
+            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(empty, null);
+        });
+        pause.play();
     }
 
     /*
@@ -314,12 +379,11 @@ public class App extends Application {
             } else if (passwordStrength != null) {
                 errorField.setText(passwordStrength);
             } else {
-                // Add the key to the database
-                if (!ManageCredentials.storeKey(website, username, password)) {
-                    errorField.setText("Failed to add the key.");
-                } else {
-                    keysScene();
-                }
+                // Add the key to the database in the background
+                whenWritten(ManageCredentials.storeKeyAsync(website, username, password), isStored -> {
+                    if (isStored) keysScene();
+                    else errorField.setText("Failed to add the key.");
+                }, errorField, "Failed to add the key.");
             }
         });
 
@@ -342,18 +406,197 @@ public class App extends Application {
             addKeyBtn);
     }
 
+    /*
+     * Creates the scene where keys are imported from a CSV or JSON export of another
+     * password manager, and where the vault is backed up into an encrypted file and
+     * restored from it. These run in the background and show their progress.
+     */
+    private void importScene() {
+        Label errorField = createErrorLabel("");
+        Label resultField = createLabel("");
+        resultField.setWrapText(true);
+        CheckBox overwriteBox = new CheckBox("Overwrite keys of existing websites");
+
+        Button chooseBtn = createBigBtn("Choose file");
+        chooseBtn.setOnAction(e -> {
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Import keys");
+            fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("CSV or JSON export", "*.csv", "*.json"),
+                new FileChooser.ExtensionFilter("All files", "*.*"));
+            File file = fileChooser.showOpenDialog(stage);
+            if (file == null) return;
+
+            VaultImporter.DuplicatePolicy policy = overwriteBox.isSelected()
+                ? VaultImporter.DuplicatePolicy.OVERWRITE
+                : VaultImporter.DuplicatePolicy.SKIP;
+            errorField.setText("");
+            resultField.setText("");
+            runInBackground(progress -> VaultImporter.importFile(file.toPath(), policy, progress),
+                            result -> {
+                resultField.setText(result.toString());
+                if (result.getError() != null) errorField.setText(result.getError());
+            }, errorField, "Failed to import the keys.");
+        });
+
+        // The backup is encrypted with its own password
+        PasswordField backupPassField = new PasswordField();
+        Button backupBtn = createSmallBtn("Back up");
+        backupBtn.setOnAction(e -> {
+            if (backupPassField.getText().isEmpty()) {
+                errorField.setText("Please enter a backup password.");
+                return;
+            }
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Back up keys");
+            fileChooser.setInitialFileName("passwords.backup");
+            File file = fileChooser.showSaveDialog(stage);
+            if (file == null) return;
+
+            char[] backupPassword = backupPassField.getText().toCharArray();
+            errorField.setText("");
+            resultField.setText("");
+            runInBackground(() -> {
+                try {
+                    return VaultBackup.exportFile(file.toPath(), backupPassword);
+                } finally {
+                    Arrays.fill(backupPassword, '\0');
+                }
+            }, count -> {
+                if (count < 0) errorField.setText("Failed to back up the keys.");
+                else resultField.setText("Backed up " + count + " keys.");
+            }, errorField, "Failed to back up the keys.");
+        });
+
+        Button restoreBtn = createSmallBtn("Restore");
+        restoreBtn.setOnAction(e -> {
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Restore keys");
+            File file = fileChooser.showOpenDialog(stage);
+            if (file == null) return;
+
+            char[] backupPassword = backupPassField.getText().toCharArray();
+            VaultImporter.DuplicatePolicy policy = overwriteBox.isSelected()
+                ? VaultImporter.DuplicatePolicy.OVERWRITE
+                : VaultImporter.DuplicatePolicy.SKIP;
+            errorField.setText("");
+            resultField.setText("");
+            runInBackground(progress -> {
+                try {
+                    return VaultBackup.restoreFile(file.toPath(), backupPassword, policy, progress);
+                } finally {
+                    Arrays.fill(backupPassword, '\0');
+                }
+            }, result -> {
+                resultField.setText(result.toString());
+                if (result.getError() != null) errorField.setText(result.getError());
+            }, errorField, "Failed to restore the keys.");
+        });
+
+        // Set layout
+        Button returnBtn = GUIElements.createReturnBtn();
+        returnBtn.setOnAction(e -> mainScene());
+        Region spacer = new Region();
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        HBox importTopBox = new HBox(20, returnBtn, spacer, logOutBtn);
+        importTopBox.setAlignment(Pos.TOP_LEFT);
+        HBox backupBox = new HBox(10, backupBtn, restoreBtn);
+        backupBox.setAlignment(Pos.CENTER);
+
+        root.getChildren().clear();
+        root.getChildren().addAll(importTopBox, overwriteBox, chooseBtn,
+                                  createLabeledField("Backup password:", backupPassField), backupBox,
+                                  resultField, errorField);
+    }
+
+    /*
+     * Creates the scene where the master password is changed. The data keys of
+     * the vault are rewrapped with the new password in the background.
+     * A new data key can also be taken into use with the current password.
+     */
+    private void changePasswordScene() {
+        PasswordField currentPassField = new PasswordField();
+        PasswordField passField = new PasswordField();
+        PasswordField passRepetitionField = new PasswordField();
+        Label errorField = createErrorLabel("");
+
+        Button changeBtn = createBigBtn("Change");
+        changeBtn.setOnAction(e -> {
+            String password = passField.getText();
+            String passwordStrength = UserAuthentication.checkPasswordStrenth(password);
+            if (currentPassField.getText().isEmpty()) {
+                errorField.setText("Please fill in all fields.");
+            } else if (passwordStrength != null) {
+                errorField.setText(passwordStrength);
+            } else if (!password.equals(passRepetitionField.getText())) {
+                errorField.setText("Passwords don't match.");
+            } else {
+                char[] currentPassword = currentPassField.getText().toCharArray();
+                errorField.setText("");
+                runInBackground(() -> MasterPasswordChange.change(currentPassword, password.toCharArray()),
+                                isChanged -> {
+                    if (isChanged) {
+                        mainScene();
+                        root.getChildren().add(createErrorLabel("The master password was changed."));
+                    } else {
+                        errorField.setText("Wrong password or the change failed.");
+                    }
+                }, errorField, "Failed to change the password.");
+            }
+        });
+
+        Button rotateBtn = createBigBtn("Rotate vault key");
+        rotateBtn.setOnAction(e -> {
+            if (currentPassField.getText().isEmpty()) {
+                errorField.setText("Please fill in the current password.");
+                return;
+            }
+            char[] currentPassword = currentPassField.getText().toCharArray();
+            errorField.setText("");
+            runInBackground(() -> DataKeys.rotate(currentPassword), isRotated -> {
+                if (isRotated) {
+                    mainScene();
+                    root.getChildren().add(createErrorLabel("A new vault key was taken into use."));
+                } else {
+                    errorField.setText("Wrong password or the rotation failed.");
+                }
+            }, errorField, "Failed to rotate the vault key.");
+        });
+
+        // Set layout
+        Button returnBtn = GUIElements.createReturnBtn();
+        returnBtn.setOnAction(e -> mainScene());
+        Region spacer = new Region();
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        HBox changeTopBox = new HBox(20, returnBtn, spacer, logOutBtn);
+        changeTopBox.setAlignment(Pos.TOP_LEFT);
+
+        root.getChildren().clear();
+        root.getChildren().addAll(changeTopBox,
+            createLabeledField("Current password:", currentPassField),
+            createLabeledField("New password:", passField),
+            createLabeledField("Repeat new password:", passRepetitionField),
+            errorField,
+            changeBtn,
+            rotateBtn);
+    }
+
     /*
      * Creates the scene where a key can be edited.
+     * The credentials of the website are loaded in the background.
      */
     private void editKeyScene(String website) {
+        runInBackground(() -> ManageCredentials.getCredentials(website), credentials -> {
+            if (credentials == null) {
+                root.getChildren().add(createErrorLabel("Error in getting the credentials."));
+            } else {
+                showEditKey(website, credentials);
+            }
+        }, null, "Error in getting the credentials.");
+    }
+
+    private void showEditKey(String website, List<String> credentials) {
         Label errorField = createErrorLabel("");
-        // Get the credentials for the website
-        List<String> credentials = ManageCredentials.getCredentials(website);
-        // ERROR
-        if (credentials == null) {
-            errorField.setText("Error in getting the credentials.");
-            return;
-        }
 
         // Create text fields
         Label websiteField = createHeaderLabel(website);
@@ -380,12 +623,11 @@ public class App extends Application {
             } else if (passwordStrength != null) {
                 errorField.setText(passwordStrength);           
             } else {
-                // Update the credentials to the database
-                if (!ManageCredentials.updateKey(website, username, password)) {
-                    errorField.setText("Failed to update the key.");
-                } else {
-                    keysScene();
-                }
+                // Update the credentials to the database in the background
+                whenWritten(ManageCredentials.updateKeyAsync(website, username, password), isUpdated -> {
+                    if (isUpdated) keysScene();
+                    else errorField.setText("Failed to update the key.");
+                }, errorField, "Failed to update the key.");
             }
         });
 
@@ -402,9 +644,11 @@ public class App extends Application {
             Button yesBtn = createSmallBtn("Yes");
             yesBtn.setOnAction(event -> {
                 confirmStage.close();
-                // Delete the key from the database
-                if (!ManageCredentials.deleteKey(website)) errorField.setText("Failed to delete the key.");
-                else keysScene();
+                // Delete the key from the database in the background
+                whenWritten(ManageCredentials.deleteKeyAsync(website), isDeleted -> {
+                    if (isDeleted) keysScene();
+                    else errorField.setText("Failed to delete the key.");
+                }, errorField, "Failed to delete the key.");
             });
 
             HBox btnBox = new HBox(20, noBtn, yesBtn);
@@ -459,10 +703,103 @@ public class App extends Application {
         }
     }
 
+    /*
+     * Runs a service call in the background so that the application thread stays responsive.
+     * While the call runs the current scene is disabled and a progress indicator is shown.
+     * The call cannot be cancelled, since the service calls run to completion once started.
+     * On failure the error message is shown in the error field, or below the scene if
+     * there is no field.
+     */
+    private <T> void runInBackground(Callable<T> work, Consumer<T> onSuccess,
+                                     Label errorField, String errorMessage) {
+        Runnable finish = showBusy(createProgressIndicator(), null);
+        BackgroundTasks.run(work, result -> {
+            finish.run();
+            onSuccess.accept(result);
+        }, ex -> {
+            finish.run();
+            showError(errorField, errorMessage);
+        });
+    }
+
+    /*
+     * Runs work that reports its progress and stops when it is interrupted, e.g. an import,
+     * in the background. Its progress is shown with a cancel button.
+     */
+    private <T> void runInBackground(BackgroundTasks.Work<T> work, Consumer<T> onSuccess,
+                                     Label errorField, String errorMessage) {
+        ProgressIndicator indicator = createProgressIndicator();
+        Button cancelBtn = createSmallBtn("Cancel");
+        Runnable finish = showBusy(indicator, cancelBtn);
+        Task<T> task = BackgroundTasks.run(work, result -> {
+            finish.run();
+            onSuccess.accept(result);
+        }, ex -> {
+            finish.run();
+            showError(errorField, errorMessage);
+        });
+        indicator.progressProperty().bind(task.progressProperty());
+        cancelBtn.setOnAction(e -> {
+            task.cancel();
+            finish.run();
+        });
+    }
+
+    /*
+     * Waits for a credential change queued for the background writer without blocking
+     * a thread. The scene is disabled until the change has been committed, and then
+     * the callback is run on the application thread.
+     */
+    private void whenWritten(CompletableFuture<Boolean> write, Consumer<Boolean> onSuccess,
+                             Label errorField, String errorMessage) {
+        Runnable finish = showBusy(createProgressIndicator(), null);
+        write.whenComplete((result, ex) -> Platform.runLater(() -> {
+            finish.run();
+            if (ex == null) {
+                onSuccess.accept(result);
+            } else {
+                System.err.println("Error in writing the key: " + ex.getMessage());
+                showError(errorField, errorMessage);
+            }
+        }));
+    }
+
+    /*
+     * Disables the current scene and shows the progress indicator, with the cancel
+     * button if there is one. Returns the action that restores the scene.
+     */
+    private Runnable showBusy(ProgressIndicator indicator, Button cancelBtn) {
+        List<Node> content = List.copyOf(root.getChildren());
+        content.forEach(node -> node.setDisable(true));
+        HBox busyBox = cancelBtn != null ? new HBox(20, indicator, cancelBtn) : new HBox(20, indicator);
+        busyBox.setAlignment(Pos.CENTER);
+        root.getChildren().add(busyBox);
+        return () -> {
+            root.getChildren().remove(busyBox);
+            content.forEach(node -> node.setDisable(false));
+        };
+    }
+
+    private void showError(Label errorField, String errorMessage) {
+        if (errorField != null) errorField.setText(errorMessage);
+        else root.getChildren().add(createErrorLabel(errorMessage));
+    }
+
+    @Override
+    public void stop() {
+        // Write the queued credential changes and close the pooled database connections on exit
+        ManageCredentials.flushWrites();
+        DatabaseHelper.closePool();
+    }
 
     public static void main(String[] args) {
         // Initialize the database
         DatabaseHelper.initializeDatabase();
+        // Calibrate the key derivation in the background before the first login or sign in
+        BackgroundTasks.submit(KeyDerivation::getTargetParameters);
+        // Load the breached password filter and list before the first password check
+        BackgroundTasks.submit(BreachFilter::getDefault);
+        BackgroundTasks.submit(BreachCorpus::getDefault);
 
         launch();
     }
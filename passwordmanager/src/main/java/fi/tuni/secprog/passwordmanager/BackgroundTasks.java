@@ -0,0 +1,86 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import javafx.concurrent.Task;
+
+/*
+ * A class to run slow service calls (BCrypt, PBKDF2, database I/O) as JavaFX tasks
+ * off the application thread. Virtual threads are used when the runtime has them,
+ * otherwise a cached pool of daemon threads.
+ * The callbacks are run on the JavaFX application thread.
+ */
+public class BackgroundTasks {
+
+    private static final ExecutorService executor = createExecutor();
+
+    /*
+     * A unit of background work that can report its progress.
+     */
+    public interface Work<T> {
+        T call(ProgressListener progress) throws Exception;
+    }
+
+    /*
+     * Receives the progress of background work, done out of total.
+     */
+    public interface ProgressListener {
+        void update(long done, long total);
+    }
+
+    /*
+     * A function to run work in the background. Returns the task, which can be cancelled
+     * and whose progress can be shown. The callbacks are not run for a cancelled task.
+     */
+    public static <T> Task<T> run(Callable<T> work, Consumer<T> onSuccess, Consumer<Throwable> onFailure) {
+        return run(progress -> work.call(), onSuccess, onFailure);
+    }
+
+    /*
+     * A function to run work that reports its progress in the background.
+     */
+    public static <T> Task<T> run(Work<T> work, Consumer<T> onSuccess, Consumer<Throwable> onFailure) {
+        Task<T> task = new Task<>() {
+            @Override
+            protected T call() throws Exception {
+                return work.call(this::updateProgress);
+            }
+        };
+        task.setOnSucceeded(e -> onSuccess.accept(task.getValue()));
+        task.setOnFailed(e -> {
+            System.err.println("Error in background task: " + task.getException().getMessage());
+            onFailure.accept(task.getException());
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    /*
+     * A function to run work in the background outside of the JavaFX application,
+     * e.g. from a service class. Returns the future of the result.
+     */
+    public static <T> Future<T> submit(Callable<T> work) {
+        return executor.submit(work);
+    }
+
+    /*
+     * A function to create the executor, preferring virtual threads.
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(work -> {
+                Thread thread = new Thread(work, "background-task");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
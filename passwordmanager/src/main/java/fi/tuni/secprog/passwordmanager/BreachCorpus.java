@@ -0,0 +1,226 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/*
+ * A local list of breached passwords, checked without any network access.
+ * The list is a binary file of sorted SHA-1 hashes made by BreachCorpusTool:
+ *
+ *   "PMBREACH", int version, long count
+ *   long[65537]  index of the first hash of each 16-bit prefix, then count
+ *   count x 18 bytes  the hashes without their prefix, in ascending order
+ *
+ * The file is memory-mapped and never read onto the heap, so a corpus of several
+ * gigabytes costs no heap and the operating system caches the pages in use. A lookup
+ * takes the range of the prefix from the table and binary searches it, which is
+ * about 15 comparisons for a billion hashes. A BreachFilter, if there is one,
+ * is consulted first, so that most passwords do not touch the list at all.
+ */
+public class BreachCorpus {
+    static final byte[] MAGIC = "PMBREACH".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HASH_LENGTH = 20;
+    static final int PREFIX_LENGTH = 2;
+    static final int RECORD_LENGTH = HASH_LENGTH - PREFIX_LENGTH;
+    static final int PREFIXES = 1 << 16;
+    static final int HEADER_LENGTH = MAGIC.length + 4 + 8 + (PREFIXES + 1) * 8;
+
+    // A mapping is at most 2 GiB, so the records are mapped in segments of whole records
+    private static final int SEGMENT_RECORDS = Integer.MAX_VALUE / RECORD_LENGTH;
+    private static final String DEFAULT_FILE = "breached_passwords.bin";
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<byte[]> HASH = ThreadLocal.withInitial(() -> new byte[HASH_LENGTH]);
+
+    private static BreachCorpus defaultCorpus;
+    private static boolean defaultLoaded = false;
+
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final long count;
+
+    private BreachCorpus(MappedByteBuffer header, MappedByteBuffer[] segments, long count) {
+        this.header = header;
+        this.segments = segments;
+        this.count = count;
+    }
+
+    /*
+     * A function to open a corpus file. The file is checked to be complete,
+     * but the hashes are only read when they are looked up.
+     */
+    public static BreachCorpus open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_LENGTH) throw new IOException("The file is not a breached password list.");
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("The file is not a breached password list.");
+            if (header.getInt(MAGIC.length) != VERSION) {
+                throw new IOException("Unsupported version of the breached password list.");
+            }
+            long count = header.getLong(MAGIC.length + 4);
+            boolean valid = count >= 0 && size == HEADER_LENGTH + count * RECORD_LENGTH
+                            && getPrefixStart(header, 0) == 0 && getPrefixStart(header, PREFIXES) == count;
+            for (int prefix = 0; valid && prefix < PREFIXES; prefix++) {
+                valid = getPrefixStart(header, prefix) <= getPrefixStart(header, prefix + 1);
+            }
+            if (!valid) throw new IOException("The breached password list is truncated or corrupted.");
+
+            int segmentCount = (int) ((count + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long first = (long) i * SEGMENT_RECORDS;
+                long records = Math.min(SEGMENT_RECORDS, count - first);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                          HEADER_LENGTH + first * RECORD_LENGTH,
+                                          records * RECORD_LENGTH);
+            }
+            return new BreachCorpus(header, segments, count);
+        }
+    }
+
+    /*
+     * A function to get the corpus in the working directory, or null if there is none.
+     * The file is opened on first use.
+     */
+    public static synchronized BreachCorpus getDefault() {
+        if (!defaultLoaded) {
+            defaultLoaded = true;
+            Path file = Paths.get(DEFAULT_FILE);
+            if (Files.exists(file)) {
+                try {
+                    defaultCorpus = open(file);
+                } catch (IOException e) {
+                    System.err.println("Error in opening the breached password list: " + e.getMessage());
+                }
+            }
+        }
+        return defaultCorpus;
+    }
+
+    /*
+     * A function to use another corpus file, or none if the file is null.
+     */
+    public static synchronized void setDefault(Path file) throws IOException {
+        defaultCorpus = file != null ? open(file) : null;
+        defaultLoaded = true;
+    }
+
+    /*
+     * A function to check a password against the default filter and corpus. Only the
+     * possible hits of the filter are looked up in the corpus; without a corpus they
+     * are taken as breached. Returns false if there is neither.
+     */
+    public static boolean isBreached(String password) {
+        BreachFilter filter = BreachFilter.getDefault();
+        BreachCorpus corpus = getDefault();
+        if (filter == null && corpus == null) return false;
+        byte[] hash = hash(password);
+        if (filter != null && !filter.mightContain(hash)) return false;
+        return corpus == null || corpus.containsHash(hash);
+    }
+
+    public long size() {
+        return count;
+    }
+
+    /*
+     * A function to check if the password is in the corpus.
+     */
+    public boolean contains(String password) {
+        return containsHash(hash(password));
+    }
+
+    /*
+     * A function to hash a password into a buffer of the thread, which is
+     * overwritten by the next call.
+     */
+    static byte[] hash(String password) {
+        MessageDigest sha1 = SHA1.get();
+        byte[] hash = HASH.get();
+        sha1.update(password.getBytes(StandardCharsets.UTF_8));
+        try {
+            sha1.digest(hash, 0, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return hash;
+    }
+
+    /*
+     * A function to pass every hash of the corpus in order to the consumer,
+     * in a buffer that is overwritten by the next hash.
+     */
+    void forEachHash(Consumer<byte[]> consumer) {
+        byte[] hash = new byte[HASH_LENGTH];
+        long index = 0;
+        for (int prefix = 0; prefix < PREFIXES; prefix++) {
+            hash[0] = (byte) (prefix >>> 8);
+            hash[1] = (byte) prefix;
+            for (long end = getPrefixStart(header, prefix + 1); index < end; index++) {
+                ByteBuffer segment = segments[(int) (index / SEGMENT_RECORDS)];
+                segment.get((int) (index % SEGMENT_RECORDS) * RECORD_LENGTH, hash, PREFIX_LENGTH, RECORD_LENGTH);
+                consumer.accept(hash);
+            }
+        }
+    }
+
+    /*
+     * A function to check if the SHA-1 hash is in the corpus.
+     */
+    public boolean containsHash(byte[] hash) {
+        int prefix = ((hash[0] & 0xff) << 8) | (hash[1] & 0xff);
+        long low = getPrefixStart(header, prefix);
+        long high = getPrefixStart(header, prefix + 1) - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            int comparison = compare(middle, hash);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getPrefixStart(ByteBuffer header, int prefix) {
+        return header.getLong(MAGIC.length + 4 + 8 + prefix * 8);
+    }
+
+    /*
+     * A function to compare the record at the index with the hash without its prefix.
+     */
+    private int compare(long index, byte[] hash) {
+        ByteBuffer segment = segments[(int) (index / SEGMENT_RECORDS)];
+        int offset = (int) (index % SEGMENT_RECORDS) * RECORD_LENGTH;
+        for (int i = 0; i < RECORD_LENGTH; i++) {
+            int difference = (segment.get(offset + i) & 0xff) - (hash[PREFIX_LENGTH + i] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return 0;
+    }
+}
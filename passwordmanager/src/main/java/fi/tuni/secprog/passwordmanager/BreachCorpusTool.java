@@ -0,0 +1,357 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * A command line tool to convert a text list of breached passwords into the
+ * binary format of BreachCorpus, and to build a BreachFilter from a list:
+ *
+ *   java fi.tuni.secprog.passwordmanager.BreachCorpusTool <input.txt> <output.bin> [run size]
+ *   java fi.tuni.secprog.passwordmanager.BreachCorpusTool bloom <input.txt|input.bin> <output.bloom>
+ *        [false positive rate] [memory budget in MiB]
+ *
+ * Each line is a SHA-1 hash in hex, optionally followed by ':' and a count as in
+ * the Pwned Passwords downloads, or else a plain password, which is hashed. The
+ * list does not have to be sorted or fit in memory: the hashes are sorted in runs
+ * of the given number of hashes, which are written into temporary files next to
+ * the output and then merged, dropping duplicates. A filter is best built from a
+ * converted list, which has no duplicates and gives the exact number of entries.
+ */
+public class BreachCorpusTool {
+    static final int DEFAULT_RUN_SIZE = 1 << 22; // 4M hashes, 80 MiB per run
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int HASH_LENGTH = BreachCorpus.HASH_LENGTH;
+    static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    static final long DEFAULT_FILTER_BUDGET = 512; // in MiB
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("bloom")) {
+            bloom(args);
+            return;
+        }
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: BreachCorpusTool <input.txt> <output.bin> [run size]");
+            System.err.println("       BreachCorpusTool bloom <input.txt|input.bin> <output.bloom> " +
+                               "[false positive rate] [memory budget in MiB]");
+            System.exit(2);
+        }
+        int runSize = args.length == 3 ? Integer.parseInt(args[2]) : DEFAULT_RUN_SIZE;
+        long count = convert(Paths.get(args[0]), Paths.get(args[1]), runSize);
+        if (count < 0) System.exit(1);
+        System.out.println("Wrote " + count + " hashes into " + args[1]);
+    }
+
+    private static void bloom(String[] args) {
+        if (args.length < 3 || args.length > 5) {
+            System.err.println("Usage: BreachCorpusTool bloom <input.txt|input.bin> <output.bloom> " +
+                               "[false positive rate] [memory budget in MiB]");
+            System.exit(2);
+        }
+        double falsePositiveRate = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_FALSE_POSITIVE_RATE;
+        long budget = (args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_FILTER_BUDGET) << 20;
+        BreachFilter filter = buildFilter(Paths.get(args[1]), Paths.get(args[2]), falsePositiveRate, budget);
+        if (filter == null) System.exit(1);
+        System.out.printf("Wrote %d hashes into %s: %d bytes, %d hash functions, false positive rate %.4f%n",
+                          filter.getEntries(), args[2], filter.getByteSize(), filter.getHashCount(),
+                          filter.getFalsePositiveRate());
+    }
+
+    /*
+     * A function to build a filter of a text list or a converted list with the given
+     * false positive rate and memory budget in bytes, and write it into a file.
+     * Returns the filter, or null on error.
+     */
+    public static BreachFilter buildFilter(Path input, Path output, double falsePositiveRate, long maxBytes) {
+        try {
+            BreachFilter filter;
+            if (isCorpus(input)) {
+                BreachCorpus corpus = BreachCorpus.open(input);
+                filter = BreachFilter.create(Math.max(1, corpus.size()), falsePositiveRate, maxBytes);
+                corpus.forEachHash(filter::add);
+            } else {
+                // The lines are counted first to size the filter
+                long lines = 0;
+                try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.isBlank()) lines++;
+                    }
+                }
+                filter = BreachFilter.create(Math.max(1, lines), falsePositiveRate, maxBytes);
+                MessageDigest sha1 = getSha1();
+                byte[] hash = new byte[HASH_LENGTH];
+                try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (readHash(line, sha1, hash, 0)) filter.add(hash);
+                    }
+                }
+            }
+            filter.save(output);
+            return filter;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error in building the breached password filter: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isCorpus(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return Arrays.equals(in.readNBytes(BreachCorpus.MAGIC.length), BreachCorpus.MAGIC);
+        }
+    }
+
+    /*
+     * A function to convert a text list into a corpus file, which is replaced only
+     * once it is complete. Returns the number of distinct hashes, or -1 on error.
+     */
+    public static long convert(Path input, Path output, int runSize) {
+        Path directory = output.toAbsolutePath().getParent();
+        List<Path> runs = new ArrayList<>();
+        Path temp = null;
+        try {
+            try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+                writeRuns(reader, runSize, directory, runs);
+            }
+            temp = Files.createTempFile(directory, ".breach", ".tmp");
+            long count = merge(runs, temp);
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            return count;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error in converting the breached password list: " + e.getMessage());
+            return -1;
+        } finally {
+            if (temp != null) runs.add(temp);
+            for (Path run : runs) {
+                try {
+                    Files.deleteIfExists(run);
+                } catch (IOException e) {
+                    System.err.println("Error in removing a temporary file: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /*
+     * A function to read the hashes in runs, each of which is sorted and written into a file.
+     */
+    private static void writeRuns(BufferedReader reader, int runSize, Path directory, List<Path> runs)
+            throws IOException {
+        if (runSize < 1) throw new IllegalArgumentException("The run size must be positive");
+        MessageDigest sha1 = getSha1();
+        byte[] records = new byte[Math.multiplyExact(runSize, HASH_LENGTH)];
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!readHash(line, sha1, records, count * HASH_LENGTH)) continue;
+            if (++count == runSize) {
+                runs.add(writeRun(records, count, directory));
+                count = 0;
+            }
+        }
+        if (count > 0) runs.add(writeRun(records, count, directory));
+    }
+
+    private static MessageDigest getSha1() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /*
+     * A function to read the hash of a line into the buffer: the hash the line starts
+     * with, or else the hash of the line as a password. Returns false for a blank line.
+     */
+    private static boolean readHash(String line, MessageDigest sha1, byte[] buffer, int offset) {
+        if (line.isBlank()) return false;
+        if (!parseHash(line, buffer, offset)) {
+            System.arraycopy(sha1.digest(line.getBytes(StandardCharsets.UTF_8)), 0, buffer, offset, HASH_LENGTH);
+        }
+        return true;
+    }
+
+    /*
+     * A function to parse a line that starts with a hex SHA-1 hash into the buffer.
+     * Returns false if the line is not a hash.
+     */
+    static boolean parseHash(String line, byte[] buffer, int offset) {
+        if (line.length() < 2 * HASH_LENGTH) return false;
+        if (line.length() > 2 * HASH_LENGTH && line.charAt(2 * HASH_LENGTH) != ':') return false;
+        for (int i = 0; i < 2 * HASH_LENGTH; i++) {
+            if (Character.digit(line.charAt(i), 16) < 0) return false;
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            int high = Character.digit(line.charAt(2 * i), 16);
+            int low = Character.digit(line.charAt(2 * i + 1), 16);
+            buffer[offset + i] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
+
+    private static Path writeRun(byte[] records, int count, Path directory) throws IOException {
+        sortRecords(records, 0, count - 1, new byte[HASH_LENGTH], new byte[HASH_LENGTH]);
+        Path run = Files.createTempFile(directory, ".breach", ".run");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE)) {
+            out.write(records, 0, count * HASH_LENGTH);
+        }
+        return run;
+    }
+
+    /*
+     * A function to sort the 20-byte records between the indexes in place,
+     * with a quicksort on the median of three and an insertion sort for short ranges.
+     */
+    static void sortRecords(byte[] records, int low, int high, byte[] pivot, byte[] swap) {
+        while (high - low >= INSERTION_SORT_THRESHOLD) {
+            int middle = (low + high) >>> 1;
+            if (compare(records, middle, records, low) < 0) swap(records, low, middle, swap);
+            if (compare(records, high, records, low) < 0) swap(records, low, high, swap);
+            if (compare(records, high, records, middle) < 0) swap(records, middle, high, swap);
+            System.arraycopy(records, middle * HASH_LENGTH, pivot, 0, HASH_LENGTH);
+
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(records, i, pivot, 0) < 0) i++;
+                while (compare(records, j, pivot, 0) > 0) j--;
+                if (i <= j) swap(records, i++, j--, swap);
+            }
+            // Recurse into the smaller part, so that the stack stays shallow
+            if (j - low < high - i) {
+                sortRecords(records, low, j, pivot, swap);
+                low = i;
+            } else {
+                sortRecords(records, i, high, pivot, swap);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(records, j, records, j - 1) < 0; j--) {
+                swap(records, j, j - 1, swap);
+            }
+        }
+    }
+
+    private static int compare(byte[] a, int indexA, byte[] b, int indexB) {
+        return Arrays.compareUnsigned(a, indexA * HASH_LENGTH, (indexA + 1) * HASH_LENGTH,
+                                      b, indexB * HASH_LENGTH, (indexB + 1) * HASH_LENGTH);
+    }
+
+    private static void swap(byte[] records, int a, int b, byte[] swap) {
+        System.arraycopy(records, a * HASH_LENGTH, swap, 0, HASH_LENGTH);
+        System.arraycopy(records, b * HASH_LENGTH, records, a * HASH_LENGTH, HASH_LENGTH);
+        System.arraycopy(swap, 0, records, b * HASH_LENGTH, HASH_LENGTH);
+    }
+
+    /*
+     * A function to merge the sorted runs into the corpus file. The records are
+     * written after room for the header, which is filled in once the hashes of
+     * each prefix have been counted.
+     */
+    private static long merge(List<Path> runs, Path output) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>();
+        long[] prefixCounts = new long[BreachCorpus.PREFIXES];
+        long count = 0;
+        try {
+            for (Path run : runs) {
+                RunReader reader = new RunReader(Files.newInputStream(run));
+                if (reader.next()) queue.add(reader);
+                else reader.close();
+            }
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), BUFFER_SIZE)) {
+                out.write(new byte[BreachCorpus.HEADER_LENGTH]);
+                byte[] previous = new byte[HASH_LENGTH];
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    byte[] hash = reader.current;
+                    if (count == 0 || !Arrays.equals(previous, hash)) {
+                        out.write(hash, BreachCorpus.PREFIX_LENGTH, BreachCorpus.RECORD_LENGTH);
+                        prefixCounts[((hash[0] & 0xff) << 8) | (hash[1] & 0xff)]++;
+                        count++;
+                        System.arraycopy(hash, 0, previous, 0, HASH_LENGTH);
+                    }
+                    if (reader.next()) queue.add(reader);
+                    else reader.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+        writeHeader(output, prefixCounts, count);
+        return count;
+    }
+
+    private static void writeHeader(Path output, long[] prefixCounts, long count) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BreachCorpus.HEADER_LENGTH);
+        header.put(BreachCorpus.MAGIC);
+        header.putInt(BreachCorpus.VERSION);
+        header.putLong(count);
+        long start = 0;
+        for (long prefixCount : prefixCounts) {
+            header.putLong(start);
+            start += prefixCount;
+        }
+        header.putLong(start);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+
+    /*
+     * Reads the hashes of a sorted run one at a time, ordered by the current hash.
+     */
+    private static class RunReader implements Comparable<RunReader>, AutoCloseable {
+        private final InputStream input;
+        private final byte[] current = new byte[HASH_LENGTH];
+
+        RunReader(InputStream input) {
+            this.input = new BufferedInputStream(input, BUFFER_SIZE);
+        }
+
+        boolean next() throws IOException {
+            int read = input.readNBytes(current, 0, HASH_LENGTH);
+            if (read == HASH_LENGTH) return true;
+            if (read > 0) throw new IOException("A temporary run file is truncated");
+            return false;
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return Arrays.compareUnsigned(current, other.current);
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * A Bloom filter over the SHA-1 hashes of breached passwords, built offline by
+ * BreachCorpusTool. It answers "certainly not breached" or "possibly breached"
+ * from memory, so that only the possible hits need a lookup in the breached
+ * password list on disk. The file format is:
+ *
+ *   "PMFILTER", int version, int hash count, long bit count, long entries
+ *   bit count / 8 bytes  the bits
+ *
+ * The bits are loaded into a direct buffer outside the heap. The hashes are
+ * uniformly random already, so the k bit positions of a hash are derived from
+ * its first 16 bytes by double hashing.
+ */
+public class BreachFilter {
+    static final byte[] MAGIC = "PMFILTER".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 4 + 4 + 8 + 8;
+    // The bits are kept in one buffer, so the filter is at most 2 GiB
+    static final long MAX_BYTES = (Integer.MAX_VALUE / 8) * 8L;
+    static final int MAX_HASH_COUNT = 32;
+    private static final String DEFAULT_FILE = "breached_passwords.bloom";
+
+    private static BreachFilter defaultFilter;
+    private static boolean defaultLoaded = false;
+
+    private final ByteBuffer bits;
+    private final long bitCount;
+    private final int hashCount;
+    private long entries;
+
+    private BreachFilter(ByteBuffer bits, long bitCount, int hashCount, long entries) {
+        this.bits = bits;
+        this.bitCount = bitCount;
+        this.hashCount = hashCount;
+        this.entries = entries;
+    }
+
+    /*
+     * A function to create an empty filter for the expected number of entries with
+     * the given false positive rate. If that needs more than the memory budget in
+     * bytes, the filter gets the budget and the best hash count for it, and so a
+     * higher false positive rate.
+     */
+    public static BreachFilter create(long expectedEntries, double falsePositiveRate, long maxBytes) {
+        if (expectedEntries < 1) throw new IllegalArgumentException("The filter must expect some entries");
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("The false positive rate must be between 0 and 1");
+        }
+        long budget = Math.min(maxBytes, MAX_BYTES) / 8 * 8;
+        if (budget < 8) throw new IllegalArgumentException("The memory budget must be at least 8 bytes");
+
+        double optimalBits = -expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long bytes = Math.min(budget, (long) Math.ceil(optimalBits / 64) * 8);
+        long bitCount = bytes * 8;
+        long hashCount = Math.round((double) bitCount / expectedEntries * Math.log(2));
+        hashCount = Math.max(1, Math.min(MAX_HASH_COUNT, hashCount));
+        return new BreachFilter(ByteBuffer.allocateDirect((int) bytes), bitCount, (int) hashCount, 0);
+    }
+
+    /*
+     * A function to load a filter file into memory outside the heap.
+     */
+    public static BreachFilter load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            readFully(channel, header, 0);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("The file is not a breached password filter.");
+            if (header.getInt(MAGIC.length) != VERSION) {
+                throw new IOException("Unsupported version of the breached password filter.");
+            }
+            int hashCount = header.getInt(MAGIC.length + 4);
+            long bitCount = header.getLong(MAGIC.length + 8);
+            long entries = header.getLong(MAGIC.length + 16);
+            if (hashCount < 1 || hashCount > MAX_HASH_COUNT || bitCount < 64 || bitCount % 64 != 0
+                || bitCount / 8 > MAX_BYTES || channel.size() != HEADER_LENGTH + bitCount / 8) {
+                throw new IOException("The breached password filter is truncated or corrupted.");
+            }
+            ByteBuffer bits = ByteBuffer.allocateDirect((int) (bitCount / 8));
+            readFully(channel, bits, HEADER_LENGTH);
+            return new BreachFilter(bits, bitCount, hashCount, entries);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("The breached password filter is truncated or corrupted.");
+        }
+    }
+
+    /*
+     * A function to write the filter into a file, which is replaced only once it is complete.
+     */
+    public void save(Path file) throws IOException {
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), ".filter", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.put(MAGIC).putInt(VERSION).putInt(hashCount).putLong(bitCount).putLong(entries).flip();
+                channel.write(header);
+                ByteBuffer data = bits.duplicate();
+                data.clear();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } finally {
+            if (temp != null) Files.deleteIfExists(temp);
+        }
+    }
+
+    /*
+     * A function to get the filter in the working directory, or null if there is none.
+     * The file is loaded on first use.
+     */
+    public static synchronized BreachFilter getDefault() {
+        if (!defaultLoaded) {
+            defaultLoaded = true;
+            Path file = Paths.get(DEFAULT_FILE);
+            if (Files.exists(file)) {
+                try {
+                    defaultFilter = load(file);
+                } catch (IOException e) {
+                    System.err.println("Error in loading the breached password filter: " + e.getMessage());
+                }
+            }
+        }
+        return defaultFilter;
+    }
+
+    /*
+     * A function to use another filter file, or none if the file is null.
+     */
+    public static synchronized void setDefault(Path file) throws IOException {
+        defaultFilter = file != null ? load(file) : null;
+        defaultLoaded = true;
+    }
+
+    /*
+     * A function to add the SHA-1 hash of a password to the filter.
+     */
+    public void add(byte[] hash) {
+        long h1 = getLong(hash, 0);
+        long h2 = getLong(hash, 8) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            int index = (int) (bit >>> 3);
+            bits.put(index, (byte) (bits.get(index) | (1 << (bit & 7))));
+        }
+        entries++;
+    }
+
+    /*
+     * A function to check if the SHA-1 hash may have been added. False means it certainly was not.
+     */
+    public boolean mightContain(byte[] hash) {
+        long h1 = getLong(hash, 0);
+        long h2 = getLong(hash, 8) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if ((bits.get((int) (bit >>> 3)) & (1 << (bit & 7))) == 0) return false;
+        }
+        return true;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getByteSize() {
+        return bitCount / 8;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /*
+     * A function to estimate the false positive rate of the filter with its entries.
+     */
+    public double getFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashCount * entries / bitCount), hashCount);
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,256 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A small bounded pool of database connections.
+ * A thread leases one physical connection, and nested getConnection calls on the same
+ * thread share that lease. Closing the handed out connection only returns it to the pool
+ * once the outermost caller has closed it. Idle connections are health checked before reuse,
+ * and every new connection gets the pragmas of the database profile and a statement cache.
+ */
+public class ConnectionPool {
+    private static final int VALIDATION_TIMEOUT = 1; // in seconds
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    private final String url;
+    private final DatabaseProfile profile;
+    private final long timeoutMillis;
+    private final Semaphore permits;
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private final Map<Connection, StatementCache> all = new ConcurrentHashMap<>();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private final ThreadLocal<Lease> leases = new ThreadLocal<>();
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String url, DatabaseProfile profile, int maxSize, long timeoutMillis) {
+        this.url = url;
+        this.profile = profile;
+        this.timeoutMillis = timeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /*
+     * A function to get a connection for the calling thread.
+     * The returned connection must be closed by the caller to give it back.
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+
+        Lease lease = leases.get();
+        if (lease == null) {
+            lease = new Lease(borrow());
+            leases.set(lease);
+        }
+        lease.holders++;
+        return lease.newHandle();
+    }
+
+    /*
+     * A function to close the pool and every physical connection, including leased ones.
+     */
+    public void close() {
+        closed = true;
+        synchronized (idle) {
+            idle.clear();
+        }
+        for (Connection conn : all.keySet()) {
+            closeQuietly(conn);
+        }
+        all.clear();
+    }
+
+    /*
+     * Functions to get how often a prepared statement was found in the statement caches.
+     */
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    /*
+     * A function to open a new physical connection and apply the profile to it.
+     */
+    private Connection open() throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        try {
+            profile.apply(conn);
+        } catch (SQLException e) {
+            closeQuietly(conn);
+            throw e;
+        }
+        return conn;
+    }
+
+    /*
+     * A function to take an idle connection, or open a new one if none is healthy.
+     */
+    private Connection borrow() throws SQLException {
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            Connection conn;
+            while ((conn = pollIdle()) != null) {
+                if (isHealthy(conn)) return conn;
+                discard(conn);
+            }
+            conn = open();
+            all.put(conn, new StatementCache(conn, STATEMENT_CACHE_SIZE,
+                                             statementCacheHits, statementCacheMisses));
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /*
+     * A function to give a physical connection back after its lease has ended.
+     */
+    private void giveBack(Connection conn) {
+        leases.remove();
+        try {
+            // Do not hand out a connection with a half finished transaction
+            if (!conn.isClosed() && !conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error resetting a pooled connection: " + e.getMessage());
+            discard(conn);
+        }
+
+        if (closed) {
+            closeQuietly(conn);
+        } else if (all.containsKey(conn)) {
+            synchronized (idle) {
+                idle.push(conn);
+            }
+        }
+        permits.release();
+    }
+
+    private Connection pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    private void discard(Connection conn) {
+        StatementCache cache = all.remove(conn);
+        if (cache != null) cache.close();
+        closeQuietly(conn);
+    }
+
+    private static boolean isHealthy(Connection conn) {
+        try {
+            return !conn.isClosed() && conn.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing a pooled connection: " + e.getMessage());
+        }
+    }
+
+    /*
+     * A thread's lease of a physical connection, shared by the nested handles of the thread.
+     */
+    private class Lease {
+        private final Connection physical;
+        private int holders = 0;
+
+        Lease(Connection physical) {
+            this.physical = physical;
+        }
+
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                      new Class<?>[] {Connection.class},
+                                                      new Handle(this, all.get(physical)));
+        }
+
+        void release() {
+            if (--holders == 0) giveBack(physical);
+        }
+    }
+
+    /*
+     * A connection handle, which forwards everything to the leased connection
+     * except close, which ends this holder's share of the lease, and
+     * prepareStatement(sql), which goes through the connection's statement cache.
+     */
+    private static class Handle implements InvocationHandler {
+        private final Lease lease;
+        private final StatementCache statementCache;
+        private boolean released = false;
+
+        Handle(Lease lease, StatementCache statementCache) {
+            this.lease = lease;
+            this.statementCache = statementCache;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        lease.release();
+                    }
+                    return null;
+                case "isClosed":
+                    return released || lease.physical.isClosed();
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(lease.physical)) return lease.physical;
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + lease.physical;
+                default:
+                    break;
+            }
+            if (released) throw new SQLException("Connection has been returned to the pool");
+            if (method.getName().equals("prepareStatement") && args.length == 1 && statementCache != null) {
+                return statementCache.prepareStatement((String) args[0]);
+            }
+            try {
+                return method.invoke(lease.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * A write-behind queue for credential changes.
+ * Changes are queued with already encrypted values and written by a background
+ * thread, which collects the changes arriving within a short window and commits
+ * them in a single transaction. Consecutive updates of the same site are coalesced
+ * into one write. Every change gets a future that completes once it is committed.
+ */
+public class CredentialWriteQueue {
+
+    private enum Kind { STORE, UPDATE, DELETE }
+
+    private final long lingerMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wakeUp = lock.newCondition();
+    private List<Mutation> pending = new ArrayList<>();
+    private List<CompletableFuture<Void>> barriers = new ArrayList<>();
+    // The last queued update of each site, if nothing else has been queued for the site since
+    private final Map<String, Mutation> coalescable = new HashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+    private Thread writer;
+
+    /*
+     * lingerMillis is how long the writer waits for more changes before committing.
+     */
+    public CredentialWriteQueue(long lingerMillis) {
+        this.lingerMillis = lingerMillis;
+    }
+
+    /*
+     * Functions to queue a change. The values are stored as given, so they must
+     * already be encrypted into the storage format of the credentials table, with
+     * the data key of the given version. A change without the password index leaves
+     * the row to be indexed later.
+     */
+    public CompletableFuture<Boolean> store(int userId, String siteName,
+                                            Object username, Object password, int keyVersion) {
+        return store(userId, siteName, username, password, null, keyVersion);
+    }
+
+    public CompletableFuture<Boolean> store(int userId, String siteName, Object username,
+                                            Object password, byte[] passwordIndex, int keyVersion) {
+        return enqueue(new Mutation(Kind.STORE, userId, siteName, username, password, passwordIndex,
+                                    keyVersion));
+    }
+
+    public CompletableFuture<Boolean> update(int userId, String siteName,
+                                             Object username, Object password, int keyVersion) {
+        return update(userId, siteName, username, password, null, keyVersion);
+    }
+
+    public CompletableFuture<Boolean> update(int userId, String siteName, Object username,
+                                             Object password, byte[] passwordIndex, int keyVersion) {
+        return enqueue(new Mutation(Kind.UPDATE, userId, siteName, username, password, passwordIndex,
+                                    keyVersion));
+    }
+
+    public CompletableFuture<Boolean> delete(int userId, String siteName) {
+        return enqueue(new Mutation(Kind.DELETE, userId, siteName, null, null, null, 0));
+    }
+
+    /*
+     * A function to wait until every change queued before the call has been committed.
+     * Write failures are reported through the futures of the changes, not here.
+     */
+    public void flush() {
+        CompletableFuture<Void> barrier = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (pending.isEmpty() && writer == null) return;
+            barriers.add(barrier);
+            startWriter();
+            wakeUp.signal();
+        } finally {
+            lock.unlock();
+        }
+        barrier.join();
+    }
+
+    /*
+     * A function to get how many updates have been merged into an earlier queued update.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    private CompletableFuture<Boolean> enqueue(Mutation mutation) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        String key = mutation.userId + "/" + mutation.siteName;
+        lock.lock();
+        try {
+            Mutation previous = coalescable.get(key);
+            if (mutation.kind == Kind.UPDATE && previous != null) {
+                // Only the latest values of consecutive updates need to be written
+                previous.username = mutation.username;
+                previous.password = mutation.password;
+                previous.passwordIndex = mutation.passwordIndex;
+                previous.keyVersion = mutation.keyVersion;
+                previous.results.add(result);
+                coalesced.increment();
+                return result;
+            }
+
+            mutation.results.add(result);
+            pending.add(mutation);
+            if (mutation.kind == Kind.UPDATE) coalescable.put(key, mutation);
+            else coalescable.remove(key);
+            startWriter();
+            wakeUp.signal();
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    /*
+     * A function to start the writer thread, if it is not running. Must be called holding the lock.
+     */
+    private void startWriter() {
+        if (writer != null) return;
+        writer = new Thread(this::run, "credential-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /*
+     * The writer loop: wait for changes, let more arrive, then commit them together.
+     */
+    private void run() {
+        while (true) {
+            List<Mutation> batch;
+            List<CompletableFuture<Void>> reached;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && barriers.isEmpty()) {
+                    wakeUp.awaitUninterruptibly();
+                }
+                // A flush does not wait for the linger window
+                if (barriers.isEmpty()) {
+                    long nanos = lingerMillis * 1_000_000;
+                    while (nanos > 0 && barriers.isEmpty()) {
+                        try {
+                            nanos = wakeUp.awaitNanos(nanos);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                batch = pending;
+                reached = barriers;
+                pending = new ArrayList<>();
+                barriers = new ArrayList<>();
+                coalescable.clear();
+            } finally {
+                lock.unlock();
+            }
+
+            if (!batch.isEmpty()) write(batch);
+            for (CompletableFuture<Void> barrier : reached) {
+                barrier.complete(null);
+            }
+        }
+    }
+
+    /*
+     * A function to write a batch of changes in one transaction and complete their futures.
+     * If a change fails, only its futures fail, and the rest of the batch is written again
+     * without it.
+     */
+    private void write(List<Mutation> batch) {
+        List<Mutation> remaining = new ArrayList<>(batch);
+        while (!remaining.isEmpty()) {
+            boolean[] results = new boolean[remaining.size()];
+            int failed = -1;
+            try (Connection conn = DatabaseHelper.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    for (int i = 0; i < remaining.size(); i++) {
+                        failed = i;
+                        results[i] = remaining.get(i).execute(conn);
+                    }
+                    failed = -1;
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (failed < 0) {
+                    System.err.println("Error in writing the queued keys: " + e.getMessage());
+                    for (Mutation mutation : remaining) {
+                        mutation.results.forEach(result -> result.completeExceptionally(e));
+                    }
+                    return;
+                }
+                System.err.println("Error in writing a queued key: " + e.getMessage());
+                remaining.remove(failed).results.forEach(result -> result.completeExceptionally(e));
+                continue;
+            }
+            for (int i = 0; i < remaining.size(); i++) {
+                boolean result = results[i];
+                remaining.get(i).results.forEach(future -> future.complete(result));
+            }
+            return;
+        }
+    }
+
+    /*
+     * A queued change of one site's credentials.
+     */
+    private static class Mutation {
+        final Kind kind;
+        final int userId;
+        final String siteName;
+        Object username;
+        Object password;
+        byte[] passwordIndex;
+        int keyVersion;
+        final List<CompletableFuture<Boolean>> results = new ArrayList<>();
+
+        Mutation(Kind kind, int userId, String siteName, Object username, Object password,
+                 byte[] passwordIndex, int keyVersion) {
+            this.kind = kind;
+            this.userId = userId;
+            this.siteName = siteName;
+            this.username = username;
+            this.password = password;
+            this.passwordIndex = passwordIndex;
+            this.keyVersion = keyVersion;
+        }
+
+        /*
+         * A function to execute the change, returning true if a row was affected.
+         */
+        boolean execute(Connection conn) throws SQLException {
+            switch (kind) {
+                case STORE:
+                    try (PreparedStatement pstmt = conn.prepareStatement(ManageCredentials.INSERT_SQL)) {
+                        pstmt.setInt(1, userId);
+                        pstmt.setString(2, siteName);
+                        pstmt.setObject(3, username);
+                        pstmt.setObject(4, password);
+                        pstmt.setBytes(5, passwordIndex);
+                        pstmt.setInt(6, keyVersion);
+                        return pstmt.executeUpdate() > 0;
+                    }
+                case UPDATE:
+                    try (PreparedStatement pstmt = conn.prepareStatement(ManageCredentials.UPDATE_SQL)) {
+                        pstmt.setObject(1, username);
+                        pstmt.setObject(2, password);
+                        pstmt.setBytes(3, passwordIndex);
+                        pstmt.setInt(4, keyVersion);
+                        pstmt.setInt(5, userId);
+                        pstmt.setString(6, siteName);
+                        return pstmt.executeUpdate() > 0;
+                    }
+                default:
+                    try (PreparedStatement pstmt = conn.prepareStatement(ManageCredentials.DELETE_SQL)) {
+                        pstmt.setInt(1, userId);
+                        pstmt.setString(2, siteName);
+                        return pstmt.executeUpdate() > 0;
+                    }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * A reusable AES-GCM engine. Cipher instances are cached per thread and a single
+ * SecureRandom is shared for the IVs, so that encrypting or decrypting many fields
+ * does not pay the provider lookup and RNG seeding cost on every call.
+ */
+public class CryptoEngine {
+    public static final int GCM_IV_LENGTH = 12;
+    public static final int GCM_TAG_LENGTH = 128;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+
+    /*
+     * A function to get the calling thread's cipher, creating it on first use.
+     */
+    private Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    /*
+     * A function to fill the given array with random bytes from the shared generator.
+     */
+    public void nextBytes(byte[] bytes) {
+        random.nextBytes(bytes);
+    }
+
+    /*
+     * Encrypt data with the given key.
+     * A random IV is generated for each encryption and returned in front of the ciphertext.
+     */
+    public byte[] encrypt(SecretKeySpec key, byte[] data) throws GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        random.nextBytes(iv);
+
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+
+        // Write IV + ciphertext into a single array
+        byte[] ivAndEncrypted = new byte[GCM_IV_LENGTH + cipher.getOutputSize(data.length)];
+        System.arraycopy(iv, 0, ivAndEncrypted, 0, GCM_IV_LENGTH);
+        cipher.doFinal(data, 0, data.length, ivAndEncrypted, GCM_IV_LENGTH);
+        return ivAndEncrypted;
+    }
+
+    /*
+     * Decrypt data with the given key.
+     * The input must contain both the IV and the ciphertext.
+     */
+    public byte[] decrypt(SecretKeySpec key, byte[] ivAndEncrypted) throws GeneralSecurityException {
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(GCM_TAG_LENGTH, ivAndEncrypted, 0, GCM_IV_LENGTH));
+        return cipher.doFinal(ivAndEncrypted, GCM_IV_LENGTH, ivAndEncrypted.length - GCM_IV_LENGTH);
+    }
+
+    /*
+     * Encrypt a part of the data with the given key, IV and additional authenticated data.
+     * Only the ciphertext is returned. The caller must never reuse an IV with the same key.
+     */
+    public byte[] encrypt(SecretKeySpec key, byte[] iv, byte[] aad, byte[] data, int offset, int length)
+            throws GeneralSecurityException {
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(data, offset, length);
+    }
+
+    /*
+     * Decrypt a ciphertext with the given key, IV and additional authenticated data.
+     */
+    public byte[] decrypt(SecretKeySpec key, byte[] iv, byte[] aad, byte[] encrypted, int offset, int length)
+            throws GeneralSecurityException {
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(encrypted, offset, length);
+    }
+
+    /*
+     * A function to get the size of IV + ciphertext for a plaintext of the given length.
+     */
+    public static int getEncryptedLength(int plaintextLength) {
+        return GCM_IV_LENGTH + plaintextLength + GCM_TAG_LENGTH / 8;
+    }
+
+    /*
+     * Encrypt the remaining bytes of the plaintext buffer with the given key.
+     * IV + ciphertext are written into the caller-provided output buffer,
+     * which must have at least getEncryptedLength(plaintext.remaining()) bytes left.
+     * Returns the number of bytes written.
+     */
+    public int encrypt(SecretKeySpec key, ByteBuffer plaintext, ByteBuffer out)
+            throws GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        random.nextBytes(iv);
+
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        out.put(iv);
+        return GCM_IV_LENGTH + cipher.doFinal(plaintext, out);
+    }
+
+    /*
+     * Decrypt the remaining bytes (IV + ciphertext) of the input buffer with the given key.
+     * The plaintext is written into the caller-provided output buffer.
+     * Returns the number of bytes written.
+     */
+    public int decrypt(SecretKeySpec key, ByteBuffer ivAndEncrypted, ByteBuffer out)
+            throws GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        ivAndEncrypted.get(iv);
+
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        return cipher.doFinal(ivAndEncrypted, out);
+    }
+}
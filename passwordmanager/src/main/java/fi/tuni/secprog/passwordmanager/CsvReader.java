@@ -0,0 +1,82 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A streaming reader of CSV records (RFC 4180). Fields may be quoted, and quoted
+ * fields may contain separators, doubled quotes and line breaks. Only one record
+ * is held in memory at a time.
+ */
+public class CsvReader {
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int position = 0;
+    private int limit = 0;
+
+    public CsvReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /*
+     * A function to read the next record. Returns null at the end of the input.
+     * Empty lines are skipped.
+     */
+    public List<String> readRecord() throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean empty = true;
+        int c;
+        while ((c = read()) != -1) {
+            if (quoted) {
+                if (c != '"') {
+                    field.append((char) c);
+                } else if (peek() == '"') {
+                    read();
+                    field.append('"');
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+                empty = false;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+                empty = false;
+            } else if (c == '\r' || c == '\n') {
+                if (c == '\r' && peek() == '\n') read();
+                if (empty && field.length() == 0) continue;
+                break;
+            } else {
+                field.append((char) c);
+                empty = false;
+            }
+        }
+        if (c == -1 && empty && field.length() == 0) return null;
+        if (quoted) throw new IOException("Unterminated quoted field in CSV");
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        limit = reader.read(buffer);
+        position = 0;
+        if (limit > 0) return true;
+        limit = 0;
+        return false;
+    }
+}
@@ -0,0 +1,602 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+/*
+ * A class for the envelope encryption of the vault. The entries and the TOTP secret
+ * of a user are encrypted with a random data key, which is stored in the data_keys
+ * table wrapped with the key derived from the master password. Changing the master
+ * password only rewraps the data keys, whatever the size of the vault.
+ *
+ * The data keys are versioned and every credentials row records the version of the
+ * key it was encrypted with, written by the code that encrypts it. Version 0 is the
+ * password-derived key itself, used by the rows from before the data keys. When a new
+ * data key is taken into use, the TOTP secret is re-encrypted at once and the entries
+ * lazily in the background, in chunks that are re-encrypted in parallel while the
+ * previous one is committed. Until then the older keys are kept in AESKeyHolder to
+ * decrypt the entries not yet re-encrypted, each with the key of the version it
+ * records, and an interrupted migration continues on the next login. Credentials
+ * encrypted with a key are written before a new one is taken into use, so that no
+ * entry of an older key is written after the migration has deleted it.
+ *
+ * The key of the blind index of the passwords (see PasswordIndex) is wrapped the same
+ * way, but it is never rotated, so that the index stays valid across data keys.
+ */
+public class DataKeys {
+    static final int CHUNK_SIZE = 500;
+    private static final int KEY_LENGTH = 32;
+    // The tables of encrypted entries, which record the data key version of each row
+    private static final List<String> ENTRY_TABLES = List.of("credentials", "credentials_duplicates");
+
+    // The latest migration of entries to the current data key
+    private static volatile Future<Integer> migration = CompletableFuture.completedFuture(0);
+
+    // Held for reading from encrypting credentials until they are written or queued,
+    // and for writing while a new data key is taken into use
+    private static final ReentrantReadWriteLock keySwitch = new ReentrantReadWriteLock();
+
+    /*
+     * Functions to mark the encryption and writing of credentials with the current
+     * data key, during which a new data key is not taken into use.
+     */
+    static void beginWrite() {
+        keySwitch.readLock().lock();
+    }
+
+    static void endWrite() {
+        keySwitch.readLock().unlock();
+    }
+
+    /*
+     * A function to unwrap the data keys of a user with the key derived from the master
+     * password and store them in AESKeyHolder: the current one and the older ones still
+     * used by some entries, and the index key if the user has one. All of them are kept
+     * while the recorded key versions of the user are not checked yet, see
+     * checkKeyVersions. Returns false on error.
+     */
+    static boolean load(int userId, SecretKeySpec passwordKey) {
+        String current = "SELECT data_key_version, index_key, key_versions_checked FROM users WHERE id = ?";
+        String keys = "SELECT version, wrapped_key FROM data_keys WHERE user_id = ?";
+        String used = "SELECT key_version FROM credentials WHERE user_id = ? " +
+                      "UNION SELECT key_version FROM credentials_duplicates WHERE user_id = ?";
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement currentStmt = conn.prepareStatement(current);
+             PreparedStatement keysStmt = conn.prepareStatement(keys);
+             PreparedStatement usedStmt = conn.prepareStatement(used)) {
+            currentStmt.setInt(1, userId);
+            ResultSet rs = currentStmt.executeQuery();
+            if (!rs.next()) return false;
+            int currentVersion = rs.getInt("data_key_version");
+            byte[] wrappedIndexKey = rs.getBytes("index_key");
+            boolean checked = rs.getBoolean("key_versions_checked");
+
+            // Version 0 is the password key unless the password has changed since
+            Map<Integer, SecretKeySpec> unwrapped = new HashMap<>();
+            unwrapped.put(0, passwordKey);
+            keysStmt.setInt(1, userId);
+            rs = keysStmt.executeQuery();
+            while (rs.next()) {
+                unwrapped.put(rs.getInt("version"), unwrap(passwordKey, rs.getBytes("wrapped_key")));
+            }
+            SecretKeySpec key = unwrapped.get(currentVersion);
+            if (key == null) throw new SQLException("The current data key is missing");
+
+            Map<Integer, SecretKeySpec> older = new HashMap<>();
+            if (!checked) older.putAll(unwrapped);
+            usedStmt.setInt(1, userId);
+            usedStmt.setInt(2, userId);
+            rs = usedStmt.executeQuery();
+            while (rs.next()) {
+                int version = rs.getInt("key_version");
+                if (!unwrapped.containsKey(version)) throw new SQLException("A data key is missing");
+                older.put(version, unwrapped.get(version));
+            }
+            older.remove(currentVersion);
+            AESKeyHolder.storeKeys(key, currentVersion, older);
+            AESKeyHolder.storeIndexKey(wrappedIndexKey != null ? unwrap(passwordKey, wrappedIndexKey) : null);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Error in loading the data keys: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * A function to start encrypting the vault of a user with a new random data key,
+     * wrapped with the given password key. The TOTP secret is re-encrypted in the same
+     * transaction, the entries later by migrateEntries. The credentials being written and
+     * the queued changes are written with the current key first. Returns false on error,
+     * in which case the current key stays in use.
+     */
+    static boolean rotate(int userId, SecretKeySpec passwordKey) {
+        keySwitch.writeLock().lock();
+        try {
+            ManageCredentials.flushWrites();
+            return switchKey(userId, passwordKey);
+        } finally {
+            keySwitch.writeLock().unlock();
+        }
+    }
+
+    private static boolean switchKey(int userId, SecretKeySpec passwordKey) {
+        String next = "SELECT COALESCE(MAX(version), 0) + 1 FROM data_keys WHERE user_id = ?";
+        String insert = "INSERT INTO data_keys (user_id, version, wrapped_key) VALUES (?, ?, ?)";
+        String select = "SELECT totp_secret FROM users WHERE id = ?";
+        String update = "UPDATE users SET data_key_version = ?, totp_secret = ? WHERE id = ?";
+        SecretKeySpec oldKey = AESKeyHolder.getKey();
+        int oldVersion = AESKeyHolder.getKeyVersion();
+        Map<Integer, SecretKeySpec> olderKeys = AESKeyHolder.getOlderKeys();
+        SecretKeySpec dataKey = generateKey();
+        try (Connection conn = DatabaseHelper.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement nextStmt = conn.prepareStatement(next);
+                 PreparedStatement insertStmt = conn.prepareStatement(insert);
+                 PreparedStatement selectStmt = conn.prepareStatement(select);
+                 PreparedStatement updateStmt = conn.prepareStatement(update)) {
+                nextStmt.setInt(1, userId);
+                ResultSet rs = nextStmt.executeQuery();
+                int version = rs.next() ? rs.getInt(1) : 1;
+                insertStmt.setInt(1, userId);
+                insertStmt.setInt(2, version);
+                insertStmt.setBytes(3, wrap(passwordKey, dataKey));
+                insertStmt.executeUpdate();
+
+                selectStmt.setInt(1, userId);
+                rs = selectStmt.executeQuery();
+                if (!rs.next()) throw new SQLException("No such user");
+                Object totpSecret = ManageCredentials.reencryptField(rs.getString("totp_secret"), oldKey, dataKey);
+                rs.close();
+                updateStmt.setInt(1, version);
+                updateStmt.setObject(2, totpSecret);
+                updateStmt.setInt(3, userId);
+                updateStmt.executeUpdate();
+
+                // The old key is kept for the entries the migration has not reached yet
+                Map<Integer, SecretKeySpec> older = new HashMap<>(olderKeys);
+                older.put(oldVersion, oldKey);
+                AESKeyHolder.storeKeys(dataKey, version, older);
+                conn.commit();
+                return true;
+            } catch (Exception e) {
+                conn.rollback();
+                AESKeyHolder.storeKeys(oldKey, oldVersion, olderKeys);
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (Exception e) {
+            System.err.println("Error in creating a data key: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * A function to give a user from before the password index a random index key,
+     * wrapped with the given password key, and store it in AESKeyHolder.
+     * Returns false on error.
+     */
+    static boolean createIndexKey(int userId, SecretKeySpec passwordKey) {
+        String sql = "UPDATE users SET index_key = ? WHERE id = ? AND index_key IS NULL";
+        SecretKeySpec indexKey = generateKey();
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setBytes(1, wrap(passwordKey, indexKey));
+            pstmt.setInt(2, userId);
+            if (pstmt.executeUpdate() == 0) return false;
+            AESKeyHolder.storeIndexKey(indexKey);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Error in creating the index key: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * A function to take a new data key into use for the logged in user. The entries
+     * are re-encrypted with it in the background. Returns false if the password is
+     * wrong or on error.
+     */
+    public static boolean rotate(char[] password) {
+        int userId = UserAuthentication.getUserId();
+        try {
+            // The new data key must be wrapped with the password key in use
+            LoginSession.awaitUpgrade();
+            SecretKeySpec passwordKey = derivePasswordKey(userId, password);
+            if (passwordKey == null || !rotate(userId, passwordKey)) return false;
+            migrateInBackground(userId);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Error in creating a data key: " + e.getMessage());
+            return false;
+        } finally {
+            Arrays.fill(password, ' ');
+        }
+    }
+
+    /*
+     * A function to check the master password of a user and derive the key from it
+     * with the stored parameters. Returns null if the password is wrong.
+     */
+    static SecretKeySpec derivePasswordKey(int userId, char[] password) throws Exception {
+        String sql = "SELECT password_hash, salt, kdf_algorithm, kdf_iterations FROM users WHERE id = ?";
+        String passwordHash;
+        String salt;
+        KdfParameters parameters;
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
+            ResultSet rs = pstmt.executeQuery();
+            if (!rs.next()) return null;
+            passwordHash = rs.getString("password_hash");
+            salt = rs.getString("salt");
+            parameters = new KdfParameters(rs.getString("kdf_algorithm"), rs.getInt("kdf_iterations"));
+        }
+        if (!BCrypt.checkpw(new String(password), passwordHash)) return null;
+        return AESUtil.deriveKey(password, salt, parameters);
+    }
+
+    /*
+     * A function to rewrap the data keys of a user with a new password key, in the
+     * caller's transaction on the given connection, and the index key with them. If some
+     * entries still use the old password key itself, it is stored wrapped as version 0.
+     */
+    static void rewrap(Connection conn, int userId, SecretKeySpec oldPasswordKey,
+                       SecretKeySpec newPasswordKey) throws Exception {
+        String select = "SELECT version, wrapped_key FROM data_keys WHERE user_id = ?";
+        String update = "UPDATE data_keys SET wrapped_key = ? WHERE user_id = ? AND version = ?";
+        String legacy = "SELECT data_key_version = 0 " +
+                        "OR EXISTS (SELECT 1 FROM credentials WHERE user_id = ? AND key_version = 0) " +
+                        "OR EXISTS (SELECT 1 FROM credentials_duplicates WHERE user_id = ? AND key_version = 0) " +
+                        "FROM users WHERE id = ?";
+        String insert = "INSERT INTO data_keys (user_id, version, wrapped_key) VALUES (?, 0, ?)";
+        String selectIndexKey = "SELECT index_key FROM users WHERE id = ?";
+        String updateIndexKey = "UPDATE users SET index_key = ? WHERE id = ?";
+        try (PreparedStatement selectStmt = conn.prepareStatement(select);
+             PreparedStatement updateStmt = conn.prepareStatement(update);
+             PreparedStatement legacyStmt = conn.prepareStatement(legacy);
+             PreparedStatement insertStmt = conn.prepareStatement(insert);
+             PreparedStatement selectIndexStmt = conn.prepareStatement(selectIndexKey);
+             PreparedStatement updateIndexStmt = conn.prepareStatement(updateIndexKey)) {
+            selectIndexStmt.setInt(1, userId);
+            ResultSet rs = selectIndexStmt.executeQuery();
+            byte[] wrappedIndexKey = rs.next() ? rs.getBytes("index_key") : null;
+            rs.close();
+            if (wrappedIndexKey != null) {
+                updateIndexStmt.setBytes(1, wrap(newPasswordKey, unwrap(oldPasswordKey, wrappedIndexKey)));
+                updateIndexStmt.setInt(2, userId);
+                updateIndexStmt.executeUpdate();
+            }
+
+            selectStmt.setInt(1, userId);
+            rs = selectStmt.executeQuery();
+            boolean hasLegacyKey = false;
+            while (rs.next()) {
+                int version = rs.getInt("version");
+                SecretKeySpec key = unwrap(oldPasswordKey, rs.getBytes("wrapped_key"));
+                updateStmt.setBytes(1, wrap(newPasswordKey, key));
+                updateStmt.setInt(2, userId);
+                updateStmt.setInt(3, version);
+                updateStmt.addBatch();
+                hasLegacyKey |= version == 0;
+            }
+            rs.close();
+            updateStmt.executeBatch();
+            if (hasLegacyKey) return;
+
+            legacyStmt.setInt(1, userId);
+            legacyStmt.setInt(2, userId);
+            legacyStmt.setInt(3, userId);
+            rs = legacyStmt.executeQuery();
+            if (rs.next() && rs.getBoolean(1)) {
+                insertStmt.setInt(1, userId);
+                insertStmt.setBytes(2, wrap(newPasswordKey, oldPasswordKey));
+                insertStmt.executeUpdate();
+            }
+        }
+    }
+
+    /*
+     * A function to re-encrypt the entries of the older data keys in the background,
+     * if there are any. Returns the future of the latest migration.
+     */
+    static Future<Integer> migrateInBackground(int userId) {
+        if (!AESKeyHolder.getOlderKeys().isEmpty()) {
+            migration = BackgroundTasks.submit(() -> migrateEntries(userId));
+        }
+        return migration;
+    }
+
+    /*
+     * A function to wait for the latest migration to stop, e.g. on logout.
+     * Returns the number of re-encrypted entries, or -1 on error.
+     */
+    static int awaitMigration() {
+        try {
+            return migration.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
+            return -1;
+        }
+    }
+
+    /*
+     * A function to re-encrypt the entries of the older data keys with the current one,
+     * the credentials first and then the duplicates moved aside by the migrations.
+     * An entry written meanwhile is left alone, as it already uses the current key.
+     * Stops if the key changes, e.g. on logout; the rest is done on the next login.
+     * The older keys no entry uses any more are deleted afterwards. Returns the number
+     * of re-encrypted entries, or -1 on error.
+     */
+    static int migrateEntries(int userId) {
+        SecretKeySpec key = AESKeyHolder.getKey();
+        int version = AESKeyHolder.getKeyVersion();
+        int migrated = 0;
+        CompletableFuture<List<Row>> next = null;
+        try {
+            if (checkKeyVersions(userId) < 0) return -1;
+            for (String table : ENTRY_TABLES) {
+                next = reencrypt(readChunk(table, userId, version, 0), key);
+                List<Row> rows;
+                while (!(rows = join(next)).isEmpty()) {
+                    if (AESKeyHolder.getKey() != key) return migrated;
+                    next = reencrypt(readChunk(table, userId, version, rows.get(rows.size() - 1).id), key);
+                    migrated += commitChunk(table, userId, version, rows);
+                }
+            }
+            if (AESKeyHolder.getKey() == key) deleteUnusedKeys(userId);
+            return migrated;
+        } catch (Exception e) {
+            System.err.println("Error in re-encrypting the vault: " + e.getMessage());
+            return -1;
+        } finally {
+            if (next != null) next.cancel(true);
+            // Cached entries may hold ciphertext of an older key
+            if (migrated > 0) ManageCredentials.getVaultCache().invalidate();
+        }
+    }
+
+    private static List<Row> readChunk(String table, int userId, int version, long afterId)
+            throws SQLException {
+        String sql = "SELECT id, site_username, site_password, key_version " +
+                     "FROM " + table + " " +
+                     "WHERE user_id = ? AND key_version <> ? AND id > ? " +
+                     "ORDER BY id " +
+                     "LIMIT " + CHUNK_SIZE;
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, version);
+            pstmt.setLong(3, afterId);
+            ResultSet rs = pstmt.executeQuery();
+            List<Row> rows = new ArrayList<>(CHUNK_SIZE);
+            while (rs.next()) {
+                rows.add(new Row(rs.getLong("id"), rs.getObject("site_username"), rs.getObject("site_password"),
+                                 rs.getInt("key_version")));
+            }
+            return rows;
+        }
+    }
+
+    /*
+     * A function to re-encrypt the rows of a chunk in parallel in the background,
+     * each from the key of the version it records.
+     */
+    private static CompletableFuture<List<Row>> reencrypt(List<Row> rows, SecretKeySpec key) {
+        return CompletableFuture.supplyAsync(() -> {
+            rows.parallelStream().forEach(row -> {
+                try {
+                    SecretKeySpec oldKey = AESKeyHolder.getKey(row.version);
+                    if (oldKey == null) throw new SQLException("A data key is missing");
+                    row.username = ManageCredentials.reencryptField(row.username, oldKey, key);
+                    row.password = ManageCredentials.reencryptField(row.password, oldKey, key);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+            return rows;
+        });
+    }
+
+    private static List<Row> join(CompletableFuture<List<Row>> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /*
+     * A function to write a re-encrypted chunk in one transaction. A row is only written
+     * if it still uses an older key and the key it was re-encrypted with is still current.
+     */
+    private static int commitChunk(String table, int userId, int version, List<Row> rows)
+            throws SQLException {
+        String sql = "UPDATE " + table + " SET site_username = ?, site_password = ?, key_version = ? " +
+                     "WHERE id = ? AND key_version <> ? " +
+                     "AND (SELECT data_key_version FROM users WHERE id = ?) = ?";
+        try (Connection conn = DatabaseHelper.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                for (Row row : rows) {
+                    pstmt.setObject(1, row.username);
+                    pstmt.setObject(2, row.password);
+                    pstmt.setInt(3, version);
+                    pstmt.setLong(4, row.id);
+                    pstmt.setInt(5, version);
+                    pstmt.setInt(6, userId);
+                    pstmt.setInt(7, version);
+                    pstmt.addBatch();
+                }
+                int count = 0;
+                for (int updated : pstmt.executeBatch()) {
+                    count += Math.max(updated, 0);
+                }
+                conn.commit();
+                return count;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /*
+     * A function to check the key versions recorded for the entries of a user from
+     * before migration 12. Triggers recorded the version current when a row was written
+     * rather than that of the key it was encrypted with, so a row written during a key
+     * switch may name the wrong key. A row that does not decrypt with its recorded key is
+     * relabelled with the loaded key it decrypts with, before the migration and the
+     * deletion of unused keys rely on the versions. Returns the number of relabelled
+     * rows, or -1 on error.
+     */
+    static int checkKeyVersions(int userId) {
+        String checked = "SELECT key_versions_checked FROM users WHERE id = ?";
+        String done = "UPDATE users SET key_versions_checked = 1 WHERE id = ?";
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement checkedStmt = conn.prepareStatement(checked);
+             PreparedStatement doneStmt = conn.prepareStatement(done)) {
+            checkedStmt.setInt(1, userId);
+            ResultSet rs = checkedStmt.executeQuery();
+            if (!rs.next() || rs.getBoolean(1)) return 0;
+            rs.close();
+
+            Map<Integer, SecretKeySpec> keys = new HashMap<>(AESKeyHolder.getOlderKeys());
+            keys.put(AESKeyHolder.getKeyVersion(), AESKeyHolder.getKey());
+            int relabelled = 0;
+            for (String table : ENTRY_TABLES) {
+                relabelled += relabel(conn, table, userId, keys);
+            }
+            doneStmt.setInt(1, userId);
+            doneStmt.executeUpdate();
+            return relabelled;
+        } catch (Exception e) {
+            System.err.println("Error in checking the key versions: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static int relabel(Connection conn, String table, int userId, Map<Integer, SecretKeySpec> keys)
+            throws Exception {
+        String select = "SELECT id, site_password, key_version FROM " + table + " WHERE user_id = ?";
+        String update = "UPDATE " + table + " SET key_version = ? " +
+                        "WHERE id = ? AND key_version = ? AND site_password = ?";
+        try (PreparedStatement selectStmt = conn.prepareStatement(select);
+             PreparedStatement updateStmt = conn.prepareStatement(update)) {
+            selectStmt.setInt(1, userId);
+            ResultSet rs = selectStmt.executeQuery();
+            while (rs.next()) {
+                Object password = rs.getObject("site_password");
+                int recorded = rs.getInt("key_version");
+                byte[] ciphertext = DatabaseHelper.toBlob(password);
+                if (decrypts(keys.get(recorded), ciphertext)) continue;
+                for (Map.Entry<Integer, SecretKeySpec> key : keys.entrySet()) {
+                    if (!decrypts(key.getValue(), ciphertext)) continue;
+                    updateStmt.setInt(1, key.getKey());
+                    updateStmt.setLong(2, rs.getLong("id"));
+                    updateStmt.setInt(3, recorded);
+                    updateStmt.setObject(4, password);
+                    updateStmt.addBatch();
+                    break;
+                }
+            }
+            rs.close();
+            int count = 0;
+            for (int updated : updateStmt.executeBatch()) {
+                count += Math.max(updated, 0);
+            }
+            return count;
+        }
+    }
+
+    private static boolean decrypts(SecretKeySpec key, byte[] ciphertext) throws Exception {
+        if (key == null) return false;
+        try {
+            Arrays.fill(AESUtil.getEngine().decrypt(key, ciphertext), (byte) 0);
+            return true;
+        } catch (AEADBadTagException e) {
+            return false;
+        }
+    }
+
+    /*
+     * A function to delete the older data keys of a user that no entry uses any more.
+     */
+    private static void deleteUnusedKeys(int userId) throws SQLException {
+        String sql = "DELETE FROM data_keys " +
+                     "WHERE user_id = ? " +
+                     "AND version <> (SELECT data_key_version FROM users WHERE id = ?) " +
+                     "AND version NOT IN (SELECT key_version FROM credentials WHERE user_id = ? " +
+                     "UNION SELECT key_version FROM credentials_duplicates WHERE user_id = ?)";
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, userId);
+            pstmt.setInt(3, userId);
+            pstmt.setInt(4, userId);
+            pstmt.executeUpdate();
+        }
+    }
+
+    static SecretKeySpec generateKey() {
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        AESUtil.getEngine().nextBytes(keyBytes);
+        SecretKeySpec key = new SecretKeySpec(keyBytes, "AES");
+        Arrays.fill(keyBytes, (byte) 0);
+        return key;
+    }
+
+    static byte[] wrap(SecretKeySpec wrappingKey, SecretKeySpec key) throws Exception {
+        byte[] keyBytes = key.getEncoded();
+        try {
+            return AESUtil.getEngine().encrypt(wrappingKey, keyBytes);
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    static SecretKeySpec unwrap(SecretKeySpec wrappingKey, byte[] wrappedKey) throws Exception {
+        byte[] keyBytes = AESUtil.getEngine().decrypt(wrappingKey, wrappedKey);
+        SecretKeySpec key = new SecretKeySpec(keyBytes, "AES");
+        Arrays.fill(keyBytes, (byte) 0);
+        return key;
+    }
+
+    /*
+     * A credentials row being re-encrypted, with its values in the stored format.
+     */
+    private static class Row {
+        final long id;
+        final int version;
+        Object username;
+        Object password;
+
+        Row(long id, Object username, Object password, int version) {
+            this.id = id;
+            this.version = version;
+            this.username = username;
+            this.password = password;
+        }
+    }
+}
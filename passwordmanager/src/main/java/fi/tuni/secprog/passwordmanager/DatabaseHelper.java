@@ -1,9 +1,13 @@
 package fi.tuni.secprog.passwordmanager;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 
 /*
  * A class to handle database connection and initialization.
@@ -11,32 +15,167 @@ import java.sql.Statement;
 public class DatabaseHelper {
     private static String DB_URL;
     private static final String realDB_URL = "jdbc:sqlite:password_manager.db";
-    private static Connection connection;
+    private static final int POOL_SIZE = 4;
+    private static final long POOL_TIMEOUT = 10_000; // in milliseconds
+    private static ConnectionPool pool;
+    private static DatabaseProfile profile = DatabaseProfile.PERFORMANCE;
+    private static boolean blobCiphertext = false;
 
     /*
-     * A function to connect to the database.
+     * A function to get a pooled connection to the database.
+     * Closing the connection gives it back to the pool.
      */
     public static Connection getConnection() throws SQLException {
-        if (connection == null || connection.isClosed()) {
-            connection = DriverManager.getConnection(DB_URL);
+        return getPool().getConnection();
+    }
+
+    private static synchronized ConnectionPool getPool() {
+        if (pool == null) {
+            pool = new ConnectionPool(DB_URL, profile, POOL_SIZE, POOL_TIMEOUT);
+        }
+        return pool;
+    }
+
+    /*
+     * Functions to get the prepared statement cache hits and misses of the current pool.
+     */
+    public static long getStatementCacheHits() {
+        return getPool().getStatementCacheHits();
+    }
+
+    public static long getStatementCacheMisses() {
+        return getPool().getStatementCacheMisses();
+    }
+
+    /*
+     * A function to close all the pooled connections, e.g. when the application exits.
+     */
+    public static synchronized void closePool() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
         }
-        return connection;
+    }
+
+    /*
+     * A function to select the pragmas applied to every new connection.
+     */
+    public static void setProfile(DatabaseProfile newProfile) {
+        closePool();
+        profile = newProfile;
     }
 
     public static void setRealDB() {
+        closePool();
         DB_URL = realDB_URL;
     }
 
     public static void setTestDB(String testDB) {
+        closePool();
         DB_URL = testDB;
     }
-    
+
+    /*
+     * Select whether new ciphertext is stored as raw BLOBs instead of Base64 text.
+     */
+    public static void setBlobCiphertext(boolean enabled) {
+        blobCiphertext = enabled;
+    }
+
+    public static boolean isBlobCiphertext() {
+        return blobCiphertext;
+    }
 
     /*
      * A function to initialize the user database.
      */
     public static void initializeDatabase() {
-        String sql1 = "CREATE TABLE IF NOT EXISTS users (" +
+        setRealDB();
+        try (Connection conn = getConnection()) {
+            migrate(conn);
+        } catch (SQLException e) {
+            System.err.println("Error initializing database: " + e.getMessage());
+        }
+        if (blobCiphertext) migrateCiphertextToBlob();
+    }
+
+    /*
+     * A schema migration, applied inside the transaction that records its version.
+     */
+    private interface Migration {
+        void apply(Statement stmt) throws SQLException;
+    }
+
+    /*
+     * The ordered schema migrations. The version of a migration is its position
+     * in the list, starting from 1. Applied migrations must never be edited or
+     * reordered, changes to the schema are appended as new migrations.
+     */
+    private static final List<Migration> MIGRATIONS = List.of(
+        DatabaseHelper::createTables,
+        DatabaseHelper::addCredentialIndexes,
+        DatabaseHelper::addUserIndexes,
+        DatabaseHelper::addKdfParameters,
+        DatabaseHelper::addKeyRotations,
+        DatabaseHelper::addDataKeys,
+        DatabaseHelper::addPasswordIndex,
+        DatabaseHelper::dropKeyVersionTriggers,
+        DatabaseHelper::dropLoginIndex,
+        DatabaseHelper::resetPasswordIndex,
+        DatabaseHelper::addDuplicateKeyVersions,
+        DatabaseHelper::checkKeyVersions
+    );
+
+    public static int getLatestSchemaVersion() {
+        return MIGRATIONS.size();
+    }
+
+    /*
+     * A function to get the schema version of the database, 0 if nothing has been applied.
+     */
+    public static int getSchemaVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER PRIMARY KEY);");
+            ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version;");
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /*
+     * A function to bring the schema up to date by applying the pending migrations in order.
+     * Each migration runs in its own transaction together with the version bump.
+     */
+    public static void migrate(Connection conn) throws SQLException {
+        migrate(conn, MIGRATIONS.size());
+    }
+
+    /*
+     * A function to apply the pending migrations up to the given version, e.g. to
+     * create a database of an older version in the tests.
+     */
+    static void migrate(Connection conn, int target) throws SQLException {
+        int version = getSchemaVersion(conn);
+        for (int next = version + 1; next <= target; next++) {
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                MIGRATIONS.get(next - 1).apply(stmt);
+                stmt.execute("INSERT INTO schema_version (version) VALUES (" + next + ");");
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw new SQLException("Migration to schema version " + next + " failed: " +
+                                       e.getMessage(), e);
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /*
+     * Migration 1: the users and credentials tables.
+     */
+    private static void createTables(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS users (" +
                      "id                INTEGER PRIMARY KEY AUTOINCREMENT," +
                      "username          VARCHAR(255) UNIQUE NOT NULL," +
                      "password_hash     VARCHAR(255) NOT NULL," +
@@ -45,26 +184,254 @@ public class DatabaseHelper {
                      "failed_attempts   INTEGER DEFAULT 0," +
                      "last_failed_login TIMESTAMP DEFAULT NULL," +
                      "lockout_until     TIMESTAMP DEFAULT NULL" +
-                     ");";
+                     ");");
 
-        String sql2 = "CREATE TABLE IF NOT EXISTS credentials (" +
-                      "id            INTEGER PRIMARY KEY AUTOINCREMENT," +
-                      "user_id       INTEGER NOT NULL," +
-                      "site_name     VARCHAR(255) NOT NULL," +
-                      "site_username VARCHAR(255) NOT NULL," +
-                      "site_password VARCHAR(255) NOT NULL," +
-                      "FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE" +
-                      ");";
+        String cipherType = blobCiphertext ? "BLOB" : "VARCHAR(255)";
+        stmt.execute("CREATE TABLE IF NOT EXISTS credentials (" +
+                     "id            INTEGER PRIMARY KEY AUTOINCREMENT," +
+                     "user_id       INTEGER NOT NULL," +
+                     "site_name     VARCHAR(255) NOT NULL," +
+                     "site_username " + cipherType + " NOT NULL," +
+                     "site_password " + cipherType + " NOT NULL," +
+                     "FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE" +
+                     ");");
+    }
 
-        setRealDB();
-        try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
-            stmt.execute("PRAGMA foreign_keys = ON;");
-            stmt.execute(sql1);
-            stmt.execute(sql2);
-        } catch (SQLException e) {
-            System.err.println("Error initializing database: " + e.getMessage());
+    /*
+     * Migration 2: a unique index on (user_id, site_name), which serves every
+     * per-site lookup and covers the website listing. Of duplicate sites of a user
+     * the newest row is kept, and the older ones are moved aside into the
+     * credentials_duplicates table, so that no credentials are lost.
+     */
+    private static void addCredentialIndexes(Statement stmt) throws SQLException {
+        String older = "FROM credentials " +
+                       "WHERE id NOT IN (SELECT MAX(id) FROM credentials GROUP BY user_id, site_name)";
+        ResultSet rs = stmt.executeQuery("SELECT user_id, site_name, COUNT(*) " + older +
+                                         " GROUP BY user_id, site_name;");
+        List<String> duplicates = new ArrayList<>();
+        while (rs.next()) {
+            duplicates.add(rs.getInt(3) + " older credentials of " + rs.getString(2) +
+                           " of user " + rs.getInt(1));
+        }
+        rs.close();
+        if (!duplicates.isEmpty()) {
+            createDuplicatesTable(stmt);
+            stmt.execute("INSERT INTO credentials_duplicates " +
+                         "SELECT id, user_id, site_name, site_username, site_password " + older + ";");
+            stmt.execute("DELETE " + older + ";");
+            for (String duplicate : duplicates) {
+                System.err.println("Moved " + duplicate + " into credentials_duplicates");
+            }
         }
+        stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS idx_credentials_user_site " +
+                     "ON credentials (user_id, site_name);");
+    }
+
+    private static void createDuplicatesTable(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS credentials_duplicates (" +
+                     "id            INTEGER PRIMARY KEY," +
+                     "user_id       INTEGER NOT NULL," +
+                     "site_name     VARCHAR(255) NOT NULL," +
+                     "site_username NOT NULL," +
+                     "site_password NOT NULL" +
+                     ");");
+    }
+
+    /*
+     * Migration 3: covering indexes for the users lookups done by username,
+     * so that the lockout check and the password check never read the table itself.
+     */
+    private static void addUserIndexes(Statement stmt) throws SQLException {
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_users_lockout " +
+                     "ON users (username, lockout_until);");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_users_login " +
+                     "ON users (username, password_hash, failed_attempts, last_failed_login);");
+    }
+
+    /*
+     * Migration 4: the key derivation parameters of each user. Existing users
+     * get the parameters that their keys were derived with.
+     */
+    private static void addKdfParameters(Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE users ADD COLUMN kdf_algorithm VARCHAR(64) NOT NULL " +
+                     "DEFAULT '" + KdfParameters.LEGACY.getAlgorithm() + "';");
+        stmt.execute("ALTER TABLE users ADD COLUMN kdf_iterations INTEGER NOT NULL " +
+                     "DEFAULT " + KdfParameters.LEGACY.getIterations() + ";");
+    }
+
+    /*
+     * Migration 5: the checkpoints of master password changes in progress. A row holds
+     * the new key wrapped with the old one, the new password hash and key derivation
+     * parameters, and the id of the last credentials row re-encrypted with the new key.
+     */
+    private static void addKeyRotations(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS key_rotations (" +
+                     "user_id        INTEGER PRIMARY KEY," +
+                     "wrapped_key    BLOB NOT NULL," +
+                     "password_hash  VARCHAR(255) NOT NULL," +
+                     "salt           VARCHAR(255) NOT NULL," +
+                     "kdf_algorithm  VARCHAR(64) NOT NULL," +
+                     "kdf_iterations INTEGER NOT NULL," +
+                     "last_id        INTEGER NOT NULL DEFAULT 0," +
+                     "FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE" +
+                     ");");
+    }
+
+    /*
+     * Migration 6: envelope encryption. Each user gets data keys, stored wrapped with the
+     * key derived from the master password, and the version of the current one. Version 0
+     * is the password-derived key itself, which existing users and rows keep until their
+     * next login. Triggers record the current version of the user in every written row,
+     * since every write encrypts with the current key. Changing the master password only
+     * rewraps the data keys, so the checkpoints of re-encrypting the vault are dropped.
+     * A checkpoint of a change in progress is kept, as the key of the rows re-encrypted
+     * so far is stored only there; the next login finishes the change and drops the table.
+     */
+    private static void addDataKeys(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS data_keys (" +
+                     "user_id     INTEGER NOT NULL," +
+                     "version     INTEGER NOT NULL," +
+                     "wrapped_key BLOB NOT NULL," +
+                     "PRIMARY KEY (user_id, version)," +
+                     "FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE" +
+                     ");");
+        stmt.execute("ALTER TABLE users ADD COLUMN data_key_version INTEGER NOT NULL DEFAULT 0;");
+        stmt.execute("ALTER TABLE credentials ADD COLUMN key_version INTEGER NOT NULL DEFAULT 0;");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_credentials_key_version " +
+                     "ON credentials (user_id, key_version);");
+        stmt.execute("CREATE TRIGGER IF NOT EXISTS credentials_key_version_insert " +
+                     "AFTER INSERT ON credentials BEGIN " +
+                     "UPDATE credentials SET key_version = " +
+                     "(SELECT data_key_version FROM users WHERE id = NEW.user_id) " +
+                     "WHERE id = NEW.id; END;");
+        stmt.execute("CREATE TRIGGER IF NOT EXISTS credentials_key_version_update " +
+                     "AFTER UPDATE OF site_username, site_password ON credentials BEGIN " +
+                     "UPDATE credentials SET key_version = " +
+                     "(SELECT data_key_version FROM users WHERE id = NEW.user_id) " +
+                     "WHERE id = NEW.id; END;");
+        ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM key_rotations;");
+        boolean pending = rs.next() && rs.getInt(1) > 0;
+        rs.close();
+        if (!pending) stmt.execute("DROP TABLE IF EXISTS key_rotations;");
     }
 
+    /*
+     * Migration 7: a blind index of the passwords, an HMAC of each password with a key of
+     * the user, so that the entries sharing a password are found with one indexed query.
+     * The key is stored wrapped with the key derived from the master password like the
+     * data keys. Existing rows are indexed in the background after the next login.
+     */
+    private static void addPasswordIndex(Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE users ADD COLUMN index_key BLOB;");
+        stmt.execute("ALTER TABLE credentials ADD COLUMN password_index BLOB;");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_credentials_password_index " +
+                     "ON credentials (user_id, password_index);");
+    }
 
+    /*
+     * Migration 8: the key version of a row is written with the row by the code that
+     * encrypts it. The triggers of migration 6 recorded the version current at commit
+     * time instead, which is wrong for values encrypted before a new data key was taken
+     * into use, and for rows only converted to BLOBs.
+     */
+    private static void dropKeyVersionTriggers(Statement stmt) throws SQLException {
+        stmt.execute("DROP TRIGGER IF EXISTS credentials_key_version_insert;");
+        stmt.execute("DROP TRIGGER IF EXISTS credentials_key_version_update;");
+    }
+
+    /*
+     * Migration 9: the login index of migration 3 serves no query since the login reads
+     * the whole user row once, and failed attempts are recorded by id. The username
+     * lookups use the unique index of the username instead.
+     */
+    private static void dropLoginIndex(Statement stmt) throws SQLException {
+        stmt.execute("DROP INDEX IF EXISTS idx_users_login;");
+    }
+
+    /*
+     * Migration 10: the backfill of the password index hashed the plaintext in the platform
+     * encoding while the writes hashed UTF-8, so non-ASCII passwords could get two indexes.
+     * The index is cleared to be computed again in the same way after the next login.
+     */
+    private static void resetPasswordIndex(Statement stmt) throws SQLException {
+        stmt.execute("UPDATE credentials SET password_index = NULL;");
+    }
+
+    /*
+     * Migration 11: the duplicates moved aside by migration 2 are encrypted like the
+     * credentials, with the password key, which is data key version 0. They get the key
+     * version of each row too, so that they are re-encrypted with the credentials and
+     * their key is kept until then. The table is created if there were no duplicates,
+     * so that the queries of the data keys need not check for it.
+     */
+    private static void addDuplicateKeyVersions(Statement stmt) throws SQLException {
+        createDuplicatesTable(stmt);
+        stmt.execute("ALTER TABLE credentials_duplicates ADD COLUMN key_version INTEGER NOT NULL DEFAULT 0;");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_credentials_duplicates_key_version " +
+                     "ON credentials_duplicates (user_id, key_version);");
+    }
+
+    /*
+     * Migration 12: the key version triggers of migration 6 recorded the version current
+     * when a row was written, not that of the key that encrypted it, so a row written
+     * during a key switch may name the wrong key. The rows can not be decrypted here, so
+     * the users who had data keys then are marked to have their rows checked and
+     * relabelled after their next login, see DataKeys.checkKeyVersions.
+     */
+    private static void checkKeyVersions(Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE users ADD COLUMN key_versions_checked INTEGER NOT NULL DEFAULT 1;");
+        stmt.execute("UPDATE users SET key_versions_checked = 0 " +
+                     "WHERE id IN (SELECT user_id FROM data_keys);");
+    }
+
+    /*
+     * A function to convert Base64 text ciphertext in the credentials table into BLOBs.
+     * SQLite keeps BLOB values as they are whatever the declared column type is,
+     * so existing tables are migrated in place. Returns the number of migrated rows,
+     * or -1 on error.
+     */
+    public static int migrateCiphertextToBlob() {
+        String select = "SELECT id, site_username, site_password " +
+                        "FROM credentials " +
+                        "WHERE typeof(site_username) = 'text' OR typeof(site_password) = 'text'";
+        String update = "UPDATE credentials " +
+                        "SET site_username = ?, site_password = ? " +
+                        "WHERE id = ?";
+        try (Connection conn = getConnection();
+             PreparedStatement selectStmt = conn.prepareStatement(select);
+             PreparedStatement updateStmt = conn.prepareStatement(update)) {
+            conn.setAutoCommit(false);
+            try {
+                ResultSet rs = selectStmt.executeQuery();
+                int migrated = 0;
+                while (rs.next()) {
+                    updateStmt.setBytes(1, toBlob(rs.getObject("site_username")));
+                    updateStmt.setBytes(2, toBlob(rs.getObject("site_password")));
+                    updateStmt.setInt(3, rs.getInt("id"));
+                    updateStmt.addBatch();
+                    migrated++;
+                }
+                updateStmt.executeBatch();
+                conn.commit();
+                return migrated;
+            } catch (SQLException | IllegalArgumentException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException | IllegalArgumentException e) {
+            System.err.println("Error migrating ciphertext to BLOBs: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    /*
+     * A function to get the raw bytes of a stored ciphertext value,
+     * which is either a BLOB or Base64 text.
+     */
+    public static byte[] toBlob(Object value) {
+        if (value instanceof byte[]) return (byte[]) value;
+        return Base64.getDecoder().decode((String) value);
+    }
 }
@@ -0,0 +1,72 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/*
+ * A set of SQLite pragmas applied to every new database connection.
+ * PERFORMANCE uses a write-ahead log, so that readers are not blocked by writers,
+ * and syncs only at checkpoints instead of on every commit.
+ */
+public class DatabaseProfile {
+
+    public enum JournalMode { DELETE, TRUNCATE, PERSIST, MEMORY, WAL, OFF }
+    public enum Synchronous { OFF, NORMAL, FULL, EXTRA }
+    public enum TempStore { DEFAULT, FILE, MEMORY }
+
+    // SQLite's own defaults, foreign keys aside
+    public static final DatabaseProfile DEFAULT =
+        new DatabaseProfile(JournalMode.DELETE, Synchronous.FULL, 0, -2_000, TempStore.DEFAULT, 5_000);
+
+    // WAL journal, 256 MiB memory map and 16 MiB page cache
+    public static final DatabaseProfile PERFORMANCE =
+        new DatabaseProfile(JournalMode.WAL, Synchronous.NORMAL, 256L * 1024 * 1024, -16_000,
+                            TempStore.MEMORY, 5_000);
+
+    private final JournalMode journalMode;
+    private final Synchronous synchronous;
+    private final long mmapSize;
+    private final int cacheSize;
+    private final TempStore tempStore;
+    private final int busyTimeout;
+
+    /*
+     * mmapSize is in bytes, busyTimeout in milliseconds. A positive cacheSize is a number
+     * of pages, a negative one a size in KiB, as in SQLite's cache_size pragma.
+     */
+    public DatabaseProfile(JournalMode journalMode, Synchronous synchronous, long mmapSize,
+                           int cacheSize, TempStore tempStore, int busyTimeout) {
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.mmapSize = mmapSize;
+        this.cacheSize = cacheSize;
+        this.tempStore = tempStore;
+        this.busyTimeout = busyTimeout;
+    }
+
+    /*
+     * A function to get the pragma statements of the profile.
+     */
+    public List<String> getPragmas() {
+        return List.of("PRAGMA foreign_keys = ON;",
+                       "PRAGMA busy_timeout = " + busyTimeout + ";",
+                       "PRAGMA journal_mode = " + journalMode + ";",
+                       "PRAGMA synchronous = " + synchronous + ";",
+                       "PRAGMA mmap_size = " + mmapSize + ";",
+                       "PRAGMA cache_size = " + cacheSize + ";",
+                       "PRAGMA temp_store = " + tempStore + ";");
+    }
+
+    /*
+     * A function to apply the profile to a new connection.
+     */
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            for (String pragma : getPragmas()) {
+                stmt.execute(pragma);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * A short-lived slot for an encryption key that is derived in the background.
+ * The derivation is started as soon as the master password is known to be correct,
+ * so the PBKDF2 work overlaps with the user typing the TOTP code. The key can be
+ * taken once, before the slot expires. Discarding the slot clears the key material.
+ */
+public class DerivedKeySlot {
+    private static final long LIFETIME = 2 * 60 * 1000; // in milliseconds
+
+    private final Future<byte[]> derivation;
+    private final long expiresAt;
+    private boolean used = false;
+
+    private DerivedKeySlot(Future<byte[]> derivation) {
+        this.derivation = derivation;
+        this.expiresAt = System.currentTimeMillis() + LIFETIME;
+    }
+
+    /*
+     * A function to start deriving the key from the master password and salt.
+     * The password is copied, so the caller may clear its own array right away.
+     */
+    public static DerivedKeySlot derive(char[] password, String salt, KdfParameters parameters) {
+        char[] passwordCopy = password.clone();
+        return new DerivedKeySlot(BackgroundTasks.submit(() -> {
+            try {
+                byte[] keyBytes = AESUtil.deriveKeyMaterial(passwordCopy, salt, parameters);
+                // A cancelled derivation still runs to the end, its result is never taken
+                if (Thread.currentThread().isInterrupted()) Arrays.fill(keyBytes, (byte) 0);
+                return keyBytes;
+            } finally {
+                Arrays.fill(passwordCopy, ' ');
+            }
+        }));
+    }
+
+    /*
+     * A function to take the derived key, waiting for the derivation if it is still running.
+     * Returns null if the slot has already been used, has expired or the derivation failed.
+     */
+    public synchronized SecretKeySpec take() {
+        if (used) return null;
+        used = true;
+        if (System.currentTimeMillis() > expiresAt) {
+            discardResult();
+            return null;
+        }
+        try {
+            byte[] keyBytes = derivation.get();
+            SecretKeySpec key = new SecretKeySpec(keyBytes, "AES");
+            Arrays.fill(keyBytes, (byte) 0);
+            return key;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error in deriving the key: " + e.getCause().getMessage());
+        }
+        return null;
+    }
+
+    /*
+     * A function to discard the slot without using the key.
+     */
+    public synchronized void discard() {
+        if (used) return;
+        used = true;
+        discardResult();
+    }
+
+    /*
+     * A function to cancel the derivation, or clear the key material if it has finished.
+     */
+    private void discardResult() {
+        if (derivation.cancel(true)) return;
+        try {
+            Arrays.fill(derivation.get(), (byte) 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Nothing was derived, so there is nothing to clear
+        }
+    }
+}
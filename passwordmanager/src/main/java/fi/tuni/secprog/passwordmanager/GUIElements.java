@@ -1,12 +1,21 @@
 package fi.tuni.secprog.passwordmanager;
 
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.ProgressIndicator;
+import javafx.scene.control.TableCell;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import java.io.File;
+import java.util.List;
+import java.util.function.Consumer;
 import javafx.geometry.Pos;
 
 /*
@@ -112,7 +121,59 @@ public class GUIElements {
         return vbox;
     }
 
-    
+    /*
+     * Creates a table of credentials with sortable website and username columns,
+     * and buttons to copy the password and to edit the key. The table only creates
+     * cells for the visible rows and reuses them while scrolling, so that large
+     * vaults stay responsive.
+     */
+    public static TableView<VaultEntry> createKeysTable(Consumer<VaultEntry> onCopy,
+                                                        Consumer<VaultEntry> onEdit) {
+        TableView<VaultEntry> table = new TableView<>();
+        table.setFixedCellSize(35);
+        table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+        table.setPlaceholder(new Label("No keys yet."));
+        table.setStyle("-fx-font-size: 10pt;");
+
+        TableColumn<VaultEntry, String> websiteColumn = new TableColumn<>("Website");
+        websiteColumn.setCellValueFactory(cell -> new ReadOnlyStringWrapper(cell.getValue().getSiteName()));
+        TableColumn<VaultEntry, String> usernameColumn = new TableColumn<>("Username");
+        usernameColumn.setCellValueFactory(cell -> new ReadOnlyStringWrapper(cell.getValue().getUsername()));
+
+        TableColumn<VaultEntry, VaultEntry> passwordColumn = new TableColumn<>("Password");
+        passwordColumn.setSortable(false);
+        passwordColumn.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(cell.getValue()));
+        passwordColumn.setCellFactory(column -> new TableCell<>() {
+            private final Button copyBtn = createSmallBtn("Copy");
+            private final Button editBtn = createSmallBtn("Edit");
+            private final HBox buttons = new HBox(10, copyBtn, editBtn);
+
+            {
+                buttons.setAlignment(Pos.CENTER);
+                copyBtn.setOnAction(e -> onCopy.accept(getItem()));
+                editBtn.setOnAction(e -> onEdit.accept(getItem()));
+            }
+
+            @Override
+            protected void updateItem(VaultEntry entry, boolean empty) {
+                super.updateItem(entry, empty);
+                setGraphic(empty || entry == null ? null : buttons);
+            }
+        });
+
+        table.getColumns().setAll(List.of(websiteColumn, usernameColumn, passwordColumn));
+        return table;
+    }
+
+    /*
+     * Creates a progress indicator for work running in the background.
+     */
+    public static ProgressIndicator createProgressIndicator() {
+        ProgressIndicator indicator = new ProgressIndicator();
+        indicator.setPrefSize(35, 35);
+        return indicator;
+    }
+
 
     /**
      * Gets the png image and returns the image.
@@ -0,0 +1,233 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A streaming reader of JSON. Arrays and objects can be walked one element at a
+ * time, so that a large export is never held in memory, and single values are
+ * read into maps, lists, strings, numbers as strings, booleans and nulls.
+ * Values that are not needed can be skipped without reading them into memory.
+ * Arrays and objects may be nested at most MAX_DEPTH levels deep.
+ */
+public class JsonReader {
+    static final int MAX_DEPTH = 64;
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int position = 0;
+    private int limit = 0;
+    // Whether the next element of the current array or object is its first one
+    private boolean first;
+    // Whether each enclosing array or object is an object, outermost first
+    private final boolean[] objects = new boolean[MAX_DEPTH];
+    private int depth = 0;
+
+    public JsonReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /*
+     * A function to get the first character of the next token without consuming it,
+     * or -1 at the end of the input.
+     */
+    public int peek() throws IOException {
+        skipWhitespace();
+        if (position == limit && !fill()) return -1;
+        return buffer[position];
+    }
+
+    /*
+     * Functions to enter an array or an object. The elements are then read while hasNext is true.
+     */
+    public void beginArray() throws IOException {
+        begin('[', false);
+    }
+
+    public void beginObject() throws IOException {
+        begin('{', true);
+    }
+
+    private void begin(char bracket, boolean object) throws IOException {
+        expect(bracket);
+        if (depth == MAX_DEPTH) throw new IOException("JSON is nested deeper than " + MAX_DEPTH + " levels");
+        objects[depth++] = object;
+        first = true;
+    }
+
+    /*
+     * A function to check if the current array or object has more elements.
+     * The closing bracket is consumed when there are none.
+     */
+    public boolean hasNext() throws IOException {
+        int c = peek();
+        if (c == ']' || c == '}') {
+            if (depth == 0 || objects[depth - 1] != (c == '}')) {
+                throw new IOException("Unexpected '" + (char) c + "' in JSON");
+            }
+            position++;
+            depth--;
+            first = false;
+            return false;
+        }
+        if (!first) expect(',');
+        first = false;
+        return true;
+    }
+
+    /*
+     * A function to read the name of the next member of an object.
+     */
+    public String nextName() throws IOException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    /*
+     * A function to read a value, including nested arrays and objects.
+     */
+    public Object nextValue() throws IOException {
+        int c = peek();
+        switch (c) {
+            case '{': {
+                Map<String, Object> object = new LinkedHashMap<>();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    object.put(name, nextValue());
+                }
+                return object;
+            }
+            case '[': {
+                List<Object> array = new ArrayList<>();
+                beginArray();
+                while (hasNext()) {
+                    array.add(nextValue());
+                }
+                return array;
+            }
+            case '"':
+                return nextString();
+            case -1:
+                throw new IOException("Unexpected end of JSON");
+            default:
+                return nextLiteral();
+        }
+    }
+
+    /*
+     * A function to skip a value, including nested arrays and objects, without
+     * reading it into memory.
+     */
+    public void skipValue() throws IOException {
+        int start = depth;
+        do {
+            if (depth > start && !hasNext()) continue;
+            if (depth > start && objects[depth - 1]) nextName();
+            switch (peek()) {
+                case '{': beginObject(); break;
+                case '[': beginArray(); break;
+                case '"': skipString(); break;
+                case -1: throw new IOException("Unexpected end of JSON");
+                default: nextLiteral();
+            }
+        } while (depth > start);
+    }
+
+    private String nextString() throws IOException {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        int c;
+        while ((c = read()) != '"') {
+            if (c == -1) throw new IOException("Unterminated string in JSON");
+            if (c != '\\') {
+                value.append((char) c);
+                continue;
+            }
+            c = read();
+            switch (c) {
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(read(), 16);
+                        if (digit < 0) throw new IOException("Invalid unicode escape in JSON");
+                        code = code * 16 + digit;
+                    }
+                    value.append((char) code);
+                    break;
+                case -1: throw new IOException("Unterminated string in JSON");
+                default: value.append((char) c);
+            }
+        }
+        return value.toString();
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+        int c;
+        while ((c = read()) != '"') {
+            if (c == -1) throw new IOException("Unterminated string in JSON");
+            if (c == '\\' && read() == -1) throw new IOException("Unterminated string in JSON");
+        }
+    }
+
+    private Object nextLiteral() throws IOException {
+        StringBuilder literal = new StringBuilder();
+        int c;
+        while ((c = peekChar()) != -1 && c != ',' && c != ']' && c != '}' && c != ':'
+               && !Character.isWhitespace(c)) {
+            literal.append((char) read());
+        }
+        String value = literal.toString();
+        switch (value) {
+            case "true": return Boolean.TRUE;
+            case "false": return Boolean.FALSE;
+            case "null": return null;
+            default:
+                if (value.isEmpty() || !value.matches("-?[0-9][0-9.eE+-]*")) {
+                    throw new IOException("Invalid value in JSON: " + value);
+                }
+                return value;
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peek() != expected) throw new IOException("Expected '" + expected + "' in JSON");
+        position++;
+    }
+
+    private void skipWhitespace() throws IOException {
+        int c;
+        while ((c = peekChar()) != -1 && Character.isWhitespace(c)) {
+            position++;
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position++];
+    }
+
+    private int peekChar() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        limit = reader.read(buffer);
+        position = 0;
+        if (limit > 0) return true;
+        limit = 0;
+        return false;
+    }
+}
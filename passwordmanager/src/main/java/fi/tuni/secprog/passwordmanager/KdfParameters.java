@@ -0,0 +1,52 @@
+package fi.tuni.secprog.passwordmanager;
+
+/*
+ * The key derivation parameters of a user, stored in the users table.
+ */
+public class KdfParameters {
+
+    // The parameters used before they were stored per user
+    public static final KdfParameters LEGACY = new KdfParameters("PBKDF2WithHmacSHA256", 100_000);
+
+    private final String algorithm;
+    private final int iterations;
+
+    public KdfParameters(String algorithm, int iterations) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /*
+     * A function to check if these parameters should be upgraded to the target.
+     * Small differences in the iteration count are ignored, so that the noise of
+     * calibration does not re-encrypt the vault on every login.
+     */
+    public boolean isWeakerThan(KdfParameters target) {
+        return !algorithm.equals(target.algorithm) || (long) iterations * 5 < (long) target.iterations * 4;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof KdfParameters)) return false;
+        KdfParameters parameters = (KdfParameters) other;
+        return algorithm.equals(parameters.algorithm) && iterations == parameters.iterations;
+    }
+
+    @Override
+    public int hashCode() {
+        return algorithm.hashCode() * 31 + iterations;
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + " x " + iterations;
+    }
+}
@@ -0,0 +1,160 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+/*
+ * A class to derive keys with the registered key derivation functions, and to
+ * calibrate their work factors to a wall-clock budget on the current hardware.
+ * New users get the calibrated parameters, existing users are upgraded to them
+ * on their next login. The work factors never go below the legacy ones.
+ */
+public class KeyDerivation {
+    public static final String DEFAULT_ALGORITHM = "PBKDF2WithHmacSHA256";
+    public static final long DEFAULT_KDF_BUDGET = 500; // in milliseconds
+    public static final long DEFAULT_BCRYPT_BUDGET = 250; // in milliseconds
+
+    private static final int MIN_ITERATIONS = KdfParameters.LEGACY.getIterations();
+    private static final int MAX_ITERATIONS = 10_000_000;
+    private static final int ITERATION_STEP = 10_000;
+    private static final int SAMPLE_ITERATIONS = 20_000;
+    private static final int MIN_BCRYPT_COST = 12;
+    private static final int MAX_BCRYPT_COST = 16;
+    private static final int SAMPLE_BCRYPT_COST = 8;
+
+    private static final Map<String, KeyDerivationFunction> functions = new ConcurrentHashMap<>();
+    private static String algorithm = DEFAULT_ALGORITHM;
+    private static long kdfBudget = DEFAULT_KDF_BUDGET;
+    private static long bcryptBudget = DEFAULT_BCRYPT_BUDGET;
+    private static KdfParameters targetParameters;
+    private static int targetBcryptCost;
+
+    static {
+        register("PBKDF2WithHmacSHA256", pbkdf2("PBKDF2WithHmacSHA256"));
+        register("PBKDF2WithHmacSHA512", pbkdf2("PBKDF2WithHmacSHA512"));
+    }
+
+    /*
+     * A function to register a key derivation function under a name,
+     * which is stored as the kdf_algorithm of the users deriving with it.
+     */
+    public static void register(String name, KeyDerivationFunction function) {
+        functions.put(name, function);
+    }
+
+    /*
+     * A function to derive a key with the given parameters.
+     */
+    public static byte[] derive(KdfParameters parameters, char[] password, byte[] salt, int keyLength)
+            throws GeneralSecurityException {
+        KeyDerivationFunction function = functions.get(parameters.getAlgorithm());
+        if (function == null) {
+            throw new GeneralSecurityException("Unknown key derivation function: " +
+                                               parameters.getAlgorithm());
+        }
+        return function.derive(password, salt, parameters.getIterations(), keyLength);
+    }
+
+    /*
+     * A function to set the algorithm for new keys and the wall-clock budgets that
+     * the key derivation and the BCrypt password hash are calibrated to.
+     */
+    public static synchronized void configure(String newAlgorithm, long kdfMillis, long bcryptMillis) {
+        algorithm = newAlgorithm;
+        kdfBudget = kdfMillis;
+        bcryptBudget = bcryptMillis;
+        targetParameters = null;
+    }
+
+    /*
+     * A function to pin the target parameters instead of calibrating them.
+     */
+    public static synchronized void setTarget(KdfParameters parameters, int bcryptCost) {
+        targetParameters = parameters;
+        targetBcryptCost = bcryptCost;
+    }
+
+    /*
+     * Functions to get the target parameters, calibrating them on the first call.
+     */
+    public static synchronized KdfParameters getTargetParameters() {
+        if (targetParameters == null) calibrate();
+        return targetParameters;
+    }
+
+    public static synchronized int getTargetBcryptCost() {
+        if (targetParameters == null) calibrate();
+        return targetBcryptCost;
+    }
+
+    /*
+     * A function to get the cost of a BCrypt hash, e.g. 12 from "$2a$12$...".
+     */
+    public static int getBcryptCost(String hash) {
+        return Integer.parseInt(hash.substring(4, 6));
+    }
+
+    /*
+     * A function to measure the key derivation and BCrypt on this machine and
+     * pick the largest work factors that fit in the budgets.
+     */
+    private static void calibrate() {
+        int iterations = MIN_ITERATIONS;
+        try {
+            iterations = calibrateIterations();
+        } catch (GeneralSecurityException e) {
+            System.err.println("Error calibrating the key derivation: " + e.getMessage());
+        }
+        targetParameters = new KdfParameters(algorithm, iterations);
+        targetBcryptCost = calibrateBcryptCost();
+    }
+
+    private static int calibrateIterations() throws GeneralSecurityException {
+        KdfParameters sample = new KdfParameters(algorithm, SAMPLE_ITERATIONS);
+        char[] password = "calibration".toCharArray();
+        byte[] salt = new byte[16];
+        // The first run warms up the JIT
+        derive(new KdfParameters(algorithm, 1_000), password, salt, 256);
+
+        long start = System.nanoTime();
+        derive(sample, password, salt, 256);
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+
+        long iterations = kdfBudget * 1_000_000 * SAMPLE_ITERATIONS / elapsed;
+        iterations = iterations / ITERATION_STEP * ITERATION_STEP;
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+    }
+
+    private static int calibrateBcryptCost() {
+        BCrypt.hashpw("calibration", BCrypt.gensalt(4));
+
+        long start = System.nanoTime();
+        BCrypt.hashpw("calibration", BCrypt.gensalt(SAMPLE_BCRYPT_COST));
+        long elapsed = System.nanoTime() - start;
+
+        // Every step of the cost doubles the work
+        int cost = SAMPLE_BCRYPT_COST;
+        while (cost < MAX_BCRYPT_COST && elapsed * 2 <= bcryptBudget * 1_000_000) {
+            cost++;
+            elapsed *= 2;
+        }
+        return Math.max(MIN_BCRYPT_COST, cost);
+    }
+
+    private static KeyDerivationFunction pbkdf2(String name) {
+        return (password, salt, iterations, keyLength) -> {
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyLength);
+            try {
+                return SecretKeyFactory.getInstance(name).generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        };
+    }
+}
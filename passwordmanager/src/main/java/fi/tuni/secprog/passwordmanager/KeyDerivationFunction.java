@@ -0,0 +1,12 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.security.GeneralSecurityException;
+
+/*
+ * A password based key derivation function, registered in KeyDerivation by name.
+ * The work factor is given as a number of iterations.
+ */
+public interface KeyDerivationFunction {
+    byte[] derive(char[] password, byte[] salt, int iterations, int keyLength)
+        throws GeneralSecurityException;
+}
@@ -0,0 +1,311 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+/*
+ * A single login attempt of a user. The user row is read once when the session
+ * is started and carried through the password and TOTP steps, so the steps
+ * do not query the users table again. A failed step updates the attempt counter
+ * and the lockout in one transaction, a successful login resets them.
+ * Once the password is correct, the encryption key is derived in the background
+ * while the user enters the TOTP code, and unwraps the data keys of the vault.
+ * After a successful login, a master password change interrupted before the data keys
+ * is finished, a user from before the data keys gets one, a password hash or key
+ * derivation weaker than the calibrated target is upgraded, and the entries of older
+ * data keys are re-encrypted in the background.
+ */
+public class LoginSession {
+
+    public static final int MAX_ATTEMPTS = 5;
+    public static final int TIMEOUT = 5; // in minutes
+
+    private final String username;
+    private final int id;
+    private final String passwordHash;
+    private final String totpSecret;
+    private final String salt;
+    private final KdfParameters kdfParameters;
+    private Timestamp lockoutUntil;
+    private boolean passwordVerified = false;
+    private DerivedKeySlot pendingKey;
+
+    // The latest upgrade of the parameters, which runs after the login
+    private static volatile Future<?> upgrade = CompletableFuture.completedFuture(null);
+
+    private LoginSession(String username, ResultSet rs) throws SQLException {
+        this.username = username;
+        this.id = rs.getInt("id");
+        this.passwordHash = rs.getString("password_hash");
+        this.totpSecret = rs.getString("totp_secret");
+        this.salt = rs.getString("salt");
+        this.kdfParameters = new KdfParameters(rs.getString("kdf_algorithm"), rs.getInt("kdf_iterations"));
+        this.lockoutUntil = rs.getTimestamp("lockout_until");
+    }
+
+    /*
+     * A function to start a login by reading the user row.
+     * Returns null if there is no such user or the row could not be read.
+     */
+    public static LoginSession start(String username) {
+        String sql = "SELECT id, password_hash, totp_secret, salt, kdf_algorithm, kdf_iterations, " +
+                     "lockout_until " +
+                     "FROM users " +
+                     "WHERE username = ?";
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, username);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) return new LoginSession(username, rs);
+        } catch (SQLException e) {
+            System.err.println("Error during SQL query: " + e.getMessage());
+        }
+        return null;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /*
+     * A function to check if the account is locked.
+     */
+    public boolean isLocked() {
+        return lockoutUntil != null && lockoutUntil.toInstant().isAfter(Instant.now());
+    }
+
+    public boolean isPasswordVerified() {
+        return passwordVerified;
+    }
+
+    /*
+     * A function to check the password of the user. A locked account is rejected
+     * without checking the password. A wrong password is counted as a failed attempt.
+     */
+    public boolean checkPassword(char[] password) {
+        if (isLocked()) return false;
+        passwordVerified = BCrypt.checkpw(new String(password), passwordHash);
+        if (!passwordVerified) {
+            recordFailedAttempt();
+            return false;
+        }
+        discard();
+        pendingKey = DerivedKeySlot.derive(password, salt, kdfParameters);
+        return true;
+    }
+
+    /*
+     * A function to take the password of a user registered just before as checked,
+     * without running BCrypt on it again, and derive the key in the background.
+     */
+    void acceptRegisteredPassword(char[] password) {
+        passwordVerified = true;
+        discard();
+        pendingKey = DerivedKeySlot.derive(password, salt, kdfParameters);
+    }
+
+    /*
+     * A function to verify the TOTP code once the password has been checked.
+     * On success the data keys are stored, the user is logged in, the failed
+     * attempts are reset. Outdated parameters are upgraded in the background,
+     * and the vault is re-encrypted and indexed in the background where needed.
+     * A wrong code is counted as a failed attempt.
+     */
+    public boolean verifyTOTP(char[] password, String userInput) {
+        if (!passwordVerified || isLocked()) return false;
+        try {
+            // Use the key derived in the background, derive it now only if it is gone
+            SecretKeySpec key = pendingKey != null ? pendingKey.take() : null;
+            pendingKey = null;
+            SecretKeySpec oldPasswordKey = key != null ? key : AESUtil.deriveKey(password, salt, kdfParameters);
+            if (!DataKeys.load(id, oldPasswordKey)) throw new Exception("The vault could not be opened");
+
+            if (TOTPUtil.verifyTOTP(userInput, AESUtil.decrypt(totpSecret))) {
+                // The password typed is no longer the master password once a change is finished
+                SecretKeySpec passwordKey = MasterPasswordChange.finishLegacyChange(id, oldPasswordKey);
+                if (passwordKey == null) throw new Exception("The password change could not be finished");
+                boolean changed = passwordKey != oldPasswordKey;
+                if (changed && !DataKeys.load(id, passwordKey)) throw new Exception("The vault could not be opened");
+
+                UserAuthentication.setUserId(id);
+                resetFailedAttempts();
+                if (AESKeyHolder.getKeyVersion() == 0) DataKeys.rotate(id, passwordKey);
+                if (AESKeyHolder.getIndexKey() == null) DataKeys.createIndexKey(id, passwordKey);
+                if (!changed) {
+                    char[] upgradePassword = password.clone();
+                    upgrade = BackgroundTasks.submit(() -> {
+                        try {
+                            upgradeParameters(upgradePassword, passwordKey);
+                        } finally {
+                            Arrays.fill(upgradePassword, ' ');
+                        }
+                        return null;
+                    });
+                }
+                DataKeys.migrateInBackground(id);
+                PasswordIndex.backfillInBackground(id);
+                return true;
+            }
+            recordFailedAttempt();
+        } catch (Exception e) {
+            System.err.println("Error during TOTP verification: " + e.getMessage());
+        } finally {
+            // Clear the password from memory after use
+            Arrays.fill(password, ' ');
+        }
+        AESKeyHolder.clearKey();
+        return false;
+    }
+
+    /*
+     * A function to discard the key derived in the background, e.g. when the login is abandoned.
+     */
+    public void discard() {
+        if (pendingKey != null) {
+            pendingKey.discard();
+            pendingKey = null;
+        }
+    }
+
+    /*
+     * A function to wait for the latest upgrade of the parameters to finish, e.g. before
+     * the password key is derived again for a password change.
+     */
+    static void awaitUpgrade() {
+        try {
+            upgrade.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error in upgrading the key derivation: " + e.getMessage());
+        }
+    }
+
+    /*
+     * A function to upgrade the password hash and the key derivation of the user to the
+     * calibrated targets. A new password key means rewrapping the data keys, which is
+     * done in the same transaction. On failure the old parameters are kept.
+     */
+    private void upgradeParameters(char[] password, SecretKeySpec passwordKey) {
+        int bcryptCost = KeyDerivation.getTargetBcryptCost();
+        KdfParameters target = KeyDerivation.getTargetParameters();
+        boolean rehash = KeyDerivation.getBcryptCost(passwordHash) < bcryptCost;
+        boolean rekey = kdfParameters.isWeakerThan(target);
+        if (!rehash && !rekey) return;
+
+        String updateHash = "UPDATE users SET password_hash = ? WHERE id = ?";
+        String updateKey = "UPDATE users " +
+                           "SET salt = ?, kdf_algorithm = ?, kdf_iterations = ? " +
+                           "WHERE id = ?";
+        try (Connection conn = DatabaseHelper.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                if (rehash) {
+                    try (PreparedStatement pstmt = conn.prepareStatement(updateHash)) {
+                        pstmt.setString(1, BCrypt.hashpw(new String(password), BCrypt.gensalt(bcryptCost)));
+                        pstmt.setInt(2, id);
+                        pstmt.executeUpdate();
+                    }
+                }
+                if (rekey) {
+                    String newSalt = AESUtil.generateSalt();
+                    SecretKeySpec newKey = AESUtil.deriveKey(password, newSalt, target);
+                    try (PreparedStatement pstmt = conn.prepareStatement(updateKey)) {
+                        pstmt.setString(1, newSalt);
+                        pstmt.setString(2, target.getAlgorithm());
+                        pstmt.setInt(3, target.getIterations());
+                        pstmt.setInt(4, id);
+                        pstmt.executeUpdate();
+                    }
+                    DataKeys.rewrap(conn, id, passwordKey, newKey);
+                }
+                conn.commit();
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (Exception e) {
+            System.err.println("Error in upgrading the key derivation: " + e.getMessage());
+        }
+    }
+
+    /*
+     * A function to count a failed attempt. If the user has failed 5 times and
+     * the last failed login is within 5 minutes, the account is locked for 5 minutes
+     * instead. The counter is read again inside the transaction, so concurrent
+     * attempts are not lost.
+     */
+    private void recordFailedAttempt() {
+        String select = "SELECT failed_attempts, last_failed_login FROM users WHERE id = ?";
+        String count = "UPDATE users " +
+                       "SET failed_attempts = failed_attempts + 1, last_failed_login = ? " +
+                       "WHERE id = ?";
+        String lock = "UPDATE users SET lockout_until = ? WHERE id = ?";
+
+        try (Connection conn = DatabaseHelper.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement selectStmt = conn.prepareStatement(select)) {
+                selectStmt.setInt(1, id);
+                ResultSet rs = selectStmt.executeQuery();
+                if (!rs.next()) {
+                    conn.rollback();
+                    return;
+                }
+                int attempts = rs.getInt("failed_attempts");
+                Timestamp lastFailedLogin = rs.getTimestamp("last_failed_login");
+                rs.close();
+
+                LocalDateTime allowedTime = LocalDateTime.now().minusMinutes(TIMEOUT);
+                boolean shouldLock = (attempts + 1) >= MAX_ATTEMPTS && lastFailedLogin != null &&
+                                     lastFailedLogin.toLocalDateTime().isAfter(allowedTime);
+                Timestamp lockUntil = Timestamp.valueOf(LocalDateTime.now().plusMinutes(TIMEOUT));
+                try (PreparedStatement updateStmt = conn.prepareStatement(shouldLock ? lock : count)) {
+                    updateStmt.setTimestamp(1, shouldLock ? lockUntil : Timestamp.valueOf(LocalDateTime.now()));
+                    updateStmt.setInt(2, id);
+                    updateStmt.executeUpdate();
+                }
+                conn.commit();
+                if (shouldLock) lockoutUntil = lockUntil;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error during SQL query: " + e.getMessage());
+        }
+    }
+
+    /*
+     * A function to reset the failed attempts and the lockout after a successful login.
+     */
+    private void resetFailedAttempts() {
+        String sql = "UPDATE users " +
+                     "SET failed_attempts = 0, last_failed_login = NULL, lockout_until = NULL " +
+                     "WHERE id = ?";
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, id);
+            pstmt.executeUpdate();
+            lockoutUntil = null;
+        } catch (SQLException e) {
+            System.err.println("Error during SQL query: " + e.getMessage());
+        }
+    }
+}
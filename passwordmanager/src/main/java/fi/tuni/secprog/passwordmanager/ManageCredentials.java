@@ -6,7 +6,14 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.crypto.spec.SecretKeySpec;
 
 /*
  * This class contains methods to manage the credentials of the user.
@@ -23,10 +30,33 @@ public class ManageCredentials {
 
     private static final SecureRandom random = new SecureRandom();
 
+    // Background writer for the asynchronous credential changes
+    private static final CredentialWriteQueue writeQueue = new CredentialWriteQueue(20);
+
+    // Vaults smaller than this are decrypted sequentially
+    private static final int PARALLEL_DECRYPT_THRESHOLD = 64;
+
+    // Decrypted vault of the logged in user within 32 MiB, about 100k entries, wiped after 5 idle minutes
+    private static final VaultCache vaultCache = new VaultCache(32L << 20, 5 * 60 * 1000);
+
+    // Search index over the site names of the logged in user, built on first use
+    private static final Object searchIndexLock = new Object();
+    private static SiteSearchIndex searchIndex;
+    private static int searchIndexUser;
+
     /*
      * A function to generate a cyber secure random password of a given length.
+     * A password on the local list of breached passwords is generated again.
      */
     public static String generatePassword(int length) {
+        String password;
+        do {
+            password = generateCandidate(length);
+        } while (BreachCorpus.isBreached(password));
+        return password;
+    }
+
+    private static String generateCandidate(int length) {
         StringBuilder password = new StringBuilder(length);
 
         // Ensure at least one char from each category
@@ -83,21 +113,41 @@ public class ManageCredentials {
 
     /*
      * A function to get username and password for a certain website from the database.
+     * The entry read is cached for the next lookups.
      */
     public static List<String> getCredentials(String siteName) {
-        String sql = "SELECT site_username, site_password " +
+        int userId = UserAuthentication.getUserId();
+        List<VaultEntry> cached = vaultCache.find(userId, siteName);
+        if (cached != null) {
+            if (cached.isEmpty()) return null;
+            VaultEntry entry = cached.get(0);
+            List<String> credentials = List.of(entry.getUsername(), entry.getPassword());
+            entry.wipe();
+            return credentials;
+        }
+        long snapshot = vaultCache.getGeneration();
+
+        String sql = "SELECT site_username, site_password, key_version " +
                      "FROM credentials " +
                      "WHERE user_id = ? AND site_name = ?";
         try (Connection conn = DatabaseHelper.getConnection();
             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setInt(1, UserAuthentication.getUserId());
+            pstmt.setInt(1, userId);
             pstmt.setString(2, siteName);
             ResultSet rs = pstmt.executeQuery();
             
             if (!rs.next()) return null;
-            String username = AESUtil.decrypt(rs.getString("site_username"));
-            String password = AESUtil.decrypt(rs.getString("site_password"));
-            return List.of(username, password);
+            int keyVersion = rs.getInt("key_version");
+            byte[] username = AESUtil.decrypt(DatabaseHelper.toBlob(rs.getObject("site_username")), keyVersion);
+            VaultEntry entry = VaultEntry.decrypted(siteName, username,
+                                                    DatabaseHelper.toBlob(rs.getObject("site_password")),
+                                                    keyVersion);
+            String password = entry.getPassword();
+            if (password == null) throw new Exception("The password could not be decrypted");
+            vaultCache.putEntry(userId, snapshot, entry);
+            List<String> credentials = List.of(entry.getUsername(), password);
+            entry.wipe();
+            return credentials;
         } catch (SQLException e) {
             System.err.println("Error in retrieveing the password: " + e.getMessage());
         } catch (Exception e) {
@@ -107,77 +157,284 @@ public class ManageCredentials {
     }
 
     /*
-     * A function to check if the user already has credentials for the site.
+     * A function to get all credentials of the logged in user with a single query.
+     * Returns the entries in the order they were stored, or null on error.
+     * The decrypted vault is cached until it is changed.
      */
-    private static boolean doCredentialsExist(String siteName) {
-        String sql1 = "SELECT site_name " +
-                      "FROM credentials " +
-                      "WHERE user_id = ? AND site_name = ?";
-        try (Connection conn = DatabaseHelper.getConnection();
-            PreparedStatement pstmt = conn.prepareStatement(sql1)) {
+    public static List<VaultEntry> getAllCredentials() {
+        int userId = UserAuthentication.getUserId();
+        List<VaultEntry> cached = vaultCache.get(userId);
+        if (cached != null) return cached;
+        long snapshot = vaultCache.getGeneration();
 
-            pstmt.setInt(1, UserAuthentication.getUserId());
-            pstmt.setString(2, siteName);
-
-            // Execute the query and return false if user already has credentials for the site
+        String sql = "SELECT site_name, site_username, site_password, key_version " +
+                     "FROM credentials " +
+                     "WHERE user_id = ? " +
+                     "ORDER BY id";
+        try (Connection conn = DatabaseHelper.getConnection();
+            PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
             ResultSet rs = pstmt.executeQuery();
-            return rs.next();
+
+            // Read the encrypted rows first, so the decryption can run in parallel
+            ArrayList<EncryptedRow> rows = new ArrayList<>();
+            while (rs.next()) {
+                rows.add(new EncryptedRow(rs.getString("site_name"),
+                                          DatabaseHelper.toBlob(rs.getObject("site_username")),
+                                          DatabaseHelper.toBlob(rs.getObject("site_password")),
+                                          rs.getInt("key_version")));
+            }
+            List<VaultEntry> entries = decryptEntries(rows);
+            vaultCache.put(userId, snapshot, entries);
+            return entries;
         } catch (SQLException e) {
-            System.err.println("Error in checking the credentials: " + e.getMessage());
-            return true;
+            System.err.println("Error in retrieveing the credentials: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error in decrypting the credentials: " + e.getMessage());
         }
+        return null;
+    }
+
+    /*
+     * A function to decrypt encrypted rows into entries.
+     * Large vaults are decrypted in parallel on the common fork-join pool,
+     * small ones on the caller's thread. The order of the rows is kept.
+     */
+    static List<VaultEntry> decryptEntries(List<EncryptedRow> rows) throws Exception {
+        IntStream indices = IntStream.range(0, rows.size());
+        if (rows.size() >= PARALLEL_DECRYPT_THRESHOLD) indices = indices.parallel();
+        try {
+            return indices.mapToObj(i -> decryptEntry(rows.get(i)))
+                          .collect(Collectors.toList());
+        } catch (UncheckedDecryptionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /*
+     * A function to decrypt a single encrypted row into an entry.
+     * Only the username is decrypted for display, the password stays encrypted
+     * until it is needed.
+     */
+    private static VaultEntry decryptEntry(EncryptedRow row) {
+        try {
+            return VaultEntry.decrypted(row.siteName, AESUtil.decrypt(row.username, row.keyVersion),
+                                        row.password, row.keyVersion);
+        } catch (Exception e) {
+            throw new UncheckedDecryptionException(e);
+        }
+    }
+
+    /*
+     * A function to encrypt a value with the given data key into the storage format
+     * selected in DatabaseHelper, either BLOB bytes or Base64 text. The row must be
+     * written with the version of the same key.
+     */
+    static Object encryptField(String value, AESKeyHolder.DataKey key) throws Exception {
+        byte[] ciphertext = AESUtil.getEngine().encrypt(key.getKey(), value.getBytes());
+        if (DatabaseHelper.isBlobCiphertext()) return ciphertext;
+        return Base64.getEncoder().encodeToString(ciphertext);
+    }
+
+    /*
+     * A function to encrypt a value and bind it in the storage format selected in DatabaseHelper.
+     */
+    private static void setEncryptedField(PreparedStatement pstmt, int index, String value,
+                                          AESKeyHolder.DataKey key) throws Exception {
+        pstmt.setObject(index, encryptField(value, key));
     }
 
+    /*
+     * An encrypted credentials row as read from the database, with the version of its data key.
+     */
+    static class EncryptedRow {
+        final String siteName;
+        final byte[] username;
+        final byte[] password;
+        final int keyVersion;
+
+        EncryptedRow(String siteName, byte[] username, byte[] password, int keyVersion) {
+            this.siteName = siteName;
+            this.username = username;
+            this.password = password;
+            this.keyVersion = keyVersion;
+        }
+    }
+
+    /*
+     * Carries a decryption failure out of a stream.
+     */
+    private static class UncheckedDecryptionException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UncheckedDecryptionException(Exception cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized Exception getCause() {
+            return (Exception) super.getCause();
+        }
+    }
+
+    // Inserts a row unless the user already has credentials for the site
+    static final String INSERT_SQL = "INSERT INTO credentials " +
+                                             "(user_id, site_name, site_username, site_password, password_index, " +
+                                             "key_version) " +
+                                             "VALUES (?, ?, ?, ?, ?, ?) " +
+                                             "ON CONFLICT (user_id, site_name) DO NOTHING";
+    // Inserts a row or overwrites the credentials the user already has for the site
+    static final String UPSERT_SQL = "INSERT INTO credentials " +
+                                     "(user_id, site_name, site_username, site_password, password_index, " +
+                                     "key_version) " +
+                                     "VALUES (?, ?, ?, ?, ?, ?) " +
+                                     "ON CONFLICT (user_id, site_name) DO UPDATE " +
+                                     "SET site_username = excluded.site_username, " +
+                                     "site_password = excluded.site_password, " +
+                                     "password_index = excluded.password_index, " +
+                                     "key_version = excluded.key_version";
+    static final String UPDATE_SQL = "UPDATE credentials " +
+                                     "SET site_username = ?, site_password = ?, password_index = ?, key_version = ? " +
+                                     "WHERE user_id = ? AND site_name = ?";
+    static final String DELETE_SQL = "DELETE FROM credentials " +
+                                     "WHERE user_id = ? AND site_name = ?";
+
     /*
      * A function to save a new password to the database.
+     * Returns true if a new row was created, false if the user already
+     * has credentials for the site or on error.
      */
     public static boolean storeKey(String siteName, String username, String password) {
-        // Check if the user already has credentials for the site
-        if (doCredentialsExist(siteName)) return false;
-
-        String sql2 = "INSERT INTO credentials " +
-                      "(user_id, site_name, site_username, site_password) " +
-                      "VALUES (?, ?, ?, ?)";
-    
+        DataKeys.beginWrite();
         try (Connection conn = DatabaseHelper.getConnection();
-            PreparedStatement pstmt = conn.prepareStatement(sql2)) {
+            PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL)) {
 
             // Encrypt the credentials before storing them
-            String encryptedUsername = AESUtil.encrypt(username);
-            String encryptedPass = AESUtil.encrypt(password);
+            AESKeyHolder.DataKey key = AESKeyHolder.getDataKey();
             pstmt.setInt(1, UserAuthentication.getUserId());
             pstmt.setString(2, siteName);
-            pstmt.setString(3, encryptedUsername);
-            pstmt.setString(4, encryptedPass);
+            setEncryptedField(pstmt, 3, username, key);
+            setEncryptedField(pstmt, 4, password, key);
+            pstmt.setBytes(5, PasswordIndex.compute(password));
+            pstmt.setInt(6, key.getVersion());
 
-            // Execute the query and return true if the update was successful
+            // Execute the query and return true if a row was inserted
             int affectedRows = pstmt.executeUpdate();
+            if (affectedRows > 0) indexSite(UserAuthentication.getUserId(), siteName, true);
             return affectedRows > 0;
         } catch (SQLException e) {
             System.err.println("Error in storing the key: " + e.getMessage());
         } catch (Exception e) {
             System.err.println("Error in encrypting the password: " + e.getMessage());
+        } finally {
+            DataKeys.endWrite();
+            vaultCache.invalidate();
         }
         return false;
     }
 
+    /*
+     * A function to save many new passwords to the database in a single transaction.
+     * Sites the user already has credentials for are skipped.
+     * Returns the number of created rows, or -1 on error, in which case nothing is stored.
+     */
+    public static int storeKeys(List<VaultEntry> entries) {
+        DataKeys.beginWrite();
+        try (Connection conn = DatabaseHelper.getConnection();
+            PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL)) {
+            conn.setAutoCommit(false);
+            try {
+                AESKeyHolder.DataKey key = AESKeyHolder.getDataKey();
+                for (VaultEntry entry : entries) {
+                    pstmt.setInt(1, UserAuthentication.getUserId());
+                    pstmt.setString(2, entry.getSiteName());
+                    setEncryptedField(pstmt, 3, entry.getUsername(), key);
+                    setEncryptedField(pstmt, 4, entry.getPassword(), key);
+                    pstmt.setBytes(5, PasswordIndex.compute(entry.getPassword()));
+                    pstmt.setInt(6, key.getVersion());
+                    pstmt.addBatch();
+                }
+                int[] results = pstmt.executeBatch();
+                conn.commit();
+                int created = 0;
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] > 0) {
+                        indexSite(UserAuthentication.getUserId(), entries.get(i).getSiteName(), true);
+                        created++;
+                    }
+                }
+                return created;
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error in storing the keys: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error in encrypting the passwords: " + e.getMessage());
+        } finally {
+            DataKeys.endWrite();
+            vaultCache.invalidate();
+        }
+        return -1;
+    }
+
+    /*
+     * A function to save entries encrypted in advance, e.g. by an import, in a single transaction.
+     * Sites the user already has credentials for are overwritten if overwrite is set,
+     * otherwise skipped. The caller holds DataKeys.beginWrite from the encryption until
+     * this returns. Returns the number of changed rows of each entry.
+     */
+    static int[] storeEncrypted(int userId, List<VaultImporter.ImportEntry> entries, boolean overwrite)
+            throws SQLException {
+        try (Connection conn = DatabaseHelper.getConnection();
+            PreparedStatement pstmt = conn.prepareStatement(overwrite ? UPSERT_SQL : INSERT_SQL)) {
+            conn.setAutoCommit(false);
+            try {
+                for (VaultImporter.ImportEntry entry : entries) {
+                    pstmt.setInt(1, userId);
+                    pstmt.setString(2, entry.siteName);
+                    pstmt.setObject(3, entry.encryptedUsername);
+                    pstmt.setObject(4, entry.encryptedPassword);
+                    pstmt.setBytes(5, entry.passwordIndex);
+                    pstmt.setInt(6, entry.keyVersion);
+                    pstmt.addBatch();
+                }
+                int[] results = pstmt.executeBatch();
+                conn.commit();
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] > 0) indexSite(userId, entries.get(i).siteName, true);
+                }
+                return results;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            vaultCache.invalidate();
+        }
+    }
+
     /*
      * A function to update the credentials for a certain website in the database.
      */
     public static boolean updateKey(String siteName, String username, String password) {
-        String sql = "UPDATE credentials " +
-                     "SET site_username = ?, site_password = ? " +
-                     "WHERE user_id = ? AND site_name = ?";
+        DataKeys.beginWrite();
         try (Connection conn = DatabaseHelper.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+             PreparedStatement pstmt = conn.prepareStatement(UPDATE_SQL)) {
 
             // Encrypt the credentials before storing them
-            String encryptedUsername = AESUtil.encrypt(username);
-            String encryptedPass = AESUtil.encrypt(password);
-            pstmt.setString(1, encryptedUsername);
-            pstmt.setString(2, encryptedPass);
-            pstmt.setInt(3, UserAuthentication.getUserId());
-            pstmt.setString(4, siteName);
+            AESKeyHolder.DataKey key = AESKeyHolder.getDataKey();
+            setEncryptedField(pstmt, 1, username, key);
+            setEncryptedField(pstmt, 2, password, key);
+            pstmt.setBytes(3, PasswordIndex.compute(password));
+            pstmt.setInt(4, key.getVersion());
+            pstmt.setInt(5, UserAuthentication.getUserId());
+            pstmt.setString(6, siteName);
 
             // Execute the query and return true if the update was successful
             int affectedRows = pstmt.executeUpdate();
@@ -186,6 +443,9 @@ public class ManageCredentials {
             System.err.println("Error in updating the key: " + e.getMessage());
         } catch (Exception e) {
             System.err.println("Error in encrypting the password: " + e.getMessage());
+        } finally {
+            DataKeys.endWrite();
+            vaultCache.invalidate();
         }
         return false;
     }
@@ -194,20 +454,223 @@ public class ManageCredentials {
      * A function to delete the credentials for a certain website from the database.
      */
     public static boolean deleteKey(String siteName) {
-        String sql = "DELETE FROM credentials " +
-                     "WHERE user_id = ? AND site_name = ?";
         try (Connection conn = DatabaseHelper.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+             PreparedStatement pstmt = conn.prepareStatement(DELETE_SQL)) {
 
             pstmt.setInt(1, UserAuthentication.getUserId());
             pstmt.setString(2, siteName);
 
             // Execute the query and return true if the deletion was successful
             int affectedRows = pstmt.executeUpdate();
+            if (affectedRows > 0) indexSite(UserAuthentication.getUserId(), siteName, false);
             return affectedRows > 0;
         } catch (SQLException e) {
             System.err.println("Error in deleting the key: " + e.getMessage());
+        } finally {
+            vaultCache.invalidate();
         }
         return false;
     }
+
+    /*
+     * Functions to queue credential changes for the background writer instead of
+     * writing them on the caller's thread. The credentials are encrypted right away,
+     * and the returned future completes with the same result as the synchronous
+     * version once the change has been committed, or exceptionally on a database error.
+     * The cached vault and the search index are updated before the future completes.
+     * A change queued with a data key is committed before a new data key is taken into use.
+     */
+    public static CompletableFuture<Boolean> storeKeyAsync(String siteName, String username,
+                                                           String password) {
+        int userId = UserAuthentication.getUserId();
+        DataKeys.beginWrite();
+        try {
+            AESKeyHolder.DataKey key = AESKeyHolder.getDataKey();
+            return invalidateOnCompletion(writeQueue.store(userId, siteName, encryptField(username, key),
+                                                           encryptField(password, key),
+                                                           PasswordIndex.compute(password), key.getVersion()))
+                .whenComplete((isStored, e) -> {
+                    if (e == null && isStored) indexSite(userId, siteName, true);
+                });
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            DataKeys.endWrite();
+        }
+    }
+
+    public static CompletableFuture<Boolean> updateKeyAsync(String siteName, String username,
+                                                            String password) {
+        DataKeys.beginWrite();
+        try {
+            AESKeyHolder.DataKey key = AESKeyHolder.getDataKey();
+            return invalidateOnCompletion(writeQueue.update(UserAuthentication.getUserId(), siteName,
+                                                            encryptField(username, key), encryptField(password, key),
+                                                            PasswordIndex.compute(password), key.getVersion()));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            DataKeys.endWrite();
+        }
+    }
+
+    public static CompletableFuture<Boolean> deleteKeyAsync(String siteName) {
+        int userId = UserAuthentication.getUserId();
+        return invalidateOnCompletion(writeQueue.delete(userId, siteName))
+            .whenComplete((isDeleted, e) -> {
+                if (e == null && isDeleted) indexSite(userId, siteName, false);
+            });
+    }
+
+    private static CompletableFuture<Boolean> invalidateOnCompletion(CompletableFuture<Boolean> write) {
+        return write.whenComplete((result, e) -> vaultCache.invalidate());
+    }
+
+    /*
+     * A function to wait until every queued credential change has been committed.
+     */
+    public static void flushWrites() {
+        writeQueue.flush();
+    }
+
+    /*
+     * A function to wipe the cached vault and drop the search index, e.g. on logout.
+     */
+    public static void clearCache() {
+        vaultCache.invalidate();
+        synchronized (searchIndexLock) {
+            searchIndex = null;
+        }
+    }
+
+    /*
+     * A function to find the logged in user's websites that use the given password,
+     * with one query on the password index. Entries not indexed yet are not found.
+     * Returns null on error.
+     */
+    public static List<String> getWebsitesWithPassword(String password) {
+        String sql = "SELECT site_name " +
+                     "FROM credentials " +
+                     "WHERE user_id = ? AND password_index = ? " +
+                     "ORDER BY id";
+        try (Connection conn = DatabaseHelper.getConnection();
+            PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            byte[] index = PasswordIndex.compute(password);
+            if (index == null) return null;
+            pstmt.setInt(1, UserAuthentication.getUserId());
+            pstmt.setBytes(2, index);
+            ResultSet rs = pstmt.executeQuery();
+
+            ArrayList<String> websites = new ArrayList<>();
+            while (rs.next()) {
+                websites.add(rs.getString("site_name"));
+            }
+            return websites;
+        } catch (SQLException e) {
+            System.err.println("Error in finding the reused password: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error in indexing the password: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /*
+     * A function to get the groups of the logged in user's websites that share a password,
+     * without decrypting the vault. Returns null on error.
+     */
+    public static List<List<String>> getReusedPasswords() {
+        String sql = "SELECT password_index, site_name " +
+                     "FROM credentials " +
+                     "WHERE user_id = ? AND password_index IN " +
+                     "(SELECT password_index FROM credentials " +
+                     "WHERE user_id = ? AND password_index IS NOT NULL " +
+                     "GROUP BY password_index HAVING COUNT(*) > 1) " +
+                     "ORDER BY password_index, id";
+        try (Connection conn = DatabaseHelper.getConnection();
+            PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, UserAuthentication.getUserId());
+            pstmt.setInt(2, UserAuthentication.getUserId());
+            ResultSet rs = pstmt.executeQuery();
+
+            List<List<String>> groups = new ArrayList<>();
+            byte[] previous = null;
+            while (rs.next()) {
+                byte[] index = rs.getBytes("password_index");
+                if (!Arrays.equals(index, previous)) groups.add(new ArrayList<>());
+                groups.get(groups.size() - 1).add(rs.getString("site_name"));
+                previous = index;
+            }
+            return groups;
+        } catch (SQLException e) {
+            System.err.println("Error in finding the reused passwords: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * A function to search the logged in user's websites by name, best matches first.
+     * Returns at most limit site names, or null on error.
+     */
+    public static List<String> searchWebsites(String query, int limit) {
+        SiteSearchIndex index = getSearchIndex();
+        return index == null ? null : index.search(query, limit);
+    }
+
+    /*
+     * A function to build the search index ahead of the first search.
+     * Returns false on error.
+     */
+    public static boolean prepareSearch() {
+        return getSearchIndex() != null;
+    }
+
+    /*
+     * A function to get the search index of the logged in user, building it from
+     * getWebsites on first use. Changes to the credentials update it in place.
+     */
+    private static SiteSearchIndex getSearchIndex() {
+        synchronized (searchIndexLock) {
+            int userId = UserAuthentication.getUserId();
+            if (searchIndex == null || searchIndexUser != userId) {
+                List<String> websites = getWebsites();
+                if (websites == null) return null;
+                searchIndex = SiteSearchIndex.of(websites);
+                searchIndexUser = userId;
+            }
+            return searchIndex;
+        }
+    }
+
+    /*
+     * A function to add a stored site to the search index or remove a deleted one.
+     * Nothing is done if the index of the user has not been built yet.
+     */
+    private static void indexSite(int userId, String siteName, boolean stored) {
+        synchronized (searchIndexLock) {
+            if (searchIndex == null || searchIndexUser != userId) return;
+            if (stored) searchIndex.add(siteName);
+            else searchIndex.remove(siteName);
+        }
+    }
+
+    static VaultCache getVaultCache() {
+        return vaultCache;
+    }
+
+    /*
+     * A function to re-encrypt a stored ciphertext value, which is either a BLOB or Base64 text.
+     */
+    static Object reencryptField(Object storedValue, SecretKeySpec oldKey, SecretKeySpec newKey)
+            throws Exception {
+        byte[] plaintext = AESUtil.getEngine().decrypt(oldKey, DatabaseHelper.toBlob(storedValue));
+        return encryptAs(storedValue, plaintext, newKey);
+    }
+
+    private static Object encryptAs(Object storedValue, byte[] plaintext, SecretKeySpec key)
+            throws Exception {
+        byte[] encrypted = AESUtil.getEngine().encrypt(key, plaintext);
+        Arrays.fill(plaintext, (byte) 0);
+        if (storedValue instanceof byte[]) return encrypted;
+        return Base64.getEncoder().encodeToString(encrypted);
+    }
 }
@@ -0,0 +1,157 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+/*
+ * A class to change the master password of a user. The vault is encrypted with data
+ * keys wrapped with the key derived from the password (see DataKeys), so a change
+ * only rewraps them and switches the user row to the new password, in one
+ * transaction. No entry is re-encrypted, whatever the size of the vault.
+ *
+ * A change started before the data keys re-encrypted the vault itself, with a
+ * checkpoint in the key_rotations table. One interrupted then is finished on the
+ * next login with the old password, see finishLegacyChange.
+ */
+public class MasterPasswordChange {
+
+    /*
+     * A function to change the master password of the logged in user.
+     * Returns false if the current password is wrong or on error, in which case
+     * the old password stays in use.
+     */
+    public static boolean change(char[] currentPassword, char[] newPassword) {
+        int userId = UserAuthentication.getUserId();
+        String update = "UPDATE users " +
+                        "SET password_hash = ?, salt = ?, kdf_algorithm = ?, kdf_iterations = ? " +
+                        "WHERE id = ?";
+        try {
+            // The data keys must not be rewrapped by the upgrade of the login meanwhile
+            LoginSession.awaitUpgrade();
+            SecretKeySpec oldKey = DataKeys.derivePasswordKey(userId, currentPassword);
+            if (oldKey == null) return false;
+
+            KdfParameters parameters = KeyDerivation.getTargetParameters();
+            String salt = AESUtil.generateSalt();
+            SecretKeySpec newKey = AESUtil.deriveKey(newPassword, salt, parameters);
+            String newHash = BCrypt.hashpw(new String(newPassword),
+                                           BCrypt.gensalt(KeyDerivation.getTargetBcryptCost()));
+            try (Connection conn = DatabaseHelper.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement pstmt = conn.prepareStatement(update)) {
+                    DataKeys.rewrap(conn, userId, oldKey, newKey);
+                    pstmt.setString(1, newHash);
+                    pstmt.setString(2, salt);
+                    pstmt.setString(3, parameters.getAlgorithm());
+                    pstmt.setInt(4, parameters.getIterations());
+                    pstmt.setInt(5, userId);
+                    pstmt.executeUpdate();
+                    conn.commit();
+                } catch (Exception e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            System.err.println("Error in changing the master password: " + e.getMessage());
+            return false;
+        } finally {
+            Arrays.fill(currentPassword, ' ');
+            Arrays.fill(newPassword, ' ');
+        }
+    }
+
+    /*
+     * A function to finish a change of the master password that was interrupted before
+     * the data keys, given the key derived from the old password. The rows up to the
+     * checkpoint are encrypted with the key of the new password and the rest with the
+     * old one. The new password key becomes a data key of the former, the old one is
+     * kept wrapped as version 0 for the rest, and the user row is switched to the new
+     * password, so the rows are re-encrypted lazily like those of any older data key.
+     * Returns the new password key, the given key if no change is pending, or null on error.
+     */
+    static SecretKeySpec finishLegacyChange(int userId, SecretKeySpec oldKey) {
+        String table = "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'key_rotations'";
+        String select = "SELECT wrapped_key, password_hash, salt, kdf_algorithm, kdf_iterations, last_id " +
+                        "FROM key_rotations WHERE user_id = ?";
+        String next = "SELECT COALESCE(MAX(version), 0) + 1 FROM data_keys WHERE user_id = ?";
+        String insert = "INSERT INTO data_keys (user_id, version, wrapped_key) VALUES (?, ?, ?)";
+        String label = "UPDATE credentials SET key_version = ? WHERE user_id = ? AND id <= ? AND key_version = 0";
+        String update = "UPDATE users " +
+                        "SET password_hash = ?, salt = ?, kdf_algorithm = ?, kdf_iterations = ? " +
+                        "WHERE id = ?";
+        String delete = "DELETE FROM key_rotations WHERE user_id = ?";
+        try (Connection conn = DatabaseHelper.getConnection();
+             Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery(table);
+            boolean pending = rs.next();
+            rs.close();
+            if (!pending) return oldKey;
+            conn.setAutoCommit(false);
+            try (PreparedStatement selectStmt = conn.prepareStatement(select);
+                 PreparedStatement nextStmt = conn.prepareStatement(next);
+                 PreparedStatement insertStmt = conn.prepareStatement(insert);
+                 PreparedStatement labelStmt = conn.prepareStatement(label);
+                 PreparedStatement updateStmt = conn.prepareStatement(update);
+                 PreparedStatement deleteStmt = conn.prepareStatement(delete)) {
+                selectStmt.setInt(1, userId);
+                rs = selectStmt.executeQuery();
+                if (!rs.next()) return oldKey;
+                SecretKeySpec newKey = DataKeys.unwrap(oldKey, rs.getBytes("wrapped_key"));
+                String passwordHash = rs.getString("password_hash");
+                String salt = rs.getString("salt");
+                String algorithm = rs.getString("kdf_algorithm");
+                int iterations = rs.getInt("kdf_iterations");
+                long lastId = rs.getLong("last_id");
+                rs.close();
+
+                DataKeys.rewrap(conn, userId, oldKey, newKey);
+                nextStmt.setInt(1, userId);
+                rs = nextStmt.executeQuery();
+                int version = rs.next() ? rs.getInt(1) : 1;
+                rs.close();
+                insertStmt.setInt(1, userId);
+                insertStmt.setInt(2, version);
+                insertStmt.setBytes(3, DataKeys.wrap(newKey, newKey));
+                insertStmt.executeUpdate();
+                labelStmt.setInt(1, version);
+                labelStmt.setInt(2, userId);
+                labelStmt.setLong(3, lastId);
+                labelStmt.executeUpdate();
+
+                updateStmt.setString(1, passwordHash);
+                updateStmt.setString(2, salt);
+                updateStmt.setString(3, algorithm);
+                updateStmt.setInt(4, iterations);
+                updateStmt.setInt(5, userId);
+                updateStmt.executeUpdate();
+                deleteStmt.setInt(1, userId);
+                deleteStmt.executeUpdate();
+                rs = stmt.executeQuery("SELECT 1 FROM key_rotations");
+                boolean empty = !rs.next();
+                rs.close();
+                if (empty) stmt.execute("DROP TABLE key_rotations");
+                conn.commit();
+                return newKey;
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (Exception e) {
+            System.err.println("Error in finishing the master password change: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * A class for the blind index of the passwords. The passwords are encrypted with
+ * random IVs, so equal passwords have different ciphertexts; the password_index
+ * column holds an HMAC-SHA256 of each password with the index key of the user
+ * instead, which is equal for equal passwords but reveals nothing without the key.
+ * Finding the entries that share a password is then one indexed query.
+ *
+ * Every write of a password writes its index. Rows from before the index, or written
+ * without the index key, have none until they are indexed in the background after
+ * a login, in chunks like the re-encryption of the vault in DataKeys.
+ */
+public class PasswordIndex {
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(ALGORITHM);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // The latest backfill of the index
+    private static volatile Future<Integer> backfill = CompletableFuture.completedFuture(0);
+
+    /*
+     * A function to compute the index of a password with the index key in AESKeyHolder.
+     * Returns null if there is no index key, in which case the row is indexed later.
+     */
+    static byte[] compute(String password) throws Exception {
+        SecretKeySpec key = AESKeyHolder.getIndexKey();
+        if (key == null) return null;
+        return compute(key, indexBytes(password.getBytes()));
+    }
+
+    /*
+     * A function to get the bytes a password is indexed by from its plaintext, which
+     * ManageCredentials.encryptField encodes in the platform encoding: the UTF-8 bytes of
+     * the password as stored. A password written and one indexed later from the vault
+     * then get the same index whatever the platform encoding.
+     */
+    private static byte[] indexBytes(byte[] plaintext) {
+        return new String(plaintext).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] compute(SecretKeySpec key, byte[] password) throws Exception {
+        Mac hmac = HMAC.get();
+        hmac.init(key);
+        return hmac.doFinal(password);
+    }
+
+    /*
+     * A function to index the rows of a user without an index in the background,
+     * if the index key is loaded. Returns the future of the latest backfill.
+     */
+    static Future<Integer> backfillInBackground(int userId) {
+        if (AESKeyHolder.getIndexKey() != null) {
+            backfill = BackgroundTasks.submit(() -> backfill(userId));
+        }
+        return backfill;
+    }
+
+    /*
+     * A function to wait for the latest backfill to stop, e.g. on logout.
+     * Returns the number of indexed rows, or -1 on error.
+     */
+    static int awaitBackfill() {
+        try {
+            return backfill.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
+            return -1;
+        }
+    }
+
+    /*
+     * A function to index the rows of a user that have no index. A row written meanwhile
+     * is left alone, as it was indexed when it was written. Stops if the index key
+     * changes, e.g. on logout; the rest is done on the next login. Returns the number
+     * of indexed rows, or -1 on error.
+     */
+    static int backfill(int userId) {
+        SecretKeySpec key = AESKeyHolder.getIndexKey();
+        if (key == null) return 0;
+        int indexed = 0;
+        long afterId = 0;
+        try {
+            while (AESKeyHolder.getIndexKey() == key) {
+                List<Row> rows = readChunk(userId, afterId);
+                if (rows.isEmpty()) break;
+                afterId = rows.get(rows.size() - 1).id;
+                indexed += commitChunk(computeAll(rows, key));
+            }
+            return indexed;
+        } catch (Exception e) {
+            System.err.println("Error in indexing the passwords: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static List<Row> readChunk(int userId, long afterId) throws SQLException {
+        String sql = "SELECT id, site_password, key_version " +
+                     "FROM credentials " +
+                     "WHERE user_id = ? AND password_index IS NULL AND id > ? " +
+                     "ORDER BY id " +
+                     "LIMIT " + DataKeys.CHUNK_SIZE;
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
+            pstmt.setLong(2, afterId);
+            ResultSet rs = pstmt.executeQuery();
+            List<Row> rows = new ArrayList<>(DataKeys.CHUNK_SIZE);
+            while (rs.next()) {
+                rows.add(new Row(rs.getLong("id"), DatabaseHelper.toBlob(rs.getObject("site_password")),
+                                 rs.getInt("key_version")));
+            }
+            return rows;
+        }
+    }
+
+    /*
+     * A function to decrypt the passwords of a chunk and compute their index in parallel.
+     */
+    private static List<Row> computeAll(List<Row> rows, SecretKeySpec key) throws Exception {
+        try {
+            rows.parallelStream().forEach(row -> {
+                try {
+                    byte[] password = AESUtil.decrypt(row.password, row.keyVersion);
+                    row.index = compute(key, indexBytes(password));
+                    Arrays.fill(password, (byte) 0);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+            return rows;
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /*
+     * A function to write the index of a chunk in one transaction, to the rows still without one.
+     */
+    private static int commitChunk(List<Row> rows) throws SQLException {
+        String sql = "UPDATE credentials SET password_index = ? WHERE id = ? AND password_index IS NULL";
+        try (Connection conn = DatabaseHelper.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                for (Row row : rows) {
+                    pstmt.setBytes(1, row.index);
+                    pstmt.setLong(2, row.id);
+                    pstmt.addBatch();
+                }
+                int count = 0;
+                for (int updated : pstmt.executeBatch()) {
+                    count += Math.max(updated, 0);
+                }
+                conn.commit();
+                return count;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /*
+     * A credentials row being indexed.
+     */
+    private static class Row {
+        final long id;
+        final byte[] password;
+        final int keyVersion;
+        byte[] index;
+
+        Row(long id, byte[] password, int keyVersion) {
+            this.id = id;
+            this.password = password;
+            this.keyVersion = keyVersion;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/*
+ * An in-memory search index over site names, updated one site at a time.
+ * A compressed prefix trie answers prefix queries, and a trigram index finds
+ * sites that contain the query or are similar to it. Results are ranked:
+ * prefix matches first, shortest and then alphabetically first, then other sites containing the query,
+ * then the rest by trigram similarity. Matching ignores case.
+ */
+public class SiteSearchIndex {
+    // Trigrams in more sites than this are only used for scoring, not for finding candidates
+    private static final int MAX_CANDIDATE_POSTINGS = 2_000;
+    // At most this many candidates are scored, which bounds the cost of unselective queries
+    private static final int MAX_CANDIDATES = 5_000;
+    private static final double MIN_SIMILARITY = 0.25;
+
+    private final Node root = new Node("");
+    private final Map<Long, Posting> postings = new HashMap<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> sites = new ArrayList<>();
+    private final List<Integer> freeIds = new ArrayList<>();
+
+    /*
+     * A function to build an index over the given sites.
+     */
+    public static SiteSearchIndex of(Collection<String> siteNames) {
+        SiteSearchIndex index = new SiteSearchIndex();
+        for (String siteName : siteNames) {
+            index.add(siteName);
+        }
+        return index;
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    /*
+     * A function to add a site to the index. Adding an indexed site does nothing.
+     */
+    public synchronized void add(String siteName) {
+        if (ids.containsKey(siteName)) return;
+        int id;
+        if (freeIds.isEmpty()) {
+            id = sites.size();
+            sites.add(siteName);
+        } else {
+            id = freeIds.remove(freeIds.size() - 1);
+            sites.set(id, siteName);
+        }
+        ids.put(siteName, id);
+
+        String key = normalize(siteName);
+        insert(key, siteName);
+        for (long trigram : trigrams(key)) {
+            postings.computeIfAbsent(trigram, t -> new Posting()).add(id);
+        }
+    }
+
+    /*
+     * A function to remove a site from the index. Removing a site that is not indexed does nothing.
+     */
+    public synchronized void remove(String siteName) {
+        Integer id = ids.remove(siteName);
+        if (id == null) return;
+        sites.set(id, null);
+        freeIds.add(id);
+
+        String key = normalize(siteName);
+        delete(key, siteName);
+        for (long trigram : trigrams(key)) {
+            Posting posting = postings.get(trigram);
+            posting.remove(id);
+            if (posting.size == 0) postings.remove(trigram);
+        }
+    }
+
+    /*
+     * A function to get at most limit sites matching the query, best matches first.
+     */
+    public synchronized List<String> search(String query, int limit) {
+        String key = normalize(query);
+        LinkedHashSet<String> results = new LinkedHashSet<>();
+        if (limit <= 0) return new ArrayList<>();
+        collectPrefixMatches(key, limit, results);
+        if (results.size() < limit) collectTrigramMatches(key, limit, results);
+        return new ArrayList<>(results);
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    /*
+     * A function to get the distinct trigrams of a key, each packed into a long.
+     */
+    private static long[] trigrams(String key) {
+        if (key.length() < 3) return new long[0];
+        long[] result = new long[key.length() - 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ((long) key.charAt(i) << 32) | ((long) key.charAt(i + 1) << 16) | key.charAt(i + 2);
+        }
+        return Arrays.stream(result).distinct().toArray();
+    }
+
+    /*
+     * A function to add the sites starting with the key, shortest and then alphabetically first.
+     */
+    private void collectPrefixMatches(String key, int limit, Set<String> results) {
+        Node node = root;
+        int matched = 0;
+        while (matched < key.length()) {
+            Node child = node.getChild(key.charAt(matched));
+            if (child == null) return;
+            int common = commonPrefix(child.label, key, matched);
+            if (common < child.label.length() && matched + common < key.length()) return;
+            matched += child.label.length();
+            node = child;
+        }
+
+        // Best-first walk of the subtree by the length and then the keys of the site names
+        PriorityQueue<Branch> queue = new PriorityQueue<>(Comparator.comparingInt((Branch branch) -> branch.key.length())
+                                                                    .thenComparing(branch -> branch.key));
+        queue.add(new Branch(node, key.substring(0, matched - node.label.length()) + node.label));
+        while (!queue.isEmpty() && results.size() < limit) {
+            Branch branch = queue.poll();
+            if (branch.node.sites != null) {
+                for (String site : branch.node.sites) {
+                    if (results.size() < limit) results.add(site);
+                }
+            }
+            for (Node child : branch.node.children) {
+                queue.add(new Branch(child, branch.key + child.label));
+            }
+        }
+    }
+
+    /*
+     * A function to add the sites that contain the key, and then the sites
+     * that share enough trigrams with it, most similar first.
+     */
+    private void collectTrigramMatches(String key, int limit, Set<String> results) {
+        long[] queryTrigrams = trigrams(key);
+        if (queryTrigrams.length == 0) return;
+
+        // Find the candidates from the rarest trigrams
+        List<Posting> found = new ArrayList<>();
+        for (long trigram : queryTrigrams) {
+            Posting posting = postings.get(trigram);
+            if (posting != null) found.add(posting);
+        }
+        if (found.isEmpty()) return;
+        found.sort(Comparator.comparingInt(posting -> posting.size));
+        Set<Integer> candidates = new HashSet<>();
+        for (Posting posting : found) {
+            if (posting.size > MAX_CANDIDATE_POSTINGS && !candidates.isEmpty()) break;
+            for (int i = 0; i < posting.size && candidates.size() < MAX_CANDIDATES; i++) {
+                candidates.add(posting.ids[i]);
+            }
+        }
+
+        Set<Long> querySet = new HashSet<>();
+        for (long trigram : queryTrigrams) {
+            querySet.add(trigram);
+        }
+        List<String> containing = new ArrayList<>();
+        List<Scored> similar = new ArrayList<>();
+        for (int id : candidates) {
+            String site = sites.get(id);
+            if (results.contains(site)) continue;
+            String siteKey = normalize(site);
+            if (siteKey.contains(key)) {
+                containing.add(site);
+                continue;
+            }
+            long[] siteTrigrams = trigrams(siteKey);
+            int shared = 0;
+            for (long trigram : siteTrigrams) {
+                if (querySet.contains(trigram)) shared++;
+            }
+            double similarity = (double) shared / (queryTrigrams.length + siteTrigrams.length - shared);
+            if (similarity >= MIN_SIMILARITY) similar.add(new Scored(site, similarity));
+        }
+
+        containing.sort(Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder()));
+        similar.sort(Comparator.comparingDouble((Scored scored) -> -scored.similarity)
+                               .thenComparing(scored -> scored.site));
+        for (String site : containing) {
+            if (results.size() >= limit) return;
+            results.add(site);
+        }
+        for (Scored scored : similar) {
+            if (results.size() >= limit) return;
+            results.add(scored.site);
+        }
+    }
+
+    /*
+     * A function to insert a site under its key into the trie, splitting an edge if needed.
+     */
+    private void insert(String key, String siteName) {
+        Node node = root;
+        int matched = 0;
+        while (matched < key.length()) {
+            Node child = node.getChild(key.charAt(matched));
+            if (child == null) {
+                child = new Node(key.substring(matched));
+                node.addChild(child);
+                node = child;
+                break;
+            }
+            int common = commonPrefix(child.label, key, matched);
+            if (common < child.label.length()) {
+                // Split the edge where the key leaves it
+                Node middle = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                node.replaceChild(child, middle);
+                middle.addChild(child);
+                child = middle;
+            }
+            matched += common;
+            node = child;
+        }
+        if (node.sites == null) node.sites = new ArrayList<>(1);
+        node.sites.add(siteName);
+    }
+
+    /*
+     * A function to delete a site from the trie, removing and merging nodes left empty.
+     */
+    private void delete(String key, String siteName) {
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        int matched = 0;
+        while (matched < key.length()) {
+            path.add(node);
+            node = node.getChild(key.charAt(matched));
+            matched += node.label.length();
+        }
+        node.sites.remove(siteName);
+        if (!node.sites.isEmpty()) return;
+        node.sites = null;
+        if (node == root) return;
+
+        Node parent = path.get(path.size() - 1);
+        if (node.children.isEmpty()) {
+            parent.children.remove(node);
+            // The parent may now be a pass-through node
+            if (parent != root && parent.sites == null && parent.children.size() == 1) {
+                parent.mergeWithChild();
+            }
+        } else if (node.children.size() == 1) {
+            node.mergeWithChild();
+        }
+    }
+
+    private static int commonPrefix(String label, String key, int offset) {
+        int common = 0;
+        int max = Math.min(label.length(), key.length() - offset);
+        while (common < max && label.charAt(common) == key.charAt(offset + common)) {
+            common++;
+        }
+        return common;
+    }
+
+    /*
+     * A trie node. The label holds the characters of the edge leading to the node.
+     */
+    private static class Node {
+        String label;
+        List<Node> children = new ArrayList<>(0);
+        List<String> sites;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node getChild(char first) {
+            for (Node child : children) {
+                if (child.label.charAt(0) == first) return child;
+            }
+            return null;
+        }
+
+        void addChild(Node child) {
+            children.add(child);
+        }
+
+        void replaceChild(Node oldChild, Node newChild) {
+            children.set(children.indexOf(oldChild), newChild);
+        }
+
+        void mergeWithChild() {
+            Node child = children.get(0);
+            label = label + child.label;
+            children = child.children;
+            sites = child.sites;
+        }
+    }
+
+    /*
+     * A subtree of the trie and the key leading to it.
+     */
+    private static class Branch {
+        final Node node;
+        final String key;
+
+        Branch(Node node, String key) {
+            this.node = node;
+            this.key = key;
+        }
+    }
+
+    /*
+     * A site and its trigram similarity to the query.
+     */
+    private static class Scored {
+        final String site;
+        final double similarity;
+
+        Scored(String site, double similarity) {
+            this.site = site;
+            this.similarity = similarity;
+        }
+    }
+
+    /*
+     * The ids of the sites containing a trigram.
+     */
+    private static class Posting {
+        int[] ids = new int[2];
+        int size = 0;
+
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        void remove(int id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[--size];
+                    return;
+                }
+            }
+        }
+    }
+}
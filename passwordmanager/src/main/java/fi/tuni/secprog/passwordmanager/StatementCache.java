@@ -0,0 +1,170 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A cache of prepared statements of one physical connection, keyed by SQL.
+ * Closing a statement handed out by the cache only resets it for the next caller,
+ * so repeated operations skip SQLite's statement compilation. The least recently
+ * used statement is closed when the cache is full. A statement that is still in
+ * use is not handed out twice, the second caller gets an uncached statement instead.
+ */
+public class StatementCache {
+    private final Connection conn;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LinkedHashMap<String, CachedStatement> statements;
+
+    public StatementCache(Connection conn, int capacity, LongAdder hits, LongAdder misses) {
+        this.conn = conn;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= capacity) return false;
+                eldest.getValue().evict();
+                return true;
+            }
+        };
+    }
+
+    /*
+     * A function to get a prepared statement for the SQL, compiling it only on a cache miss.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        CachedStatement cached = statements.get(sql);
+        if (cached != null && !cached.inUse) {
+            hits.increment();
+            return cached.lease();
+        }
+
+        misses.increment();
+        PreparedStatement physical = conn.prepareStatement(sql);
+        if (cached != null) {
+            // The cached statement is busy, so this one is closed normally after use
+            return physical;
+        }
+        cached = new CachedStatement(physical);
+        statements.put(sql, cached);
+        return cached.lease();
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    /*
+     * A function to close all the cached statements.
+     */
+    public void close() {
+        for (CachedStatement cached : statements.values()) {
+            cached.evict();
+        }
+        statements.clear();
+    }
+
+    /*
+     * A cached statement, handed out to one caller at a time.
+     */
+    private static class CachedStatement {
+        private final PreparedStatement physical;
+        private ResultSet resultSet;
+        private boolean inUse = false;
+        private boolean evicted = false;
+
+        CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+        }
+
+        PreparedStatement lease() {
+            inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                                             new Class<?>[] {PreparedStatement.class},
+                                                             new Handle(this));
+        }
+
+        /*
+         * A function to reset the statement for the next caller.
+         * Closing the open result set also releases SQLite's read lock.
+         */
+        void release() throws SQLException {
+            inUse = false;
+            try {
+                if (resultSet != null) resultSet.close();
+                physical.clearParameters();
+                physical.clearBatch();
+            } finally {
+                resultSet = null;
+                if (evicted) physical.close();
+            }
+        }
+
+        /*
+         * A function to close the statement, now or once its caller is done with it.
+         */
+        void evict() {
+            evicted = true;
+            if (!inUse) {
+                try {
+                    physical.close();
+                } catch (SQLException e) {
+                    System.err.println("Error closing a cached statement: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /*
+     * A caller's handle to a cached statement. Everything is forwarded to the
+     * statement except close, which gives the statement back to the cache.
+     */
+    private static class Handle implements InvocationHandler {
+        private final CachedStatement cached;
+        private boolean released = false;
+
+        Handle(CachedStatement cached) {
+            this.cached = cached;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        cached.release();
+                    }
+                    return null;
+                case "isClosed":
+                    return released || cached.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached " + cached.physical;
+                default:
+                    break;
+            }
+            if (released) throw new SQLException("Statement has been closed");
+            try {
+                Object result = method.invoke(cached.physical, args);
+                if (result instanceof ResultSet) cached.resultSet = (ResultSet) result;
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -7,7 +7,8 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
-import java.time.LocalDateTime;
+
+import javax.crypto.spec.SecretKeySpec;
 
 import org.mindrot.jbcrypt.BCrypt;
 
@@ -19,8 +20,6 @@ import javafx.scene.image.Image;
 public class UserAuthentication {
 
     private static int user_id = 0;
-    private static final int MAX_ATTEMPTS = 5;
-    private static final int TIMEOUT = 5; // in minutes
 
     /*
      * A function to get the logged in user's id.
@@ -36,7 +35,8 @@ public class UserAuthentication {
     /*
      * A function to check the password strength.
      * Returns null if the password is strong enough, otherwise returns
-     * a string with the error message.
+     * a string with the error message. A password on the local list of
+     * breached passwords is rejected as well.
      */
     public static String checkPasswordStrenth(String password) {
         if (password.length() < 8) {
@@ -44,6 +44,8 @@ public class UserAuthentication {
         } else if (!password.matches("^(?=.*[a-z])(?=.*[A-Z])(?=.*\\d).+$")) {
             return ("Password must include both lower and uppercase letters" +
                     "and at least one number and special character.");
+        } else if (BreachCorpus.isBreached(password)) {
+            return "This password has appeared in a data breach. Please choose another one.";
         }
         return null;
     }
@@ -91,91 +93,101 @@ public class UserAuthentication {
      * A function to authenticate a user.
      */
     public static boolean authenticateUser(String username, char[] password) {
-        if (!userExists(username)) return false;
-
-        String sql = "SELECT password_hash, failed_attempts, last_failed_login " +
-                     "FROM users " +
-                     "WHERE username = ?";
-
-        try (Connection conn = DatabaseHelper.getConnection();
-            PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            
-            String hashedPassword = rs.getString("password_hash");
-            Integer attempts = rs.getInt("failed_attempts");
-            Timestamp lastFailedLogin = rs.getTimestamp("last_failed_login");
+        LoginSession session = LoginSession.start(username);
+        if (session == null || !session.checkPassword(password)) return false;
+        // Clear the password from memory after use
+        java.util.Arrays.fill(password, ' ');
+        return true;
+    }
 
-            // If the password is incorrect, update the failed attempts
-            if (!BCrypt.checkpw(new String(password), hashedPassword)) {
-                updateFailedAttempts(username, attempts, lastFailedLogin);
-                return false;
-            }
-            // Clear the password from memory after use
-            java.util.Arrays.fill(password, ' ');
-            return true;
-        } catch (SQLException e) {
-            System.err.println("Error during authentication: " + e.getMessage());
+    /*
+     * A function to register a new user and start the first login, in which the TOTP
+     * code from the QR code is verified. The password was hashed by the registration
+     * just before, so the session does not check it again. Returns null if the
+     * registration failed.
+     */
+    public static Registration registerAndLogin(String username, char[] password) {
+        char[] sessionPassword = password.clone();
+        try {
+            Image QRcode = registerUser(username, password);
+            if (QRcode == null) return null;
+            LoginSession session = LoginSession.start(username);
+            if (session == null) return null;
+            session.acceptRegisteredPassword(sessionPassword);
+            return new Registration(QRcode, session);
+        } finally {
+            java.util.Arrays.fill(sessionPassword, ' ');
         }
-        return false;
     }
 
     /*
-     * A function to verify the TOTP code.
+     * A new user with the QR code of the TOTP secret and the session of the first login.
      */
-    public static boolean verifyTOTP(String username, char[] password, String userInput) {
-        String sql = "SELECT id, totp_secret, salt, failed_attempts, last_failed_login " +
-                     "FROM users " +
-                     "WHERE username = ?";
+    public static class Registration {
+        private final Image QRcode;
+        private final LoginSession session;
 
-        try (Connection conn = DatabaseHelper.getConnection();
-            PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            
-            AESKeyHolder.storeKey(AESUtil.deriveKey(password, rs.getString("salt")));
-            String TOTPSecret = AESUtil.decrypt(rs.getString("totp_secret"));
-            Integer attempts = rs.getInt("failed_attempts");
-            Timestamp lastFailedLogin = rs.getTimestamp("last_failed_login");
+        Registration(Image QRcode, LoginSession session) {
+            this.QRcode = QRcode;
+            this.session = session;
+        }
 
-            if (!TOTPUtil.verifyTOTP(userInput, TOTPSecret)) {
-                updateFailedAttempts(username, attempts, lastFailedLogin);
-                AESKeyHolder.clearKey();
-                return false;
-            }
-            setUserId(rs.getInt("id"));
-            resetFailedAttempts(username);
-            return true;
-        } catch (Exception e) {
-            System.err.println("Error during TOTP verification: " + e.getMessage());
+        public Image getQRcode() {
+            return QRcode;
+        }
+
+        public LoginSession getSession() {
+            return session;
         }
-        AESKeyHolder.clearKey();
-        return false;
     }
 
     /*
      * A function log out the user.
      */
     public static void logoutUser() {
-        // Clear the AES key and user id
+        // Make sure the queued credential changes are written before logging out
+        ManageCredentials.flushWrites();
+
+        // Clear the cached vault, the AES key and user id
+        ManageCredentials.clearCache();
         AESKeyHolder.clearKey();
         setUserId(0);
+
+        // The re-encryption and indexing of the vault stop with the keys, and continue on the next login
+        LoginSession.awaitUpgrade();
+        DataKeys.awaitMigration();
+        PasswordIndex.awaitBackfill();
     }
 
     /*
-     * A function to register a new user to the database.
+     * A function to register a new user to the database. The user gets a random
+     * data key and index key, stored wrapped with the key derived from the password.
+     * The data key encrypts the TOTP secret and the vault.
      */
     public static Image registerUser(String username, char[] password) {
         if (userExists(username)) return null;
 
-        String sql = "INSERT INTO users (username, password_hash, totp_secret, salt) VALUES (?, ?, ?, ?)";
+        String sql = "INSERT INTO users " +
+                     "(username, password_hash, totp_secret, salt, kdf_algorithm, kdf_iterations, " +
+                     "data_key_version, index_key) " +
+                     "VALUES (?, ?, ?, ?, ?, ?, 1, ?)";
+        String insertKey = "INSERT INTO data_keys (user_id, version, wrapped_key) " +
+                           "SELECT id, 1, ? FROM users WHERE username = ?";
         
         // Connect to the database and insert the new user
         try (Connection conn = DatabaseHelper.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            String hashedPassword = BCrypt.hashpw(new String(password), BCrypt.gensalt(12));
+             PreparedStatement pstmt = conn.prepareStatement(sql);
+             PreparedStatement keyStmt = conn.prepareStatement(insertKey)) {
+            // New users get the work factors calibrated for this machine
+            KdfParameters kdfParameters = KeyDerivation.getTargetParameters();
+            String hashedPassword = BCrypt.hashpw(new String(password),
+                                                  BCrypt.gensalt(KeyDerivation.getTargetBcryptCost()));
             String salt = AESUtil.generateSalt();
-            AESKeyHolder.storeKey(AESUtil.deriveKey(password, salt));
+            SecretKeySpec dataKey = DataKeys.generateKey();
+            SecretKeySpec passwordKey = AESUtil.deriveKey(password, salt, kdfParameters);
+            byte[] wrappedKey = DataKeys.wrap(passwordKey, dataKey);
+            byte[] wrappedIndexKey = DataKeys.wrap(passwordKey, DataKeys.generateKey());
+            AESKeyHolder.storeKey(dataKey);
             String TOTPSecret = TOTPUtil.generateSecretKey();
             String encryptedTOTP = AESUtil.encrypt(TOTPSecret);
             AESKeyHolder.clearKey();
@@ -187,9 +199,26 @@ public class UserAuthentication {
             pstmt.setString(2, hashedPassword);
             pstmt.setString(3, encryptedTOTP);
             pstmt.setString(4, salt);
+            pstmt.setString(5, kdfParameters.getAlgorithm());
+            pstmt.setInt(6, kdfParameters.getIterations());
+            pstmt.setBytes(7, wrappedIndexKey);
     
-            // Execute the query and return true if the query was successful
-            int affectedRows = pstmt.executeUpdate();
+            keyStmt.setBytes(1, wrappedKey);
+            keyStmt.setString(2, username);
+
+            // Insert the user and the data key in one transaction
+            conn.setAutoCommit(false);
+            int affectedRows;
+            try {
+                affectedRows = pstmt.executeUpdate();
+                keyStmt.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
             if (affectedRows > 0) {
                 // Generate the TQR code for the TOTP secret key
                 String URL = TOTPUtil.getTOTPAuthURL(username, "PasswordManager", TOTPSecret);
@@ -204,63 +233,4 @@ public class UserAuthentication {
         }
         return null;
     }
-    
-    /*
-     * A function to update the failed attempts of a user in the database.
-     */
-    private static void updateFailedAttempts(String username, int attempts, Timestamp lastFailedLogin) {
-        String sql = "UPDATE users " +
-                     "SET failed_attempts = failed_attempts + 1, last_failed_login = ? " +
-                     "WHERE username = ?";
-
-        // If the user has failed 5 times, and the last failed login is within 5 minutes,
-        // lock the account for 5 minutes
-        LocalDateTime allowedTime = LocalDateTime.now().minusMinutes(TIMEOUT);
-        if ((attempts+1) >= MAX_ATTEMPTS && lastFailedLogin.toLocalDateTime().isAfter(allowedTime)) {
-            lockAccount(username);
-        } else {
-            // If the user has failed less than 5 times,
-            // update the failed attempts and last failed login
-            try (Connection conn = DatabaseHelper.getConnection();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
-                pstmt.setString(2, username);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                System.err.println("Error during SQL query: " + e.getMessage());
-            }
-        }
-    }
-
-    /*
-     * A function to reset the failed attempts of a user in the database.
-     */
-    private static void resetFailedAttempts(String username) {
-        String sql = "UPDATE users " +
-                     "SET failed_attempts = 0, last_failed_login = NULL, lockout_until = NULL " +
-                     "WHERE username = ?";
-        try (Connection conn = DatabaseHelper.getConnection();
-            PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            System.err.println("Error during SQL query: " + e.getMessage());
-        }
-    }
-
-    /*
-     * A function to lock the account for 5 minutes after 5 failed attempts.
-     */
-    private static void lockAccount(String username) {
-        LocalDateTime lockUntil = LocalDateTime.now().plusMinutes(5);
-        String sql = "UPDATE users SET lockout_until = ? WHERE username = ?";
-        try (Connection conn = DatabaseHelper.getConnection();
-            PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setTimestamp(1, Timestamp.valueOf(lockUntil));
-            pstmt.setString(2, username);
-            pstmt.executeUpdate();
-        }  catch (SQLException e) {
-            System.err.println("Error during SQL query: " + e.getMessage());
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,418 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * A class to back up the vault of the logged in user into an encrypted file and
+ * to restore it. The credentials are streamed through a container of AES-GCM
+ * chunks, so the memory used does not depend on the size of the vault.
+ *
+ * The container starts with a header holding the key derivation parameters and
+ * the salt of the backup password. Each chunk is encrypted with an IV made of a
+ * random prefix and the chunk number, and its additional data binds the header,
+ * the chunk number and whether it is the last chunk. Chunks can therefore not be
+ * reordered, dropped or appended, and a truncated backup is detected.
+ */
+public class VaultBackup {
+    private static final byte[] MAGIC = "PMBACKUP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final int LAST_CHUNK = 0x80000000;
+    private static final int NONCE_PREFIX_LENGTH = CryptoEngine.GCM_IV_LENGTH - 4;
+    // Headers asking for more work than this are rejected before deriving the key
+    private static final int MAX_ITERATIONS = 10_000_000;
+    private static final int MAX_FIELD_LENGTH = 1024 * 1024;
+
+    /*
+     * A function to back up the vault of the logged in user into a file, encrypted with
+     * a key derived from the backup password. The file is replaced only once the backup
+     * is complete. Returns the number of backed up entries, or -1 on error.
+     */
+    public static int exportFile(Path file, char[] backupPassword) {
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(file.toAbsolutePath().getParent(), ".backup", ".tmp");
+            int count;
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                count = export(out, backupPassword);
+            }
+            if (count < 0) return -1;
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            return count;
+        } catch (IOException e) {
+            System.err.println("Error in writing the backup: " + e.getMessage());
+            return -1;
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    System.err.println("Error in removing the unfinished backup: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /*
+     * A function to write the backup of the logged in user into a stream,
+     * which is not closed. Returns the number of backed up entries, or -1 on error.
+     */
+    public static int export(OutputStream out, char[] backupPassword) {
+        // Queued changes are written first, so that they are included
+        ManageCredentials.flushWrites();
+        String sql = "SELECT site_name, site_username, site_password, key_version " +
+                     "FROM credentials " +
+                     "WHERE user_id = ? " +
+                     "ORDER BY id";
+        try (Connection conn = DatabaseHelper.getConnection();
+            PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            KdfParameters parameters = KeyDerivation.getTargetParameters();
+            String salt = AESUtil.generateSalt();
+            byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+            AESUtil.getEngine().nextBytes(noncePrefix);
+            byte[] header = writeHeader(parameters, salt, noncePrefix);
+            SecretKeySpec key = AESUtil.deriveKey(backupPassword, salt, parameters);
+
+            BufferedOutputStream buffered = new BufferedOutputStream(out);
+            buffered.write(header);
+            ChunkedOutputStream chunks = new ChunkedOutputStream(buffered, key, header, noncePrefix);
+            DataOutputStream records = new DataOutputStream(chunks);
+
+            // Rows are read one at a time, so only a single chunk is held in memory
+            pstmt.setInt(1, UserAuthentication.getUserId());
+            ResultSet rs = pstmt.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                int keyVersion = rs.getInt("key_version");
+                byte[] username = AESUtil.decrypt(DatabaseHelper.toBlob(rs.getObject("site_username")), keyVersion);
+                byte[] password = AESUtil.decrypt(DatabaseHelper.toBlob(rs.getObject("site_password")), keyVersion);
+                records.writeByte(1);
+                writeBytes(records, rs.getString("site_name").getBytes(StandardCharsets.UTF_8));
+                writeBytes(records, username);
+                writeBytes(records, password);
+                Arrays.fill(username, (byte) 0);
+                Arrays.fill(password, (byte) 0);
+                count++;
+            }
+            records.writeByte(0);
+            chunks.finish();
+            buffered.flush();
+            return count;
+        } catch (SQLException e) {
+            System.err.println("Error in retrieveing the credentials: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error in writing the backup: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error in encrypting the backup: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    /*
+     * A function to restore a backup file into the vault of the logged in user.
+     * The entries are inserted in batches, see VaultImporter. Progress is
+     * reported in bytes read out of the file size.
+     */
+    public static VaultImporter.ImportResult restoreFile(Path file, char[] backupPassword,
+                                                         VaultImporter.DuplicatePolicy policy,
+                                                         BackgroundTasks.ProgressListener progress) {
+        try (VaultImporter.CountingInputStream input =
+                 new VaultImporter.CountingInputStream(Files.newInputStream(file))) {
+            long size = Files.size(file);
+            VaultImporter.ImportResult result = restore(input, backupPassword, policy,
+                                                        () -> progress.update(input.getCount(), size));
+            progress.update(size, size);
+            return result;
+        } catch (IOException e) {
+            System.err.println("Error in reading the backup: " + e.getMessage());
+            return VaultImporter.ImportResult.failed("Error in reading the file: " + e.getMessage());
+        }
+    }
+
+    /*
+     * A function to restore a backup from a stream, see restoreFile.
+     */
+    public static VaultImporter.ImportResult restore(InputStream in, char[] backupPassword,
+                                                     VaultImporter.DuplicatePolicy policy) {
+        return restore(in, backupPassword, policy, () -> {});
+    }
+
+    private static VaultImporter.ImportResult restore(InputStream in, char[] backupPassword,
+                                                      VaultImporter.DuplicatePolicy policy,
+                                                      Runnable onBatch) {
+        return VaultImporter.importEntries(consumer -> {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(in));
+            byte[] header = readHeader(input);
+            ByteBuffer fields = ByteBuffer.wrap(header, MAGIC.length + 1, header.length - MAGIC.length - 1);
+            KdfParameters parameters = new KdfParameters(readString(fields), fields.getInt());
+            String salt = readString(fields);
+            byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+            fields.get(noncePrefix);
+            if (parameters.getIterations() <= 0 || parameters.getIterations() > MAX_ITERATIONS) {
+                throw new VaultImporter.ImportStoppedException("The backup has unsupported parameters.");
+            }
+
+            SecretKeySpec key;
+            try {
+                key = AESUtil.deriveKey(backupPassword, salt, parameters);
+            } catch (Exception e) {
+                System.err.println("Error in deriving the backup key: " + e.getMessage());
+                throw new VaultImporter.ImportStoppedException("The backup has unsupported parameters.");
+            }
+            DataInputStream records = new DataInputStream(new ChunkedInputStream(input, key, header, noncePrefix));
+            while (records.readByte() == 1) {
+                String site = new String(readBytes(records), StandardCharsets.UTF_8);
+                byte[] username = readBytes(records);
+                byte[] password = readBytes(records);
+                // The credentials are stored as text in the platform encoding, as decoded by VaultEntry
+                consumer.accept(site, new String(username), new String(password));
+                Arrays.fill(username, (byte) 0);
+                Arrays.fill(password, (byte) 0);
+            }
+            if (records.read() != -1) throw new IOException("Unexpected data after the backup");
+        }, policy, onBatch);
+    }
+
+    private static byte[] writeHeader(KdfParameters parameters, String salt, byte[] noncePrefix)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.write(MAGIC);
+        header.writeByte(VERSION);
+        header.writeUTF(parameters.getAlgorithm());
+        header.writeInt(parameters.getIterations());
+        header.writeUTF(salt);
+        header.write(noncePrefix);
+        return bytes.toByteArray();
+    }
+
+    /*
+     * A function to read the header and return its bytes, which are authenticated with every chunk.
+     */
+    private static byte[] readHeader(DataInputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream copy = new DataOutputStream(bytes);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new VaultImporter.ImportStoppedException("The file is not a backup.");
+            }
+            int version = input.readUnsignedByte();
+            if (version != VERSION) {
+                throw new VaultImporter.ImportStoppedException("The backup version " + version +
+                                                               " is not supported.");
+            }
+            copy.write(magic);
+            copy.writeByte(version);
+            copy.writeUTF(input.readUTF());
+            copy.writeInt(input.readInt());
+            copy.writeUTF(input.readUTF());
+            byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+            input.readFully(noncePrefix);
+            copy.write(noncePrefix);
+        } catch (EOFException e) {
+            throw new VaultImporter.ImportStoppedException("The backup is truncated.");
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_LENGTH) throw new IOException("Invalid entry in the backup");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /*
+     * A function to get the IV of a chunk: the random prefix of the backup and the chunk number.
+     */
+    private static byte[] chunkIv(byte[] noncePrefix, int index) {
+        return ByteBuffer.allocate(CryptoEngine.GCM_IV_LENGTH).put(noncePrefix).putInt(index).array();
+    }
+
+    /*
+     * A function to get the additional data of a chunk.
+     */
+    private static byte[] chunkAad(byte[] header, int index, boolean last) {
+        return ByteBuffer.allocate(header.length + 5).put(header).putInt(index)
+                         .put((byte) (last ? 1 : 0)).array();
+    }
+
+    /*
+     * Encrypts the written bytes in chunks. A full chunk is written only when more
+     * bytes follow, so that the last chunk can be marked on finish.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final SecretKeySpec key;
+        private final byte[] header;
+        private final byte[] noncePrefix;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int position = 0;
+        private int index = 0;
+
+        ChunkedOutputStream(OutputStream out, SecretKeySpec key, byte[] header, byte[] noncePrefix) {
+            this.out = out;
+            this.key = key;
+            this.header = header;
+            this.noncePrefix = noncePrefix;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (position == CHUNK_SIZE) writeChunk(false);
+            buffer[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (position == CHUNK_SIZE) writeChunk(false);
+                int n = Math.min(length, CHUNK_SIZE - position);
+                System.arraycopy(bytes, offset, buffer, position, n);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /*
+         * A function to write the last chunk. The underlying stream is not closed.
+         */
+        void finish() throws IOException {
+            writeChunk(true);
+        }
+
+        private void writeChunk(boolean last) throws IOException {
+            if (index == Integer.MAX_VALUE) throw new IOException("The backup is too large");
+            try {
+                byte[] encrypted = AESUtil.getEngine().encrypt(key, chunkIv(noncePrefix, index),
+                                                               chunkAad(header, index, last),
+                                                               buffer, 0, position);
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(encrypted.length | (last ? LAST_CHUNK : 0));
+                data.write(encrypted);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error in encrypting the backup: " + e.getMessage(), e);
+            } finally {
+                Arrays.fill(buffer, 0, position, (byte) 0);
+            }
+            position = 0;
+            index++;
+        }
+    }
+
+    /*
+     * Decrypts and verifies the chunks one at a time.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final DataInputStream in;
+        private final SecretKeySpec key;
+        private final byte[] header;
+        private final byte[] noncePrefix;
+        private byte[] chunk = new byte[0];
+        private int position = 0;
+        private int index = 0;
+        private boolean last = false;
+
+        ChunkedInputStream(DataInputStream in, SecretKeySpec key, byte[] header, byte[] noncePrefix) {
+            this.in = in;
+            this.key = key;
+            this.header = header;
+            this.noncePrefix = noncePrefix;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureAvailable()) return -1;
+            return chunk[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!ensureAvailable()) return -1;
+            int n = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, bytes, offset, n);
+            position += n;
+            return n;
+        }
+
+        private boolean ensureAvailable() throws IOException {
+            while (position == chunk.length) {
+                if (last) return false;
+                readChunk();
+            }
+            return true;
+        }
+
+        private void readChunk() throws IOException {
+            int lengthAndFlag;
+            try {
+                lengthAndFlag = in.readInt();
+            } catch (EOFException e) {
+                throw new VaultImporter.ImportStoppedException("The backup is truncated.");
+            }
+            boolean isLast = (lengthAndFlag & LAST_CHUNK) != 0;
+            int length = lengthAndFlag & ~LAST_CHUNK;
+            if (length > CHUNK_SIZE + CryptoEngine.GCM_TAG_LENGTH / 8) {
+                throw new VaultImporter.ImportStoppedException("The backup is corrupted.");
+            }
+            byte[] encrypted = new byte[length];
+            try {
+                in.readFully(encrypted);
+            } catch (EOFException e) {
+                throw new VaultImporter.ImportStoppedException("The backup is truncated.");
+            }
+            Arrays.fill(chunk, (byte) 0);
+            try {
+                chunk = AESUtil.getEngine().decrypt(key, chunkIv(noncePrefix, index),
+                                                    chunkAad(header, index, isLast),
+                                                    encrypted, 0, encrypted.length);
+            } catch (GeneralSecurityException e) {
+                throw new VaultImporter.ImportStoppedException("Wrong backup password or the backup is corrupted.");
+            }
+            position = 0;
+            index++;
+            last = isLast;
+            if (last && in.read() != -1) {
+                throw new VaultImporter.ImportStoppedException("The backup is corrupted.");
+            }
+        }
+    }
+}
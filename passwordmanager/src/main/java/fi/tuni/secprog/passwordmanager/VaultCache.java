@@ -0,0 +1,215 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A cache of the decrypted vault of the logged in user, so that showing the
+ * credentials again does not query and decrypt them again.
+ * The cache is bounded by a memory budget. A vault within the budget is cached
+ * whole. Of a larger vault the cache keeps the most recently used entries that
+ * fit, which serve the lookups by site but not the listing of the vault.
+ * It is wiped after it has not been used for the idle time, when it is
+ * invalidated by a change to the credentials, and on logout. Callers get
+ * copies of the entries, so wiping the cache does not affect them.
+ * The cached entries hold their usernames and passwords in arrays, which are
+ * overwritten when they are wiped; the strings given out by the entries are not.
+ */
+public class VaultCache {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(work -> {
+        Thread thread = new Thread(work, "vault-cache-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long maxBytes;
+    private final long idleMillis;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private int userId;
+    // The cached entries by site, least recently used first, or null if nothing is cached
+    private LinkedHashMap<String, VaultEntry> bySite;
+    // The whole vault in its order, or null if it did not fit
+    private List<VaultEntry> entries;
+    private long bytes = 0;
+    private long lastAccess;
+    private long generation = 0;
+    private ScheduledFuture<?> expiry;
+
+    /*
+     * maxBytes is the memory budget, estimated with VaultEntry.estimateSize.
+     */
+    public VaultCache(long maxBytes, long idleMillis) {
+        this.maxBytes = maxBytes;
+        this.idleMillis = idleMillis;
+    }
+
+    /*
+     * A function to get a snapshot for putting a vault later. A snapshot taken
+     * before an invalidation can not put a vault, so a vault read from the
+     * database before a change is never cached after the change.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /*
+     * A function to get copies of the cached entries of the user, or null if the
+     * whole vault is not cached.
+     */
+    public synchronized List<VaultEntry> get(int userId) {
+        if (!isCached(userId) || entries == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        lastAccess = System.currentTimeMillis();
+        List<VaultEntry> copies = new ArrayList<>(entries.size());
+        for (VaultEntry entry : entries) {
+            copies.add(entry.copy());
+        }
+        return copies;
+    }
+
+    /*
+     * A function to get a copy of the cached entry of a site, or null if it is not cached.
+     * Returns an empty list if the whole vault is cached but has no such site.
+     */
+    public synchronized List<VaultEntry> find(int userId, String siteName) {
+        VaultEntry entry = isCached(userId) ? bySite.get(siteName) : null;
+        if (entry == null && (bySite == null || this.userId != userId || entries == null)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        lastAccess = System.currentTimeMillis();
+        return entry != null ? List.of(entry.copy()) : List.of();
+    }
+
+    /*
+     * A function to cache copies of the vault of the user, unless the cache
+     * has been invalidated since the generation was taken. If the vault does
+     * not fit the budget, only its last entries are kept.
+     */
+    public synchronized void put(int userId, long snapshot, List<VaultEntry> vault) {
+        if (snapshot != generation) return;
+        wipe();
+        start(userId);
+        List<VaultEntry> copies = new ArrayList<>(vault.size());
+        for (VaultEntry entry : vault) {
+            VaultEntry copy = entry.copy();
+            copies.add(copy);
+            add(copy);
+        }
+        if (bySite.size() == copies.size()) entries = copies;
+        scheduleExpiry(idleMillis);
+    }
+
+    /*
+     * A function to cache a copy of a single entry of the user, e.g. one read by site,
+     * unless the cache has been invalidated since the generation was taken.
+     */
+    public synchronized void putEntry(int userId, long snapshot, VaultEntry entry) {
+        if (snapshot != generation) return;
+        if (!isCached(userId)) {
+            wipe();
+            start(userId);
+        }
+        VaultEntry previous = bySite.get(entry.getSiteName());
+        add(entry.copy());
+        // An entry that was not in the cached vault means the vault is not complete
+        if (previous == null) entries = null;
+        scheduleExpiry(idleMillis);
+    }
+
+    /*
+     * A function to wipe the cache after a change to the credentials or on logout.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        wipe();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private boolean isCached(int userId) {
+        if (bySite == null || this.userId != userId) return false;
+        if (System.currentTimeMillis() - lastAccess >= idleMillis) {
+            wipe();
+            return false;
+        }
+        return true;
+    }
+
+    private void start(int userId) {
+        this.userId = userId;
+        bySite = new LinkedHashMap<>(16, 0.75f, true);
+        entries = null;
+        bytes = 0;
+        lastAccess = System.currentTimeMillis();
+    }
+
+    /*
+     * A function to add an entry, evicting the least recently used ones while the
+     * cache is over the budget. An evicted entry means the vault is not complete.
+     */
+    private void add(VaultEntry entry) {
+        VaultEntry previous = bySite.put(entry.getSiteName(), entry);
+        if (previous != null) {
+            bytes -= previous.estimateSize();
+            if (entries != null) entries.set(entries.indexOf(previous), entry);
+            previous.wipe();
+        }
+        bytes += entry.estimateSize();
+        Iterator<VaultEntry> eldest = bySite.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            VaultEntry evicted = eldest.next();
+            eldest.remove();
+            bytes -= evicted.estimateSize();
+            evicted.wipe();
+            entries = null;
+        }
+    }
+
+    /*
+     * A function to wipe the cache once it has been idle long enough,
+     * or to check again when it would be.
+     */
+    private synchronized void expire() {
+        if (bySite == null) return;
+        long idle = System.currentTimeMillis() - lastAccess;
+        if (idle >= idleMillis) wipe();
+        else scheduleExpiry(idleMillis - idle);
+    }
+
+    private void scheduleExpiry(long delayMillis) {
+        if (expiry != null) expiry.cancel(false);
+        expiry = timer.schedule(this::expire, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void wipe() {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        if (bySite != null) {
+            bySite.values().forEach(VaultEntry::wipe);
+            bySite = null;
+        }
+        entries = null;
+        bytes = 0;
+    }
+}
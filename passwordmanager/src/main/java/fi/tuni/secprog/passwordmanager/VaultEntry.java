@@ -0,0 +1,129 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*
+ * A class representing a single credential entry of the user's vault.
+ * Entries read from the database keep the password encrypted and decrypt it only
+ * when it is asked for, e.g. when the user copies it. New entries that have not been
+ * stored yet hold the password in plain text. The username and password are kept
+ * in arrays, so that they can be wiped; the strings returned by the getters can not be.
+ */
+public class VaultEntry {
+    private final String siteName;
+    private final char[] username;
+    private final char[] password;          // for entries that are not stored yet
+    private final byte[] encryptedPassword; // IV + ciphertext, for entries read from the database
+    private final int keyVersion;           // the version of the data key of the encrypted password
+
+    public VaultEntry(String siteName, String username, String password) {
+        this(siteName, username.toCharArray(), password.toCharArray(), null, 0);
+    }
+
+    private VaultEntry(String siteName, char[] username, char[] password, byte[] encryptedPassword,
+                       int keyVersion) {
+        this.siteName = siteName;
+        this.username = username;
+        this.password = password;
+        this.encryptedPassword = encryptedPassword;
+        this.keyVersion = keyVersion;
+    }
+
+    /*
+     * A function to create an entry whose password is decrypted only on demand,
+     * with the data key of the given version.
+     */
+    public static VaultEntry withEncryptedPassword(String siteName, String username,
+                                                   byte[] encryptedPassword, int keyVersion) {
+        return new VaultEntry(siteName, username.toCharArray(), null, encryptedPassword, keyVersion);
+    }
+
+    /*
+     * A function to create an entry from the decrypted username, which is wiped,
+     * and the encrypted password, without the username ever being a string.
+     */
+    static VaultEntry decrypted(String siteName, byte[] username, byte[] encryptedPassword, int keyVersion) {
+        return new VaultEntry(siteName, decode(username), null, encryptedPassword, keyVersion);
+    }
+
+    public String getSiteName() {
+        return siteName;
+    }
+
+    public String getUsername() {
+        return new String(username);
+    }
+
+    public boolean isPasswordEncrypted() {
+        return encryptedPassword != null;
+    }
+
+    /*
+     * A function to get the password, decrypting it with the session key if needed.
+     * Returns null if the password can not be decrypted.
+     */
+    public String getPassword() {
+        char[] chars = getPasswordChars();
+        if (chars == null) return null;
+        String result = new String(chars);
+        Arrays.fill(chars, '\0');
+        return result;
+    }
+
+    /*
+     * A function to get the password into a new array, which the caller should wipe after use.
+     * Returns null if the password can not be decrypted.
+     */
+    public char[] getPasswordChars() {
+        if (encryptedPassword == null) return password.clone();
+        try {
+            return decode(AESUtil.decrypt(encryptedPassword, keyVersion));
+        } catch (Exception e) {
+            System.err.println("Error in decrypting the password: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * A function to decode plaintext into characters, wiping the plaintext and the buffer.
+     */
+    private static char[] decode(byte[] plaintext) {
+        CharBuffer chars = Charset.defaultCharset().decode(ByteBuffer.wrap(plaintext));
+        Arrays.fill(plaintext, (byte) 0);
+        char[] result = Arrays.copyOf(chars.array(), chars.limit());
+        Arrays.fill(chars.array(), '\0');
+        return result;
+    }
+
+    /*
+     * A function to estimate the memory the entry takes, in bytes.
+     */
+    long estimateSize() {
+        long size = 96 + 2L * (siteName.length() + username.length);
+        if (password != null) size += 2L * password.length;
+        if (encryptedPassword != null) size += encryptedPassword.length;
+        return size;
+    }
+
+    /*
+     * A function to get an independent copy of the entry, which is not wiped with this one.
+     */
+    public VaultEntry copy() {
+        return new VaultEntry(siteName, username.clone(),
+                              password == null ? null : password.clone(),
+                              encryptedPassword == null ? null : encryptedPassword.clone(),
+                              keyVersion);
+    }
+
+    /*
+     * A function to overwrite the username and password in memory.
+     */
+    public void wipe() {
+        Arrays.fill(username, '\0');
+        if (password != null) Arrays.fill(password, '\0');
+        if (encryptedPassword != null) Arrays.fill(encryptedPassword, (byte) 0);
+    }
+}
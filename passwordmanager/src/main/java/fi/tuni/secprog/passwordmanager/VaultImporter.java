@@ -0,0 +1,485 @@
+package fi.tuni.secprog.passwordmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+/*
+ * A class to import credentials exported from other password managers.
+ * CSV exports (e.g. Chrome, Firefox, Bitwarden, LastPass, KeePass) and JSON
+ * exports (e.g. Bitwarden, or an array of entries) are streamed, so the file
+ * is never loaded at once. Entries are encrypted in parallel in batches, and
+ * each batch is inserted in its own transaction while the next one is read
+ * and encrypted.
+ */
+public class VaultImporter {
+
+    public enum Format { CSV, JSON }
+
+    /*
+     * What to do with entries for websites the user already has credentials for,
+     * or that appear more than once in the file.
+     */
+    public enum DuplicatePolicy { SKIP, OVERWRITE }
+
+    static final int BATCH_SIZE = 500;
+
+    // Column names and JSON members of each field, in order of preference
+    private static final List<String> SITE_NAMES = List.of("name", "title", "account", "site",
+                                                           "website", "web site", "url", "login_uri");
+    private static final List<String> USERNAME_NAMES = List.of("username", "login_username", "login name",
+                                                               "login", "user", "email");
+    private static final List<String> PASSWORD_NAMES = List.of("password", "login_password");
+    // JSON members holding the array of entries
+    private static final List<String> ENTRY_ARRAYS = List.of("items", "entries", "credentials",
+                                                             "passwords", "logins");
+
+    /*
+     * A function to import a file into the vault of the logged in user.
+     * The format is detected from the file name or its contents. Progress is
+     * reported in bytes read out of the file size. A failed or cancelled import
+     * keeps the batches committed before it, which the result tells.
+     */
+    public static ImportResult importFile(Path file, DuplicatePolicy policy,
+                                          BackgroundTasks.ProgressListener progress) {
+        try (CountingInputStream input = new CountingInputStream(Files.newInputStream(file))) {
+            long size = Files.size(file);
+            BufferedInputStream buffered = new BufferedInputStream(input);
+            Format format = detectFormat(file, buffered);
+            Reader reader = new InputStreamReader(buffered, StandardCharsets.UTF_8);
+            ImportResult result = importEntries(parser(reader, format), policy,
+                                                () -> progress.update(input.getCount(), size));
+            progress.update(size, size);
+            return result;
+        } catch (IOException e) {
+            System.err.println("Error in reading the import file: " + e.getMessage());
+            return ImportResult.failed("Error in reading the file: " + e.getMessage());
+        }
+    }
+
+    /*
+     * A function to import from a reader in the given format, see importFile.
+     */
+    public static ImportResult importFrom(Reader reader, Format format, DuplicatePolicy policy) {
+        return importEntries(parser(reader, format), policy, () -> {});
+    }
+
+    /*
+     * A function to import entries from any source, e.g. a backup, see importFile.
+     * onBatch is run after each stored batch.
+     */
+    static ImportResult importEntries(EntrySource source, DuplicatePolicy policy, Runnable onBatch) {
+        ImportResult result = new ImportResult();
+        long start = System.nanoTime();
+        try {
+            new Run(policy, result, onBatch).run(source);
+        } catch (IOException e) {
+            System.err.println("Error in reading the import: " + e.getMessage());
+            result.error = "Error in reading the file: " + e.getMessage();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /*
+     * Reads entries and passes each one on to the consumer.
+     */
+    interface EntrySource {
+        void read(EntryConsumer consumer) throws IOException;
+    }
+
+    interface EntryConsumer {
+        void accept(String site, String username, String password) throws IOException;
+    }
+
+    /*
+     * A function to get the source of the entries of an export in the given format.
+     */
+    private static EntrySource parser(Reader reader, Format format) {
+        return consumer -> {
+            Reader input = new BufferedReader(reader);
+            skipByteOrderMark(input);
+            if (format == Format.JSON) readJson(new JsonReader(input), consumer);
+            else readCsv(new CsvReader(input), consumer);
+        };
+    }
+
+    private static void skipByteOrderMark(Reader reader) throws IOException {
+        reader.mark(1);
+        if (reader.read() != '\uFEFF') reader.reset();
+    }
+
+    private static void readCsv(CsvReader csv, EntryConsumer consumer) throws IOException {
+        List<String> header = csv.readRecord();
+        if (header == null) return;
+        List<String> columns = header.stream().map(name -> name.trim().toLowerCase(Locale.ROOT))
+                                     .collect(Collectors.toList());
+        int[] siteColumns = findColumns(columns, SITE_NAMES);
+        int[] usernameColumns = findColumns(columns, USERNAME_NAMES);
+        int[] passwordColumns = findColumns(columns, PASSWORD_NAMES);
+        if (siteColumns.length == 0 || passwordColumns.length == 0) {
+            throw new ImportStoppedException("The CSV file has no website or password column.");
+        }
+        List<String> record;
+        while ((record = csv.readRecord()) != null) {
+            consumer.accept(firstValue(record, siteColumns), firstValue(record, usernameColumns),
+                            firstValue(record, passwordColumns));
+        }
+    }
+
+    private static void readJson(JsonReader json, EntryConsumer consumer) throws IOException {
+        if (json.peek() == '[') {
+            readJsonEntries(json, consumer);
+            return;
+        }
+        // Find the array of entries among the members of the export
+        json.beginObject();
+        boolean found = false;
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (!found && ENTRY_ARRAYS.contains(name.toLowerCase(Locale.ROOT)) && json.peek() == '[') {
+                readJsonEntries(json, consumer);
+                found = true;
+            } else {
+                json.skipValue();
+            }
+        }
+        if (!found) throw new ImportStoppedException("The JSON file has no entries.");
+    }
+
+    private static void readJsonEntries(JsonReader json, EntryConsumer consumer) throws IOException {
+        json.beginArray();
+        while (json.hasNext()) {
+            Object value = json.nextValue();
+            if (!(value instanceof Map)) {
+                // Counted as an invalid entry
+                consumer.accept(null, null, null);
+                continue;
+            }
+            Map<?, ?> item = (Map<?, ?>) value;
+            // Bitwarden keeps the login details in a nested object
+            Map<?, ?> login = item.get("login") instanceof Map ? (Map<?, ?>) item.get("login") : Map.of();
+            String site = firstMember(item, SITE_NAMES);
+            if (site == null) site = firstUri(login);
+            String username = firstMember(item, USERNAME_NAMES);
+            if (username == null) username = firstMember(login, USERNAME_NAMES);
+            String password = firstMember(item, PASSWORD_NAMES);
+            if (password == null) password = firstMember(login, PASSWORD_NAMES);
+            consumer.accept(site, username, password);
+        }
+    }
+
+    private static int[] findColumns(List<String> columns, List<String> names) {
+        return names.stream().mapToInt(columns::indexOf).filter(index -> index >= 0).toArray();
+    }
+
+    private static String firstValue(List<String> record, int[] columns) {
+        for (int column : columns) {
+            if (column < record.size() && !record.get(column).isBlank()) return record.get(column);
+        }
+        return null;
+    }
+
+    private static String firstMember(Map<?, ?> object, List<String> names) {
+        for (String name : names) {
+            Object value = object.get(name);
+            if (value instanceof String && !((String) value).isBlank()) return (String) value;
+        }
+        return null;
+    }
+
+    private static String firstUri(Map<?, ?> login) {
+        if (!(login.get("uris") instanceof List)) return null;
+        for (Object uri : (List<?>) login.get("uris")) {
+            if (uri instanceof Map && ((Map<?, ?>) uri).get("uri") instanceof String) {
+                return (String) ((Map<?, ?>) uri).get("uri");
+            }
+        }
+        return null;
+    }
+
+    /*
+     * A function to detect the format from the file extension, or else from the
+     * first character of the contents.
+     */
+    private static Format detectFormat(Path file, BufferedInputStream input) throws IOException {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".json")) return Format.JSON;
+        if (name.endsWith(".csv")) return Format.CSV;
+        input.mark(64);
+        try {
+            int c;
+            while ((c = input.read()) != -1) {
+                // Skip whitespace and a UTF-8 byte order mark
+                if (Character.isWhitespace(c) || c == 0xEF || c == 0xBB || c == 0xBF) continue;
+                return c == '[' || c == '{' ? Format.JSON : Format.CSV;
+            }
+            return Format.CSV;
+        } finally {
+            input.reset();
+        }
+    }
+
+    /*
+     * A single import: reads the entries, sorts out the duplicates and invalid ones,
+     * and pipelines the encryption and insertion of the batches.
+     */
+    private static class Run {
+        private final DuplicatePolicy policy;
+        private final ImportResult result;
+        private final Runnable onBatch;
+        private final int userId = UserAuthentication.getUserId();
+        private final Set<String> knownSites = new HashSet<>();
+        private List<ImportEntry> batch = new ArrayList<>(BATCH_SIZE);
+        private CompletableFuture<List<ImportEntry>> encrypting;
+
+        Run(DuplicatePolicy policy, ImportResult result, Runnable onBatch) {
+            this.policy = policy;
+            this.result = result;
+            this.onBatch = onBatch;
+        }
+
+        void run(EntrySource source) throws IOException {
+            // Queued changes are written first, so the duplicates are found correctly
+            ManageCredentials.flushWrites();
+            List<String> websites = ManageCredentials.getWebsites();
+            if (websites == null) {
+                result.error = "Error in getting the existing websites.";
+                return;
+            }
+            knownSites.addAll(websites);
+            try {
+                source.read(this::add);
+                flushBatch();
+                storeEncrypted();
+            } catch (ImportStoppedException e) {
+                result.error = e.getMessage();
+            } finally {
+                if (encrypting != null) {
+                    encrypting.cancel(true);
+                    DataKeys.endWrite();
+                }
+            }
+        }
+
+        /*
+         * A function to add a read entry to the batch, unless it is invalid or a skipped duplicate.
+         */
+        private void add(String site, String username, String password) throws IOException {
+            result.read++;
+            if (site == null || site.isBlank() || password == null || password.isEmpty()) {
+                result.invalid++;
+                return;
+            }
+            site = site.trim();
+            boolean existing = !knownSites.add(site);
+            if (existing && policy == DuplicatePolicy.SKIP) {
+                result.duplicates++;
+                return;
+            }
+            batch.add(new ImportEntry(site, username == null ? "" : username, password, existing));
+            if (batch.size() == BATCH_SIZE) flushBatch();
+        }
+
+        /*
+         * A function to start encrypting the current batch in the background,
+         * after storing the previously encrypted one. A new data key is not taken
+         * into use until the batch is stored.
+         */
+        private void flushBatch() throws IOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new ImportStoppedException("The import was cancelled.");
+            }
+            storeEncrypted();
+            if (batch.isEmpty()) return;
+            List<ImportEntry> toEncrypt = batch;
+            DataKeys.beginWrite();
+            AESKeyHolder.DataKey key = AESKeyHolder.getDataKey();
+            encrypting = CompletableFuture.supplyAsync(() -> encrypt(toEncrypt, key));
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+
+        /*
+         * A function to wait for the batch being encrypted and store it in a single transaction.
+         */
+        private void storeEncrypted() throws IOException {
+            if (encrypting == null) return;
+            try {
+                storeEncrypted(encrypting);
+            } finally {
+                DataKeys.endWrite();
+            }
+        }
+
+        private void storeEncrypted(CompletableFuture<List<ImportEntry>> encrypted) throws IOException {
+            List<ImportEntry> entries;
+            try {
+                entries = encrypted.join();
+            } catch (CompletionException e) {
+                System.err.println("Error in encrypting the passwords: " + e.getCause().getMessage());
+                throw new ImportStoppedException("Error in encrypting the passwords.");
+            } finally {
+                encrypting = null;
+            }
+            try {
+                int[] results = ManageCredentials.storeEncrypted(userId, entries,
+                                                                 policy == DuplicatePolicy.OVERWRITE);
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] <= 0) result.duplicates++;
+                    else if (entries.get(i).existing) result.updated++;
+                    else result.created++;
+                }
+                result.batches++;
+                onBatch.run();
+            } catch (SQLException e) {
+                System.err.println("Error in storing the keys: " + e.getMessage());
+                throw new ImportStoppedException("Error in storing the keys.");
+            }
+        }
+
+        private static List<ImportEntry> encrypt(List<ImportEntry> entries, AESKeyHolder.DataKey key) {
+            entries.parallelStream().forEach(entry -> {
+                try {
+                    entry.encryptedUsername = ManageCredentials.encryptField(entry.username, key);
+                    entry.encryptedPassword = ManageCredentials.encryptField(entry.password, key);
+                    entry.passwordIndex = PasswordIndex.compute(entry.password);
+                    entry.keyVersion = key.getVersion();
+                    entry.username = null;
+                    entry.password = null;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+            return entries;
+        }
+
+    }
+
+    /*
+     * An entry to import, encrypted into the storage format of the credentials table
+     * with the data key of keyVersion before it is stored. existing tells if the website
+     * is already in the vault.
+     */
+    static class ImportEntry {
+        final String siteName;
+        final boolean existing;
+        String username;
+        String password;
+        Object encryptedUsername;
+        Object encryptedPassword;
+        byte[] passwordIndex;
+        int keyVersion;
+
+        ImportEntry(String siteName, String username, String password, boolean existing) {
+            this.siteName = siteName;
+            this.username = username;
+            this.password = password;
+            this.existing = existing;
+        }
+    }
+
+    /*
+     * The outcome of an import, with its throughput.
+     */
+    public static class ImportResult {
+        private int read = 0;
+        private int created = 0;
+        private int updated = 0;
+        private int duplicates = 0;
+        private int invalid = 0;
+        private int batches = 0;
+        private long elapsedNanos = 0;
+        private String error;
+
+        /*
+         * A function to get the result of an import that could not be started.
+         */
+        static ImportResult failed(String error) {
+            ImportResult result = new ImportResult();
+            result.error = error;
+            return result;
+        }
+
+        public int getRead() { return read; }
+        public int getCreated() { return created; }
+        public int getUpdated() { return updated; }
+        public int getDuplicates() { return duplicates; }
+        public int getInvalid() { return invalid; }
+        public int getBatches() { return batches; }
+        public long getElapsedMillis() { return elapsedNanos / 1_000_000; }
+
+        /*
+         * A function to get the error that stopped the import, or null if it finished.
+         */
+        public String getError() { return error; }
+
+        public double getEntriesPerSecond() {
+            return elapsedNanos == 0 ? 0 : read * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Read %d entries in %.1f s (%.0f entries/s): " +
+                                 "%d added, %d updated, %d duplicates skipped, %d invalid.",
+                                 read, elapsedNanos / 1e9, getEntriesPerSecond(),
+                                 created, updated, duplicates, invalid);
+        }
+    }
+
+    /*
+     * Stops an import with an error for the result, e.g. on cancellation or a failed batch.
+     */
+    static class ImportStoppedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ImportStoppedException(String message) {
+            super(message);
+        }
+    }
+
+    /*
+     * Counts the bytes read from the file for reporting the progress.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private volatile long count = 0;
+
+        CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int n = super.read(bytes, offset, length);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package fi.tuni.secprog.passwordmanager;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.Test;
+import org.mindrot.jbcrypt.BCrypt;
 
 /**
  * Test class for AES encryption and decryption.
@@ -68,4 +79,114 @@ public class AESTest {
         assertEquals(data, decryptedData);
         assertNotEquals(data, encryptedData);
     }
+
+    /**
+     * Test for the cached cipher of CryptoEngine being reusable after a failed
+     * decryption and across threads.
+     */
+    @Test
+    public void testCryptoEngineReuse() throws Exception {
+        CryptoEngine engine = AESUtil.getEngine();
+        SecretKeySpec key = AESUtil.deriveKey("TestKey123".toCharArray(), AESUtil.generateSalt());
+        byte[] encrypted1 = engine.encrypt(key, "SensitiveData".getBytes());
+        byte[] encrypted2 = engine.encrypt(key, "SensitiveData".getBytes());
+        assertNotEquals(new String(encrypted1), new String(encrypted2));
+
+        // A tampered ciphertext must fail without breaking the cached cipher
+        byte[] tampered = encrypted1.clone();
+        tampered[tampered.length - 1] ^= 1;
+        try {
+            engine.decrypt(key, tampered);
+            fail("Tampered ciphertext was decrypted");
+        } catch (GeneralSecurityException e) {
+            // Expected
+        }
+        assertEquals("SensitiveData", new String(engine.decrypt(key, encrypted1)));
+
+        // Each worker thread gets its own cipher
+        List<String> decrypted = IntStream.range(0, 100).parallel()
+            .mapToObj(i -> {
+                try {
+                    return new String(engine.decrypt(key, engine.encrypt(key, ("data" + i).getBytes())));
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            })
+            .collect(Collectors.toList());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("data" + i, decrypted.get(i));
+        }
+    }
+
+    /**
+     * Test for the binary and ByteBuffer encryption and decryption.
+     */
+    @Test
+    public void testBinaryEncryptionDecryption() throws Exception {
+        SecretKeySpec key = AESUtil.deriveKey("TestKey123".toCharArray(), AESUtil.generateSalt());
+        AESKeyHolder.storeKey(key);
+        byte[] data = "SensitiveData".getBytes();
+
+        byte[] encrypted = AESUtil.encrypt(data);
+        assertEquals(CryptoEngine.getEncryptedLength(data.length), encrypted.length);
+        assertArrayEquals(data, AESUtil.decrypt(encrypted));
+
+        // Encrypt into and decrypt from caller-provided buffers
+        ByteBuffer encryptedBuffer = ByteBuffer.allocate(CryptoEngine.getEncryptedLength(data.length));
+        int written = AESUtil.encrypt(ByteBuffer.wrap(data), encryptedBuffer);
+        assertEquals(encryptedBuffer.capacity(), written);
+        encryptedBuffer.flip();
+        ByteBuffer decryptedBuffer = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, AESUtil.decrypt(encryptedBuffer, decryptedBuffer));
+        assertArrayEquals(data, decryptedBuffer.array());
+    }
+
+    /**
+     * Test for the key derived in the background.
+     * The key can be taken once and a discarded slot gives no key.
+     */
+    @Test
+    public void testDerivedKeySlot() throws Exception {
+        char[] password = "TestKey123".toCharArray();
+        String salt = AESUtil.generateSalt();
+
+        DerivedKeySlot slot = DerivedKeySlot.derive(password, salt, KdfParameters.LEGACY);
+        // The caller may clear its password right away
+        java.util.Arrays.fill(password, ' ');
+        SecretKeySpec key = slot.take();
+        assertArrayEquals(AESUtil.deriveKey("TestKey123".toCharArray(), salt).getEncoded(),
+                          key.getEncoded());
+        assertNull(slot.take());
+
+        DerivedKeySlot discarded = DerivedKeySlot.derive("TestKey123".toCharArray(), salt, KdfParameters.LEGACY);
+        discarded.discard();
+        assertNull(discarded.take());
+    }
+
+    /**
+     * Test for the key derivation calibration and parameters.
+     * The calibrated work factors never go below the legacy ones.
+     */
+    @Test
+    public void testKeyDerivationCalibration() throws Exception {
+        KeyDerivation.configure("PBKDF2WithHmacSHA512", 1, 1);
+        try {
+            KdfParameters target = KeyDerivation.getTargetParameters();
+            assertEquals("PBKDF2WithHmacSHA512", target.getAlgorithm());
+            assertEquals(KdfParameters.LEGACY.getIterations(), target.getIterations());
+            assertEquals(12, KeyDerivation.getTargetBcryptCost());
+            assertTrue(KdfParameters.LEGACY.isWeakerThan(target));
+            assertFalse(target.isWeakerThan(new KdfParameters("PBKDF2WithHmacSHA512", 110_000)));
+
+            // Different parameters derive different keys
+            String salt = AESUtil.generateSalt();
+            assertNotEquals(AESUtil.deriveKey("TestKey123".toCharArray(), salt, target),
+                            AESUtil.deriveKey("TestKey123".toCharArray(), salt));
+            assertEquals(12, KeyDerivation.getBcryptCost(BCrypt.hashpw("TestKey123", BCrypt.gensalt(12))));
+        } finally {
+            KeyDerivation.configure(KeyDerivation.DEFAULT_ALGORITHM, KeyDerivation.DEFAULT_KDF_BUDGET,
+                                    KeyDerivation.DEFAULT_BCRYPT_BUDGET);
+            KeyDerivation.setTarget(KdfParameters.LEGACY, 12);
+        }
+    }
 }
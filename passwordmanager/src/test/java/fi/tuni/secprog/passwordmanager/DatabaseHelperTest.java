@@ -0,0 +1,418 @@
+package fi.tuni.secprog.passwordmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base32;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mindrot.jbcrypt.BCrypt;
+
+import com.eatthepath.otp.TimeBasedOneTimePasswordGenerator;
+
+/*
+ * Test class for DatabaseHelper and its connection pool
+ */
+public class DatabaseHelperTest {
+    private File tempDbFile;
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDbFile = File.createTempFile("testdb", ".sqlite");
+        tempDbFile.deleteOnExit();
+        pool = new ConnectionPool("jdbc:sqlite:" + tempDbFile.getAbsolutePath(),
+                                  DatabaseProfile.PERFORMANCE, 2, 200);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        tempDbFile.delete();
+    }
+
+    /*
+     * Test that nested connections on the same thread share one physical connection,
+     * which is reused after it has been given back.
+     */
+    @Test
+    public void testThreadLease() throws SQLException {
+        Connection physical;
+        try (Connection outer = pool.getConnection()) {
+            physical = outer.unwrap(Connection.class);
+            try (Connection inner = pool.getConnection()) {
+                assertSame(physical, inner.unwrap(Connection.class));
+            }
+            // Closing the inner connection must not end the outer lease
+            assertFalse(outer.isClosed());
+            assertTrue(outer.createStatement().execute("SELECT 1"));
+        }
+        try (Connection again = pool.getConnection()) {
+            assertSame(physical, again.unwrap(Connection.class));
+        }
+    }
+
+    /*
+     * Test that different threads get different connections, and that the pool is bounded.
+     * The leases are taken on threads of their own, since a pooled thread could already
+     * hold one, and each is given back on the thread that took it.
+     */
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        ExecutorService holder = Executors.newSingleThreadExecutor();
+        ExecutorService waiter = Executors.newSingleThreadExecutor();
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Void> holding = null;
+        try (Connection first = pool.getConnection()) {
+            Connection physical = first.unwrap(Connection.class);
+            Connection other = holder.submit(() -> {
+                try (Connection second = pool.getConnection()) {
+                    return second.unwrap(Connection.class);
+                }
+            }).get();
+            assertNotSame(physical, other);
+
+            // Hold both connections and make a third thread wait for one
+            holding = holder.submit(() -> {
+                Connection second = pool.getConnection();
+                try {
+                    held.countDown();
+                    release.await();
+                } finally {
+                    second.close();
+                }
+                return null;
+            });
+            held.await();
+            waiter.submit(() -> {
+                try {
+                    pool.getConnection().close();
+                    fail("Pool handed out more connections than its size");
+                } catch (SQLException e) {
+                    // Expected timeout
+                }
+                return null;
+            }).get();
+        } finally {
+            release.countDown();
+            if (holding != null) holding.get();
+            holder.shutdown();
+            waiter.shutdown();
+            assertTrue(holder.awaitTermination(5, TimeUnit.SECONDS));
+            assertTrue(waiter.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /*
+     * Test that a broken idle connection is replaced by a healthy one.
+     */
+    @Test
+    public void testHealthCheck() throws SQLException {
+        Connection physical;
+        try (Connection conn = pool.getConnection()) {
+            physical = conn.unwrap(Connection.class);
+        }
+        physical.close();
+        try (Connection conn = pool.getConnection()) {
+            assertNotSame(physical, conn.unwrap(Connection.class));
+            assertTrue(conn.createStatement().execute("SELECT 1"));
+        }
+    }
+
+    /*
+     * Test that an unfinished transaction is rolled back when the connection is given back.
+     */
+    @Test
+    public void testTransactionIsResetOnRelease() throws SQLException {
+        try (Connection conn = pool.getConnection()) {
+            conn.createStatement().execute("CREATE TABLE t (x INTEGER)");
+            conn.setAutoCommit(false);
+            conn.createStatement().execute("INSERT INTO t VALUES (1)");
+        }
+        try (Connection conn = pool.getConnection()) {
+            assertTrue(conn.getAutoCommit());
+            assertFalse(conn.createStatement().executeQuery("SELECT x FROM t").next());
+        }
+    }
+
+    /*
+     * Test that the performance profile is applied to every pooled connection.
+     */
+    @Test
+    public void testPerformanceProfile() throws Exception {
+        assertEquals("wal", queryPragma("journal_mode"));
+        assertEquals("1", queryPragma("synchronous"));
+        assertEquals("2", queryPragma("temp_store"));
+        assertEquals("-16000", queryPragma("cache_size"));
+        assertEquals("1", queryPragma("foreign_keys"));
+
+        // A connection opened by another thread gets the same pragmas
+        String otherThread = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queryPragma("synchronous");
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }).get();
+        assertEquals("1", otherThread);
+    }
+
+    /*
+     * Test that the migrations bring a new database to the latest version, once.
+     */
+    @Test
+    public void testMigrateNewDatabase() throws SQLException {
+        try (Connection conn = pool.getConnection()) {
+            assertEquals(0, DatabaseHelper.getSchemaVersion(conn));
+            DatabaseHelper.migrate(conn);
+            assertEquals(DatabaseHelper.getLatestSchemaVersion(), DatabaseHelper.getSchemaVersion(conn));
+            DatabaseHelper.migrate(conn);
+            assertEquals(DatabaseHelper.getLatestSchemaVersion(), DatabaseHelper.getSchemaVersion(conn));
+
+            // Credential lookups use the composite index instead of scanning the table
+            ResultSet rs = conn.createStatement().executeQuery(
+                "EXPLAIN QUERY PLAN SELECT site_username, site_password FROM credentials " +
+                "WHERE user_id = 1 AND site_name = 'example.com'");
+            assertTrue(rs.next());
+            assertTrue(rs.getString("detail").contains("idx_credentials_user_site"));
+
+            // The login index serving no query is dropped
+            rs = conn.createStatement().executeQuery(
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = 'idx_users_login'");
+            assertEquals(0, rs.getInt(1));
+
+            // The key rotation checkpoints are dropped when no change is in progress
+            rs = conn.createStatement().executeQuery(
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'key_rotations'");
+            assertEquals(0, rs.getInt(1));
+        }
+    }
+
+    /*
+     * Test that a master password change interrupted on schema version 5 survives the
+     * migrations and is finished on the next login with the old password, after which
+     * only the new password opens the vault.
+     */
+    @Test
+    public void testMigratePendingPasswordChange() throws Exception {
+        DatabaseHelper.setTestDB("jdbc:sqlite:" + tempDbFile.getAbsolutePath());
+        KeyDerivation.setTarget(KdfParameters.LEGACY, 10);
+        char[] oldPassword = "OldPassword123".toCharArray();
+        char[] newPassword = "NewPassword456".toCharArray();
+        String oldSalt = AESUtil.generateSalt();
+        String newSalt = AESUtil.generateSalt();
+        SecretKeySpec oldKey = AESUtil.deriveKey(oldPassword, oldSalt, KdfParameters.LEGACY);
+        SecretKeySpec newKey = AESUtil.deriveKey(newPassword, newSalt, KdfParameters.LEGACY);
+        String secret = TOTPUtil.generateSecretKey();
+        try {
+            try (Connection conn = DatabaseHelper.getConnection()) {
+                DatabaseHelper.migrate(conn, 5);
+            }
+            try (Connection conn = DatabaseHelper.getConnection();
+                 Statement stmt = conn.createStatement();
+                 PreparedStatement user = conn.prepareStatement(
+                     "INSERT INTO users (username, password_hash, totp_secret, salt) VALUES (?, ?, ?, ?)");
+                 PreparedStatement entry = conn.prepareStatement(
+                     "INSERT INTO credentials (user_id, site_name, site_username, site_password) " +
+                     "VALUES (1, ?, ?, ?)");
+                 PreparedStatement rotation = conn.prepareStatement(
+                     "INSERT INTO key_rotations (user_id, wrapped_key, password_hash, salt, " +
+                     "kdf_algorithm, kdf_iterations, last_id) VALUES (1, ?, ?, ?, ?, ?, 2)")) {
+                user.setString(1, "pending");
+                user.setString(2, BCrypt.hashpw(new String(oldPassword), BCrypt.gensalt(10)));
+                user.setString(3, Base64.getEncoder().encodeToString(
+                    AESUtil.getEngine().encrypt(oldKey, secret.getBytes())));
+                user.setString(4, oldSalt);
+                user.executeUpdate();
+
+                // The first two entries were re-encrypted with the new key before the change stopped
+                for (int i = 0; i < 4; i++) {
+                    SecretKeySpec key = i < 2 ? newKey : oldKey;
+                    entry.setString(1, "site" + i + ".com");
+                    entry.setBytes(2, AESUtil.getEngine().encrypt(key, ("user" + i).getBytes()));
+                    entry.setBytes(3, AESUtil.getEngine().encrypt(key, ("pass" + i).getBytes()));
+                    entry.executeUpdate();
+                }
+                rotation.setBytes(1, AESUtil.getEngine().encrypt(oldKey, newKey.getEncoded()));
+                rotation.setString(2, BCrypt.hashpw(new String(newPassword), BCrypt.gensalt(10)));
+                rotation.setString(3, newSalt);
+                rotation.setString(4, KdfParameters.LEGACY.getAlgorithm());
+                rotation.setInt(5, KdfParameters.LEGACY.getIterations());
+                rotation.executeUpdate();
+
+                DatabaseHelper.migrate(conn);
+                try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM key_rotations")) {
+                    assertEquals(1, rs.getInt(1));
+                }
+            }
+
+            login(oldPassword, secret);
+            assertVault();
+            assertEquals(4, DataKeys.awaitMigration());
+            try (Connection conn = DatabaseHelper.getConnection();
+                 Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery(
+                     "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'key_rotations'")) {
+                assertEquals(0, rs.getInt(1));
+            }
+            UserAuthentication.logoutUser();
+
+            assertFalse(LoginSession.start("pending").checkPassword(oldPassword));
+            login(newPassword, secret);
+            assertVault();
+            UserAuthentication.logoutUser();
+        } finally {
+            DatabaseHelper.closePool();
+        }
+    }
+
+    private void login(char[] password, String secret) throws Exception {
+        TimeBasedOneTimePasswordGenerator totp = new TimeBasedOneTimePasswordGenerator();
+        SecretKeySpec key = new SecretKeySpec(new Base32().decode(secret), totp.getAlgorithm());
+        String code = String.format("%06d", totp.generateOneTimePassword(key, Instant.now()));
+        LoginSession session = LoginSession.start("pending");
+        assertTrue(session.checkPassword(password));
+        assertTrue(session.verifyTOTP(password, code));
+    }
+
+    private void assertVault() {
+        for (int i = 0; i < 4; i++) {
+            assertEquals(List.of("user" + i, "pass" + i), ManageCredentials.getCredentials("site" + i + ".com"));
+        }
+    }
+
+    /*
+     * Test that a database created before the migrations is upgraded, and that
+     * duplicate sites are moved aside before the unique index is created.
+     */
+    @Test
+    public void testMigrateExistingDatabase() throws SQLException {
+        try (Connection conn = pool.getConnection()) {
+            Statement stmt = conn.createStatement();
+            stmt.execute("CREATE TABLE credentials (" +
+                         "id            INTEGER PRIMARY KEY AUTOINCREMENT," +
+                         "user_id       INTEGER NOT NULL," +
+                         "site_name     VARCHAR(255) NOT NULL," +
+                         "site_username VARCHAR(255) NOT NULL," +
+                         "site_password VARCHAR(255) NOT NULL);");
+            stmt.execute("INSERT INTO credentials (user_id, site_name, site_username, site_password) " +
+                         "VALUES (1, 'example.com', 'a', 'b'), (1, 'example.com', 'c', 'd'), " +
+                         "(1, 'other.com', 'g', 'h')");
+
+            DatabaseHelper.migrate(conn);
+            ResultSet rs = stmt.executeQuery("SELECT site_username FROM credentials ORDER BY id");
+            assertTrue(rs.next());
+            assertEquals("c", rs.getString(1));
+            assertTrue(rs.next());
+            assertEquals("g", rs.getString(1));
+            assertFalse(rs.next());
+            rs = stmt.executeQuery("SELECT site_name, site_username, site_password FROM credentials_duplicates");
+            assertTrue(rs.next());
+            assertEquals("example.com", rs.getString(1));
+            assertEquals("a", rs.getString(2));
+            assertEquals("b", rs.getString(3));
+            assertFalse(rs.next());
+            rs.close();
+
+            try {
+                stmt.execute("INSERT INTO credentials (user_id, site_name, site_username, site_password) " +
+                             "VALUES (1, 'example.com', 'e', 'f')");
+                fail("Duplicate site was inserted");
+            } catch (SQLException e) {
+                // Expected unique constraint violation
+            }
+        }
+    }
+
+    /*
+     * Test that repeated statements are served from the statement cache.
+     */
+    @Test
+    public void testStatementCache() throws SQLException {
+        String sql = "SELECT ? + 1";
+        long misses = pool.getStatementCacheMisses();
+        for (int i = 0; i < 3; i++) {
+            try (Connection conn = pool.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setInt(1, i);
+                ResultSet rs = pstmt.executeQuery();
+                assertTrue(rs.next());
+                assertEquals(i + 1, rs.getInt(1));
+            }
+        }
+        assertEquals(misses + 1, pool.getStatementCacheMisses());
+        assertEquals(2, pool.getStatementCacheHits());
+
+        // A statement still in use is not handed out twice
+        try (Connection conn = pool.getConnection();
+             PreparedStatement first = conn.prepareStatement(sql);
+             PreparedStatement second = conn.prepareStatement(sql)) {
+            assertNotSame(first, second);
+            first.setInt(1, 1);
+            second.setInt(1, 10);
+            ResultSet rs1 = first.executeQuery();
+            ResultSet rs2 = second.executeQuery();
+            assertTrue(rs1.next() && rs2.next());
+            assertEquals(2, rs1.getInt(1));
+            assertEquals(11, rs2.getInt(1));
+        }
+        assertEquals(3, pool.getStatementCacheHits());
+    }
+
+    /*
+     * Test that the least recently used statement is evicted from a full cache.
+     */
+    @Test
+    public void testStatementCacheEviction() throws SQLException {
+        try (Connection conn = pool.getConnection()) {
+            LongAdder hits = new LongAdder();
+            LongAdder misses = new LongAdder();
+            StatementCache cache = new StatementCache(conn.unwrap(Connection.class), 2, hits, misses);
+            cache.prepareStatement("SELECT 1").close();
+            cache.prepareStatement("SELECT 2").close();
+            cache.prepareStatement("SELECT 1").close();
+            cache.prepareStatement("SELECT 3").close();
+            assertEquals(2, cache.size());
+
+            // SELECT 2 was the least recently used, so it has to be compiled again
+            cache.prepareStatement("SELECT 1").close();
+            cache.prepareStatement("SELECT 2").close();
+            assertEquals(2, hits.sum());
+            assertEquals(4, misses.sum());
+            cache.close();
+        }
+    }
+
+    private String queryPragma(String pragma) throws SQLException {
+        try (Connection conn = pool.getConnection()) {
+            ResultSet rs = conn.createStatement().executeQuery("PRAGMA " + pragma + ";");
+            assertTrue(rs.next());
+            return rs.getString(1);
+        }
+    }
+}
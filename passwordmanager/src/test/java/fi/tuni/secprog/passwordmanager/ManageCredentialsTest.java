@@ -8,13 +8,26 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -62,6 +75,7 @@ public class ManageCredentialsTest {
                       "site_password VARCHAR(255) NOT NULL," +
                       "FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE" +
                       ");");
+        DatabaseHelper.migrate(conn);
     }
 
     @AfterClass
@@ -91,8 +105,10 @@ public class ManageCredentialsTest {
             pstmt.setString(3, encryptedTOTP);
             pstmt.setString(4, salt);
             pstmt.executeUpdate();
-            
-            UserAuthentication.setUserId(1);
+
+            // Log in as the inserted user, foreign keys are enforced on every connection
+            ResultSet rs = conn.createStatement().executeQuery("SELECT last_insert_rowid()");
+            UserAuthentication.setUserId(rs.getInt(1));
         } catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
         }
@@ -105,13 +121,13 @@ public class ManageCredentialsTest {
     @After
     public void tearDown() {
         String sql1 = "DELETE FROM users WHERE username = ?";
-        String sql2 = "DELETE FROM credentials WHERE user_id = 1";
+        String sql2 = "DELETE FROM credentials WHERE user_id = " + UserAuthentication.getUserId();
         try (Connection conn = DatabaseHelper.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql1)) {
-            pstmt.setString(1, username);
-            pstmt.executeUpdate();
             Statement stmt = conn.createStatement();
             stmt.execute(sql2);
+            pstmt.setString(1, username);
+            pstmt.executeUpdate();
             assertFalse(UserAuthentication.userExists(username));
         } catch (SQLException e) {
             System.err.println("Error during SQL query: " + e.getMessage());
@@ -199,6 +215,258 @@ public class ManageCredentialsTest {
         assertTrue(websites.contains(siteName2));
     }
 
+    /*
+     * Test for getting all credentials of the user with a single query.
+     */
+    @Test
+    public void testGetAllCredentials() {
+        assertTrue(ManageCredentials.getAllCredentials().isEmpty());
+        assertTrue(ManageCredentials.storeKey("example1.com", "websiteUser1", "StrongPass123"));
+        assertTrue(ManageCredentials.storeKey("example2.com", "websiteUser2", "StrongPass456"));
+        List<VaultEntry> entries = ManageCredentials.getAllCredentials();
+        assertEquals(entries.size(), 2);
+        assertEquals(entries.get(0).getSiteName(), "example1.com");
+        assertEquals(entries.get(0).getUsername(), "websiteUser1");
+        assertEquals(entries.get(0).getPassword(), "StrongPass123");
+        assertEquals(entries.get(1).getSiteName(), "example2.com");
+        assertEquals(entries.get(1).getUsername(), "websiteUser2");
+        assertEquals(entries.get(1).getPassword(), "StrongPass456");
+    }
+
+    /*
+     * Test for decrypting a large vault in parallel, keeping the order of the entries.
+     */
+    @Test
+    public void testParallelDecryptionKeepsOrder() {
+        int count = 200;
+        for (int i = 0; i < count; i++) {
+            assertTrue(ManageCredentials.storeKey("site" + i + ".com", "user" + i, "StrongPass" + i));
+        }
+        List<VaultEntry> entries = ManageCredentials.getAllCredentials();
+        assertEquals(entries.size(), count);
+        for (int i = 0; i < count; i++) {
+            assertEquals(entries.get(i).getSiteName(), "site" + i + ".com");
+            assertEquals(entries.get(i).getUsername(), "user" + i);
+            assertEquals(entries.get(i).getPassword(), "StrongPass" + i);
+        }
+    }
+
+    /*
+     * Test for storing the ciphertext as BLOBs.
+     */
+    @Test
+    public void testBlobCiphertext() throws SQLException {
+        DatabaseHelper.setBlobCiphertext(true);
+        try {
+            assertTrue(ManageCredentials.storeKey("example.com", "websiteUser", "StrongPass123"));
+            assertEquals(getStorageType("example.com"), "blob");
+            List<String> credentials = ManageCredentials.getCredentials("example.com");
+            assertEquals(credentials.get(0), "websiteUser");
+            assertEquals(credentials.get(1), "StrongPass123");
+        } finally {
+            DatabaseHelper.setBlobCiphertext(false);
+        }
+    }
+
+    /*
+     * Test for migrating existing Base64 ciphertext rows to BLOBs.
+     */
+    @Test
+    public void testMigrateCiphertextToBlob() throws SQLException {
+        assertTrue(ManageCredentials.storeKey("example1.com", "websiteUser1", "StrongPass123"));
+        assertTrue(ManageCredentials.storeKey("example2.com", "websiteUser2", "StrongPass456"));
+        assertEquals(getStorageType("example1.com"), "text");
+
+        assertEquals(DatabaseHelper.migrateCiphertextToBlob(), 2);
+        assertEquals(getStorageType("example1.com"), "blob");
+        assertEquals(getStorageType("example2.com"), "blob");
+        assertEquals(DatabaseHelper.migrateCiphertextToBlob(), 0);
+
+        List<VaultEntry> entries = ManageCredentials.getAllCredentials();
+        assertEquals(entries.get(0).getUsername(), "websiteUser1");
+        assertEquals(entries.get(1).getPassword(), "StrongPass456");
+    }
+
+    /*
+     * Returns the SQLite storage type of the stored password of the site.
+     */
+    private static String getStorageType(String siteName) throws SQLException {
+        String sql = "SELECT typeof(site_password) FROM credentials WHERE site_name = ?";
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, siteName);
+            ResultSet rs = pstmt.executeQuery();
+            assertTrue(rs.next());
+            return rs.getString(1);
+        }
+    }
+
+    /*
+     * Test that storing a key for an existing site does not create a second row.
+     */
+    @Test
+    public void testStoreExistingKey() {
+        assertTrue(ManageCredentials.storeKey("example.com", "websiteUser", "StrongPass123"));
+        assertFalse(ManageCredentials.storeKey("example.com", "otherUser", "OtherPass123"));
+        List<String> credentials = ManageCredentials.getCredentials("example.com");
+        assertEquals(credentials.get(0), "websiteUser");
+        assertEquals(ManageCredentials.getWebsites().size(), 1);
+    }
+
+    /*
+     * Test for storing many keys in a single transaction.
+     */
+    @Test
+    public void testStoreKeys() {
+        assertTrue(ManageCredentials.storeKey("example1.com", "websiteUser1", "StrongPass123"));
+        List<VaultEntry> entries = List.of(
+            new VaultEntry("example1.com", "duplicateUser", "StrongPass456"),
+            new VaultEntry("example2.com", "websiteUser2", "StrongPass789"),
+            new VaultEntry("example3.com", "websiteUser3", "StrongPass000"));
+        assertEquals(ManageCredentials.storeKeys(entries), 2);
+
+        List<VaultEntry> stored = ManageCredentials.getAllCredentials();
+        assertEquals(stored.size(), 3);
+        assertEquals(stored.get(0).getUsername(), "websiteUser1");
+        assertEquals(stored.get(1).getUsername(), "websiteUser2");
+        assertEquals(stored.get(2).getPassword(), "StrongPass000");
+    }
+
+    /*
+     * Test for queued credential changes, which are written in the background.
+     */
+    @Test
+    public void testAsyncWrites() throws Exception {
+        CompletableFuture<Boolean> stored = ManageCredentials.storeKeyAsync("example.com",
+                                                                           "websiteUser", "StrongPass123");
+        CompletableFuture<Boolean> duplicate = ManageCredentials.storeKeyAsync("example.com",
+                                                                              "otherUser", "OtherPass123");
+        CompletableFuture<Boolean> updated = ManageCredentials.updateKeyAsync("example.com",
+                                                                             "newUser", "NewStrongPass123");
+        CompletableFuture<Boolean> missing = ManageCredentials.updateKeyAsync("nonexistent.com",
+                                                                             "user", "pass");
+        ManageCredentials.flushWrites();
+        assertTrue(stored.isDone());
+        assertTrue(stored.get());
+        assertFalse(duplicate.get());
+        assertTrue(updated.get());
+        assertFalse(missing.get());
+        assertEquals(ManageCredentials.getCredentials("example.com").get(0), "newUser");
+
+        assertTrue(ManageCredentials.deleteKeyAsync("example.com").get());
+        assertNull(ManageCredentials.getCredentials("example.com"));
+    }
+
+    /*
+     * Test that consecutive updates of the same site are written once, with the latest values.
+     */
+    @Test
+    public void testAsyncUpdatesAreCoalesced() throws Exception {
+        assertTrue(ManageCredentials.storeKey("example.com", "websiteUser", "StrongPass123"));
+        int userId = UserAuthentication.getUserId();
+        CredentialWriteQueue queue = new CredentialWriteQueue(500);
+        AESKeyHolder.DataKey key = AESKeyHolder.getDataKey();
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(queue.update(userId, "example.com",
+                                     ManageCredentials.encryptField("user" + i, key),
+                                     ManageCredentials.encryptField("StrongPass" + i, key),
+                                     key.getVersion()));
+        }
+        queue.flush();
+        assertEquals(queue.getCoalescedCount(), 2);
+        for (CompletableFuture<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        List<String> credentials = ManageCredentials.getCredentials("example.com");
+        assertEquals(credentials.get(0), "user2");
+        assertEquals(credentials.get(1), "StrongPass2");
+    }
+
+    /*
+     * Test for finding reused passwords with the password index, and for indexing
+     * the rows written without it.
+     */
+    @Test
+    public void testPasswordIndex() throws Exception {
+        // Written without an index key, so not indexed yet
+        assertTrue(ManageCredentials.storeKey("old.com", "oldUser", "SharedPass123"));
+        AESKeyHolder.storeIndexKey(DataKeys.generateKey());
+        try {
+            assertTrue(ManageCredentials.storeKey("a.com", "userA", "SharedPass123"));
+            assertTrue(ManageCredentials.storeKey("b.com", "userB", "OtherPass123"));
+            assertTrue(ManageCredentials.storeKeyAsync("c.com", "userC", "SharedPass123").get());
+            assertEquals(1, ManageCredentials.storeKeys(List.of(new VaultEntry("d.com", "userD", "OtherPass123"))));
+            assertEquals(List.of("a.com", "c.com"), ManageCredentials.getWebsitesWithPassword("SharedPass123"));
+            assertEquals(List.of(), ManageCredentials.getWebsitesWithPassword("UnusedPass123"));
+
+            // A changed password moves the entry to another group
+            assertTrue(ManageCredentials.updateKey("c.com", "userC", "OtherPass123"));
+            assertEquals(List.of("b.com", "c.com", "d.com"),
+                         ManageCredentials.getWebsitesWithPassword("OtherPass123"));
+            assertTrue(ManageCredentials.updateKeyAsync("b.com", "userB", "SharedPass123").get());
+
+            // The backfill indexes the old row only
+            assertEquals(1, PasswordIndex.backfill(UserAuthentication.getUserId()));
+            assertEquals(0, PasswordIndex.backfill(UserAuthentication.getUserId()));
+            assertEquals(List.of("old.com", "a.com", "b.com"),
+                         ManageCredentials.getWebsitesWithPassword("SharedPass123"));
+            List<List<String>> reused = ManageCredentials.getReusedPasswords();
+            assertEquals(2, reused.size());
+            assertTrue(reused.contains(List.of("old.com", "a.com", "b.com")));
+            assertTrue(reused.contains(List.of("c.com", "d.com")));
+        } finally {
+            AESKeyHolder.storeIndexKey(null);
+        }
+    }
+
+    /*
+     * Test that a non-ASCII password gets the same index when it is written and when
+     * it is indexed later from the vault, whatever the platform encoding.
+     */
+    @Test
+    public void testPasswordIndexNonAscii() throws Exception {
+        String password = "P\u00e4ssw\u00f6rd\u20ac1";
+        assertTrue(ManageCredentials.storeKey("old.com", "oldUser", password));
+        AESKeyHolder.storeIndexKey(DataKeys.generateKey());
+        try {
+            assertTrue(ManageCredentials.storeKey("new.com", "newUser", password));
+            assertEquals(1, PasswordIndex.backfill(UserAuthentication.getUserId()));
+            assertEquals(List.of("old.com", "new.com"), ManageCredentials.getWebsitesWithPassword(password));
+            assertEquals(List.of(List.of("old.com", "new.com")), ManageCredentials.getReusedPasswords());
+        } finally {
+            AESKeyHolder.storeIndexKey(null);
+        }
+    }
+
+    /*
+     * Test that a failing queued change does not fail the other changes of its batch.
+     */
+    @Test
+    public void testAsyncWriteFailureIsIsolated() throws Exception {
+        int userId = UserAuthentication.getUserId();
+        CredentialWriteQueue queue = new CredentialWriteQueue(500);
+        AESKeyHolder.DataKey key = AESKeyHolder.getDataKey();
+        CompletableFuture<Boolean> first = queue.store(userId, "first.com",
+                                                       ManageCredentials.encryptField("user1", key),
+                                                       ManageCredentials.encryptField("StrongPass1", key),
+                                                       key.getVersion());
+        // No such user, so the foreign key fails
+        CompletableFuture<Boolean> failing = queue.store(userId + 1_000, "failing.com",
+                                                         ManageCredentials.encryptField("user2", key),
+                                                         ManageCredentials.encryptField("StrongPass2", key),
+                                                         key.getVersion());
+        CompletableFuture<Boolean> last = queue.store(userId, "last.com",
+                                                      ManageCredentials.encryptField("user3", key),
+                                                      ManageCredentials.encryptField("StrongPass3", key),
+                                                      key.getVersion());
+        queue.flush();
+        assertTrue(first.get());
+        assertTrue(failing.isCompletedExceptionally());
+        assertTrue(last.get());
+        assertEquals(List.of("first.com", "last.com"), ManageCredentials.getWebsites());
+    }
+
     /*
      * Test for handling a non-existent site.
      */
@@ -209,4 +477,371 @@ public class ManageCredentialsTest {
         assertFalse(ManageCredentials.updateKey("nonexistent.com", "user", "pass"));
         assertFalse(ManageCredentials.deleteKey("nonexistent.com"));
     }
+
+    /*
+     * Test for the decrypted vault cache.
+     * Repeated reads are served from the cache until the credentials are changed.
+     */
+    @Test
+    public void testVaultCache() throws Exception {
+        VaultCache cache = ManageCredentials.getVaultCache();
+        assertTrue(ManageCredentials.storeKey("example.com", "user1", "StrongPass1"));
+        assertEquals(1, ManageCredentials.getAllCredentials().size());
+
+        long hits = cache.getHits();
+        List<VaultEntry> entries = ManageCredentials.getAllCredentials();
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals("StrongPass1", entries.get(0).getPassword());
+        assertEquals(List.of("user1", "StrongPass1"), ManageCredentials.getCredentials("example.com"));
+        assertNull(ManageCredentials.getCredentials("nonexistent.com"));
+
+        // The callers' copies are not wiped with the cache
+        ManageCredentials.clearCache();
+        assertEquals("StrongPass1", entries.get(0).getPassword());
+
+        // Every kind of change invalidates the cache
+        assertTrue(ManageCredentials.updateKey("example.com", "user1", "StrongPass2"));
+        assertEquals("StrongPass2", ManageCredentials.getAllCredentials().get(0).getPassword());
+        assertTrue(ManageCredentials.updateKeyAsync("example.com", "user1", "StrongPass3").get());
+        assertEquals("StrongPass3", ManageCredentials.getAllCredentials().get(0).getPassword());
+        assertTrue(ManageCredentials.deleteKey("example.com"));
+        assertTrue(ManageCredentials.getAllCredentials().isEmpty());
+
+        // A vault read before a change is not cached after it
+        long snapshot = cache.getGeneration();
+        cache.invalidate();
+        cache.put(UserAuthentication.getUserId(), snapshot, List.of(new VaultEntry("a", "b", "c")));
+        assertNull(cache.get(UserAuthentication.getUserId()));
+    }
+
+    /*
+     * Test for wiping the vault cache after the idle time.
+     */
+    @Test
+    public void testVaultCacheExpiry() throws Exception {
+        VaultCache cache = new VaultCache(1 << 20, 50);
+        cache.put(1, cache.getGeneration(), List.of(new VaultEntry("example.com", "user1", "StrongPass1")));
+        assertEquals(1, cache.get(1).size());
+        assertNull(cache.get(2));
+        Thread.sleep(100);
+        assertNull(cache.get(1));
+
+        // Of a vault over the budget only the most recently used entries are kept
+        VaultEntry entry = new VaultEntry("a", "b", "c");
+        VaultCache small = new VaultCache(entry.estimateSize() * 3 / 2, 1_000);
+        small.put(1, small.getGeneration(), List.of(entry, new VaultEntry("d", "e", "f")));
+        assertNull(small.get(1));
+        assertEquals("e", small.find(1, "d").get(0).getUsername());
+        assertNull(small.find(1, "a"));
+        assertNull(small.find(2, "d"));
+
+        // An entry read by site is cached in place of the least recently used one
+        small.putEntry(1, small.getGeneration(), new VaultEntry("a", "b", "c"));
+        assertEquals("c", small.find(1, "a").get(0).getPassword());
+        assertNull(small.find(1, "d"));
+
+        // A whole cached vault answers for the sites it does not have
+        cache.put(1, cache.getGeneration(), List.of(entry));
+        assertTrue(cache.find(1, "d").isEmpty());
+        assertNull(cache.find(2, "d"));
+    }
+
+    /*
+     * Test for decrypting the passwords on demand.
+     * Listing the vault decrypts only the usernames.
+     */
+    @Test
+    public void testPasswordDecryptedOnDemand() {
+        assertTrue(ManageCredentials.storeKey("example.com", "user1", "StrongPass1"));
+        VaultEntry entry = ManageCredentials.getAllCredentials().get(0);
+        assertTrue(entry.isPasswordEncrypted());
+        assertEquals("user1", entry.getUsername());
+
+        char[] password = entry.getPasswordChars();
+        assertEquals("StrongPass1", new String(password));
+        Arrays.fill(password, '\0');
+        assertEquals("StrongPass1", entry.getPassword());
+
+        // Without the session key the password can not be decrypted
+        SecretKeySpec key = AESKeyHolder.getKey();
+        AESKeyHolder.storeKey(null);
+        assertNull(entry.getPassword());
+        AESKeyHolder.storeKey(key);
+
+        // A wiped entry no longer holds the ciphertext
+        entry.wipe();
+        assertNull(entry.getPassword());
+    }
+
+    /*
+     * Test for ranking the site search results.
+     */
+    @Test
+    public void testSiteSearchIndex() {
+        SiteSearchIndex index = SiteSearchIndex.of(List.of("github.com", "gitlab.com", "git.example.org",
+                                                           "mail.google.com", "Google.com", "example.com"));
+        assertEquals(6, index.size());
+
+        // Prefix matches come first, shortest first, ignoring case
+        assertEquals(List.of("github.com", "gitlab.com", "git.example.org"), index.search("GIT", 3));
+        assertEquals(List.of("Google.com", "mail.google.com"), index.search("goo", 10));
+        assertEquals(List.of("github.com", "gitlab.com"), index.search("git", 2));
+
+        // Then the other sites containing the query, then similar ones
+        assertEquals(List.of("example.com", "git.example.org"), index.search("example", 10));
+        assertEquals("github.com", index.search("githbu.com", 10).get(0));
+        assertTrue(index.search("zzzz", 10).isEmpty());
+
+        // Removing merges the trie back and adding again finds the site
+        index.remove("github.com");
+        index.remove("github.com");
+        assertEquals(List.of("gitlab.com", "git.example.org"), index.search("git", 10));
+        index.remove("git.example.org");
+        assertEquals(List.of("gitlab.com"), index.search("gi", 10));
+        index.add("github.com");
+        index.add("github.com");
+        assertEquals(List.of("github.com", "gitlab.com"), index.search("git", 10));
+        assertEquals(5, index.size());
+    }
+
+    /*
+     * Test for searching a large index.
+     */
+    @Test
+    public void testSiteSearchIndexScale() {
+        List<String> sites = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            sites.add("site" + i + ".example.com");
+        }
+        SiteSearchIndex index = SiteSearchIndex.of(sites);
+        assertEquals(100_000, index.size());
+        assertEquals(List.of("site4242.example.com", "site42420.example.com"), index.search("site4242", 2));
+        assertEquals("site99999.example.com", index.search("site99999.", 10).get(0));
+        assertEquals(10, index.search("example", 10).size());
+    }
+
+    /*
+     * Test for keeping the search index up to date with the credentials.
+     */
+    @Test
+    public void testSearchWebsites() throws Exception {
+        assertTrue(ManageCredentials.storeKey("github.com", "user1", "StrongPass1"));
+        assertTrue(ManageCredentials.prepareSearch());
+        assertEquals(List.of("github.com"), ManageCredentials.searchWebsites("git", 10));
+
+        assertTrue(ManageCredentials.storeKey("gitlab.com", "user1", "StrongPass1"));
+        assertEquals(1, ManageCredentials.storeKeys(List.of(new VaultEntry("gitea.io", "user1", "StrongPass1"),
+                                                            new VaultEntry("github.com", "user1", "StrongPass1"))));
+        assertTrue(ManageCredentials.storeKeyAsync("git.example.org", "user1", "StrongPass1").get());
+        assertEquals(List.of("gitea.io", "github.com", "gitlab.com", "git.example.org"),
+                     ManageCredentials.searchWebsites("git", 10));
+
+        assertTrue(ManageCredentials.deleteKey("github.com"));
+        assertTrue(ManageCredentials.deleteKeyAsync("gitea.io").get());
+        assertEquals(List.of("gitlab.com", "git.example.org"), ManageCredentials.searchWebsites("git", 10));
+
+        // The index is rebuilt after logout
+        ManageCredentials.clearCache();
+        assertEquals(List.of("gitlab.com"), ManageCredentials.searchWebsites("gitl", 10));
+    }
+
+    /*
+     * Test for importing a CSV export with quoted fields and duplicates.
+     */
+    @Test
+    public void testImportCsv() {
+        assertTrue(ManageCredentials.storeKey("example.com", "old", "OldPass1"));
+        String csv = "\uFEFFname,url,username,password,note\r\n" +
+                     "example.com,https://example.com,new,NewPass1,\r\n" +
+                     "\"mail, inc\",https://mail.com,\"say \"\"hi\"\"\",\"multi\nline\",\r\n" +
+                     "\r\n" +
+                     ",https://nameless.com,user,Pass1,\n" +
+                     "broken.com,,user,,\n" +
+                     "\"mail, inc\",,other,Other1,\n";
+
+        VaultImporter.ImportResult result = VaultImporter.importFrom(new StringReader(csv),
+            VaultImporter.Format.CSV, VaultImporter.DuplicatePolicy.SKIP);
+        assertNull(result.getError());
+        assertEquals(5, result.getRead());
+        assertEquals(2, result.getCreated());
+        assertEquals(0, result.getUpdated());
+        assertEquals(2, result.getDuplicates());
+        assertEquals(1, result.getInvalid());
+        assertEquals(List.of("old", "OldPass1"), ManageCredentials.getCredentials("example.com"));
+        assertEquals(List.of("say \"hi\"", "multi\nline"), ManageCredentials.getCredentials("mail, inc"));
+        assertEquals(List.of("user", "Pass1"), ManageCredentials.getCredentials("https://nameless.com"));
+
+        // Overwriting keeps the last entry of each website
+        result = VaultImporter.importFrom(new StringReader(csv), VaultImporter.Format.CSV,
+                                          VaultImporter.DuplicatePolicy.OVERWRITE);
+        assertEquals(0, result.getCreated());
+        assertEquals(4, result.getUpdated());
+        assertEquals(List.of("new", "NewPass1"), ManageCredentials.getCredentials("example.com"));
+        assertEquals(List.of("other", "Other1"), ManageCredentials.getCredentials("mail, inc"));
+
+        result = VaultImporter.importFrom(new StringReader("a,b\n1,2\n"), VaultImporter.Format.CSV,
+                                          VaultImporter.DuplicatePolicy.SKIP);
+        assertNotNull(result.getError());
+    }
+
+    /*
+     * Test for importing JSON exports.
+     */
+    @Test
+    public void testImportJson() {
+        String bitwarden = "{\"encrypted\": false, \"folders\": [{\"id\": \"1\", \"name\": \"Work\"}]," +
+                           " \"items\": [" +
+                           "{\"type\": 1, \"name\": \"github.com\", \"favorite\": true," +
+                           " \"login\": {\"uris\": [{\"uri\": \"https://github.com\"}]," +
+                           " \"username\": \"octo\", \"password\": \"Pa\\u0041ss\\\"1\", \"totp\": null}}," +
+                           "{\"type\": 2, \"name\": \"A note\", \"notes\": \"text\"}," +
+                           "{\"type\": 1, \"login\": {\"uris\": [{\"uri\": \"https://gitlab.com\"}]," +
+                           " \"username\": \"tanuki\", \"password\": \"Fox1\"}}]}";
+        VaultImporter.ImportResult result = VaultImporter.importFrom(new StringReader(bitwarden),
+            VaultImporter.Format.JSON, VaultImporter.DuplicatePolicy.SKIP);
+        assertNull(result.getError());
+        assertEquals(3, result.getRead());
+        assertEquals(2, result.getCreated());
+        assertEquals(1, result.getInvalid());
+        assertEquals(List.of("octo", "PaAss\"1"), ManageCredentials.getCredentials("github.com"));
+        assertEquals(List.of("tanuki", "Fox1"), ManageCredentials.getCredentials("https://gitlab.com"));
+
+        String array = "[{\"site\": \"example.com\", \"username\": \"user1\", \"password\": \"Pass1\"}, 42]";
+        result = VaultImporter.importFrom(new StringReader(array), VaultImporter.Format.JSON,
+                                          VaultImporter.DuplicatePolicy.SKIP);
+        assertEquals(1, result.getCreated());
+        assertEquals(1, result.getInvalid());
+
+        result = VaultImporter.importFrom(new StringReader("{\"items\": [{\"name\": \"a\""),
+                                          VaultImporter.Format.JSON, VaultImporter.DuplicatePolicy.SKIP);
+        assertNotNull(result.getError());
+
+        // Other members are skipped however they are nested, within the limit
+        String skipped = "{\"meta\": " + "[{\"a\": \"]}\\\"\", \"b\": ".repeat(30) + "null" + "}]".repeat(30) +
+                         ", \"items\": [{\"site\": \"nested.com\", \"password\": \"Pass1\"}]}";
+        result = VaultImporter.importFrom(new StringReader(skipped), VaultImporter.Format.JSON,
+                                          VaultImporter.DuplicatePolicy.SKIP);
+        assertNull(result.getError());
+        assertEquals(1, result.getCreated());
+
+        // Deeper nesting is an error rather than a stack overflow
+        for (String deep : List.of("{\"meta\": " + "[".repeat(100_000), "[" + "[".repeat(100_000))) {
+            result = VaultImporter.importFrom(new StringReader(deep), VaultImporter.Format.JSON,
+                                              VaultImporter.DuplicatePolicy.SKIP);
+            assertNotNull(result.getError());
+        }
+    }
+
+    /*
+     * Test for importing a file in several batches with progress.
+     */
+    @Test
+    public void testImportFile() throws Exception {
+        File file = File.createTempFile("export", ".txt");
+        file.deleteOnExit();
+        int count = VaultImporter.BATCH_SIZE * 2 + 10;
+        try (Writer writer = new FileWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("url,username,password\n");
+            for (int i = 0; i < count; i++) {
+                writer.write("site" + i + ".com,user" + i + ",Pass" + i + "\n");
+            }
+        }
+        assertTrue(ManageCredentials.prepareSearch());
+
+        List<Long> progress = new ArrayList<>();
+        VaultImporter.ImportResult result = VaultImporter.importFile(file.toPath(),
+            VaultImporter.DuplicatePolicy.SKIP, (done, total) -> progress.add(done * 100 / total));
+        assertNull(result.getError());
+        assertEquals(count, result.getCreated());
+        assertEquals(3, result.getBatches());
+        assertTrue(result.getEntriesPerSecond() > 0);
+        assertEquals(Long.valueOf(100), progress.get(progress.size() - 1));
+
+        List<VaultEntry> entries = ManageCredentials.getAllCredentials();
+        assertEquals(count, entries.size());
+        assertEquals("site0.com", entries.get(0).getSiteName());
+        assertEquals("Pass" + (count - 1), entries.get(count - 1).getPassword());
+        assertEquals(List.of("site1009.com"), ManageCredentials.searchWebsites("site1009", 1));
+    }
+
+    /*
+     * Test for backing up the vault and restoring it.
+     */
+    @Test
+    public void testBackupAndRestore() throws Exception {
+        List<VaultEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 3_000; i++) {
+            entries.add(new VaultEntry("site" + i + ".com", "user" + i, "StrongPassword" + i));
+        }
+        assertEquals(3_000, ManageCredentials.storeKeys(entries));
+        char[] backupPassword = "BackupPass1".toCharArray();
+
+        // The backup is larger than a chunk, so it is split into several
+        File file = File.createTempFile("vault", ".backup");
+        file.deleteOnExit();
+        assertEquals(3_000, VaultBackup.exportFile(file.toPath(), backupPassword));
+        byte[] backup = Files.readAllBytes(file.toPath());
+        assertTrue(backup.length > VaultBackup.CHUNK_SIZE * 2);
+
+        for (int i = 0; i < 3_000; i += 2) {
+            assertTrue(ManageCredentials.deleteKey("site" + i + ".com"));
+        }
+        List<Long> progress = new ArrayList<>();
+        VaultImporter.ImportResult result = VaultBackup.restoreFile(file.toPath(), backupPassword,
+            VaultImporter.DuplicatePolicy.SKIP, (done, total) -> progress.add(done * 100 / total));
+        assertNull(result.getError());
+        assertEquals(3_000, result.getRead());
+        assertEquals(1_500, result.getCreated());
+        assertEquals(1_500, result.getDuplicates());
+        assertEquals(Long.valueOf(100), progress.get(progress.size() - 1));
+        assertEquals(3_000, ManageCredentials.getAllCredentials().size());
+        assertEquals(List.of("user42", "StrongPassword42"), ManageCredentials.getCredentials("site42.com"));
+
+        // Only the right password opens the backup
+        result = VaultBackup.restore(new ByteArrayInputStream(backup), "WrongPass1".toCharArray(),
+                                     VaultImporter.DuplicatePolicy.SKIP);
+        assertEquals("Wrong backup password or the backup is corrupted.", result.getError());
+        assertEquals(0, result.getRead());
+    }
+
+    /*
+     * Test for detecting changed and truncated backups.
+     */
+    @Test
+    public void testBackupIntegrity() throws Exception {
+        char[] backupPassword = "BackupPass1".toCharArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, VaultBackup.export(out, backupPassword));
+        VaultImporter.ImportResult result = VaultBackup.restore(new ByteArrayInputStream(out.toByteArray()),
+            backupPassword, VaultImporter.DuplicatePolicy.SKIP);
+        assertNull(result.getError());
+        assertEquals(0, result.getRead());
+
+        List<VaultEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 3_000; i++) {
+            entries.add(new VaultEntry("site" + i + ".com", "user" + i, "StrongPassword" + i));
+        }
+        assertEquals(3_000, ManageCredentials.storeKeys(entries));
+        out = new ByteArrayOutputStream();
+        assertEquals(3_000, VaultBackup.export(out, backupPassword));
+        byte[] backup = out.toByteArray();
+
+        byte[] changed = backup.clone();
+        changed[changed.length / 2] ^= 1;
+        assertNotNull(VaultBackup.restore(new ByteArrayInputStream(changed), backupPassword,
+                                          VaultImporter.DuplicatePolicy.SKIP).getError());
+
+        // A backup cut short is detected
+        byte[] truncated = Arrays.copyOf(backup, VaultBackup.CHUNK_SIZE + 200);
+        result = VaultBackup.restore(new ByteArrayInputStream(truncated), backupPassword,
+                                     VaultImporter.DuplicatePolicy.SKIP);
+        assertEquals("The backup is truncated.", result.getError());
+
+        byte[] appended = Arrays.copyOf(backup, backup.length + 1);
+        assertNotNull(VaultBackup.restore(new ByteArrayInputStream(appended), backupPassword,
+                                          VaultImporter.DuplicatePolicy.SKIP).getError());
+        assertEquals("The file is not a backup.",
+                     VaultBackup.restore(new ByteArrayInputStream("name,password".getBytes()), backupPassword,
+                                         VaultImporter.DuplicatePolicy.SKIP).getError());
+    }
 }
@@ -1,15 +1,36 @@
 package fi.tuni.secprog.passwordmanager;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base32;
+import org.apache.commons.codec.binary.Hex;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -17,6 +38,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.eatthepath.otp.TimeBasedOneTimePasswordGenerator;
+
 /*
  * Test class for UserAuthentication class
  * Test for user registration, login, password strength checking, account lockout,
@@ -56,6 +79,10 @@ public class UserAuthenticationTest {
                       "site_password VARCHAR(255) NOT NULL," +
                       "FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE" +
                       ");");
+        DatabaseHelper.migrate(conn);
+
+        // Register with the legacy work factors instead of calibrating them
+        KeyDerivation.setTarget(KdfParameters.LEGACY, 12);
     }
 
     @AfterClass
@@ -106,6 +133,173 @@ public class UserAuthenticationTest {
         assertNull(UserAuthentication.checkPasswordStrenth(veryStrongPassword));
     }
 
+    /*
+     * Test for checking passwords against a local list of breached passwords,
+     * converted from text in several sorted runs.
+     */
+    @Test
+    public void testBreachCorpus() throws Exception {
+        Path directory = Files.createTempDirectory("breach");
+        Path text = directory.resolve("breached.txt");
+        Path corpusFile = directory.resolve("breached.bin");
+        Path truncated = directory.resolve("truncated.bin");
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>();
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            byte[] hash = new byte[20];
+            random.nextBytes(hash);
+            hashes.add(hash);
+            lines.add(Hex.encodeHexString(hash, false) + ":" + (i + 1));
+        }
+        lines.addAll(lines.subList(0, 500));
+        lines.add(Hex.encodeHexString(sha1.digest("Summer2024!".getBytes(StandardCharsets.UTF_8))) + ":42");
+        lines.add("");
+        lines.add("Winter2024x");
+        Collections.shuffle(lines, random);
+        Files.write(text, lines, StandardCharsets.UTF_8);
+
+        try {
+            assertEquals(20_002, BreachCorpusTool.convert(text, corpusFile, 1_000));
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                int count = 0;
+                for (Path file : files) count++;
+                assertEquals(2, count);
+            }
+            BreachCorpus corpus = BreachCorpus.open(corpusFile);
+            assertEquals(20_002, corpus.size());
+            for (byte[] hash : hashes) {
+                assertTrue(corpus.containsHash(hash));
+            }
+            assertTrue(corpus.contains("Summer2024!"));
+            assertTrue(corpus.contains("Winter2024x"));
+            assertFalse(corpus.contains("Winter2024y"));
+            for (int i = 0; i < 1_000; i++) {
+                byte[] hash = new byte[20];
+                random.nextBytes(hash);
+                assertFalse(corpus.containsHash(hash));
+            }
+
+            BreachCorpus.setDefault(corpusFile);
+            assertNotNull(UserAuthentication.checkPasswordStrenth("Summer2024!"));
+            assertNull(UserAuthentication.checkPasswordStrenth("P@ssw0rd123!"));
+
+            // A truncated list is not used; the copy is separate as the list is still mapped
+            Files.write(truncated, Arrays.copyOf(Files.readAllBytes(corpusFile), 1_000_000));
+            try {
+                BreachCorpus.open(truncated);
+                fail("A truncated list was opened");
+            } catch (IOException e) {
+                assertEquals("The breached password list is truncated or corrupted.", e.getMessage());
+            }
+        } finally {
+            BreachCorpus.setDefault(null);
+            Files.deleteIfExists(text);
+            Files.deleteIfExists(corpusFile);
+            Files.deleteIfExists(truncated);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Test for building a breached password filter and checking passwords with it.
+     */
+    @Test
+    public void testBreachFilter() throws Exception {
+        Path directory = Files.createTempDirectory("breach");
+        Path text = directory.resolve("breached.txt");
+        Path corpusFile = directory.resolve("breached.bin");
+        Path filterFile = directory.resolve("breached.bloom");
+        Path truncated = directory.resolve("truncated.bloom");
+        Random random = new Random(7);
+        List<String> lines = new ArrayList<>();
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            byte[] hash = new byte[20];
+            random.nextBytes(hash);
+            hashes.add(hash);
+            lines.add(Hex.encodeHexString(hash, false));
+        }
+        lines.add("Summer2024!");
+        Files.write(text, lines, StandardCharsets.UTF_8);
+
+        try {
+            assertEquals(10_001, BreachCorpusTool.convert(text, corpusFile, 1_000));
+            BreachFilter built = BreachCorpusTool.buildFilter(corpusFile, filterFile, 0.01, 1 << 20);
+            assertNotNull(built);
+            assertEquals(10_001, built.getEntries());
+            assertEquals(BreachFilter.HEADER_LENGTH + built.getByteSize(), Files.size(filterFile));
+
+            BreachFilter filter = BreachFilter.load(filterFile);
+            assertEquals(10_001, filter.getEntries());
+            for (byte[] hash : hashes) {
+                assertTrue(filter.mightContain(hash));
+            }
+            int falsePositives = 0;
+            for (int i = 0; i < 10_000; i++) {
+                byte[] hash = new byte[20];
+                random.nextBytes(hash);
+                if (filter.mightContain(hash)) falsePositives++;
+            }
+            assertTrue("False positives: " + falsePositives, falsePositives < 200);
+
+            // A text list gives the same filter, and a small budget caps its size
+            BreachFilter fromText = BreachCorpusTool.buildFilter(text, filterFile, 0.01, 1 << 20);
+            assertEquals(built.getByteSize(), fromText.getByteSize());
+            BreachFilter small = BreachCorpusTool.buildFilter(corpusFile, filterFile, 0.01, 4_000);
+            assertEquals(4_000, small.getByteSize());
+            assertTrue(small.getFalsePositiveRate() > 0.01);
+            for (byte[] hash : hashes) {
+                assertTrue(small.mightContain(hash));
+            }
+
+            // The filter alone takes its hits as breached, and the list confirms them
+            BreachFilter.setDefault(filterFile);
+            assertTrue(BreachCorpus.isBreached("Summer2024!"));
+            assertFalse(BreachCorpus.isBreached("P@ssw0rd123!"));
+            BreachCorpus.setDefault(corpusFile);
+            assertNotNull(UserAuthentication.checkPasswordStrenth("Summer2024!"));
+            assertNull(UserAuthentication.checkPasswordStrenth("P@ssw0rd123!"));
+
+            // A truncated filter is not used
+            Files.write(truncated, Arrays.copyOf(Files.readAllBytes(filterFile), 1_000));
+            try {
+                BreachFilter.load(truncated);
+                fail("A truncated filter was loaded");
+            } catch (IOException e) {
+                assertEquals("The breached password filter is truncated or corrupted.", e.getMessage());
+            }
+        } finally {
+            BreachFilter.setDefault(null);
+            BreachCorpus.setDefault(null);
+            Files.deleteIfExists(text);
+            Files.deleteIfExists(corpusFile);
+            Files.deleteIfExists(filterFile);
+            Files.deleteIfExists(truncated);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Test for the first login of a new user, in which the password is not checked again.
+     */
+    @Test
+    public void testRegisterAndLogin() throws Exception {
+        tearDown();
+        UserAuthentication.Registration registration =
+            UserAuthentication.registerAndLogin(username, password.toCharArray());
+        assertNotNull(registration);
+        assertNotNull(registration.getQRcode());
+        LoginSession session = registration.getSession();
+        assertTrue(session.isPasswordVerified());
+        assertTrue(session.verifyTOTP(password.toCharArray(), getCurrentTOTPCode()));
+        assertTrue(UserAuthentication.getUserId() > 0);
+        UserAuthentication.logoutUser();
+
+        assertNull(UserAuthentication.registerAndLogin(username, password.toCharArray()));
+    }
+
     /**
      * Test for registering a new user with an existing username.
      */
@@ -153,12 +347,14 @@ public class UserAuthenticationTest {
         conn = DatabaseHelper.getConnection();
         Statement stmt = conn.createStatement();
         assertTrue(stmt.execute("SELECT * FROM users;"));
+        stmt.close();
 
         UserAuthentication.authenticateUser(maliciousUsername1, password.toCharArray());
         // Check users table still exists
         conn = DatabaseHelper.getConnection();
         stmt = conn.createStatement();
         assertTrue(stmt.execute("SELECT * FROM users;"));
+        stmt.close();
         UserAuthentication.logoutUser();
 
         String maliciousUsername2 = "' OR '1'='1";
@@ -166,4 +362,444 @@ public class UserAuthenticationTest {
         // Check if the user was logged in
         assertTrue(UserAuthentication.getUserId() == 0);
     }
+
+    /**
+     * Test for the login session.
+     * The password and TOTP steps count failed attempts and a successful login resets them.
+     */
+    @Test
+    public void testLoginSession() throws Exception {
+        assertNull(LoginSession.start("noSuchUser"));
+
+        // The TOTP step requires a checked password
+        LoginSession session = LoginSession.start(username);
+        assertNotNull(session);
+        assertFalse(session.verifyTOTP(password.toCharArray(), "000000"));
+
+        assertFalse(session.checkPassword("Password456".toCharArray()));
+        assertEquals(1, getFailedAttempts());
+        assertTrue(session.checkPassword(password.toCharArray()));
+        assertFalse(session.verifyTOTP(password.toCharArray(), "000000"));
+        assertEquals(2, getFailedAttempts());
+
+        // Compute the current code from the stored secret
+        String code = getCurrentTOTPCode();
+        session = LoginSession.start(username);
+        assertTrue(session.checkPassword(password.toCharArray()));
+        assertTrue(session.verifyTOTP(password.toCharArray(), code));
+        assertEquals(0, getFailedAttempts());
+        assertTrue(UserAuthentication.getUserId() != 0);
+        UserAuthentication.logoutUser();
+    }
+
+    /**
+     * Test for the transparent upgrade of the key derivation after a login.
+     * The data keys are rewrapped with the new key in the background.
+     */
+    @Test
+    public void testKdfUpgrade() throws Exception {
+        String code = getCurrentTOTPCode();
+        LoginSession session = LoginSession.start(username);
+        assertTrue(session.checkPassword(password.toCharArray()));
+        assertTrue(session.verifyTOTP(password.toCharArray(), code));
+        assertTrue(ManageCredentials.storeKey("example.com", "exampleUser", "examplePass1"));
+        UserAuthentication.logoutUser();
+
+        KdfParameters target = new KdfParameters("PBKDF2WithHmacSHA512", 120_000);
+        KeyDerivation.setTarget(target, 12);
+        try {
+            code = getCurrentTOTPCode();
+            session = LoginSession.start(username);
+            assertTrue(session.checkPassword(password.toCharArray()));
+            assertTrue(session.verifyTOTP(password.toCharArray(), code));
+            assertEquals(List.of("exampleUser", "examplePass1"), ManageCredentials.getCredentials("example.com"));
+            UserAuthentication.logoutUser();
+
+            try (Connection conn = DatabaseHelper.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(
+                     "SELECT kdf_algorithm, kdf_iterations FROM users WHERE username = ?")) {
+                pstmt.setString(1, username);
+                ResultSet rs = pstmt.executeQuery();
+                assertEquals(target.getAlgorithm(), rs.getString(1));
+                assertEquals(target.getIterations(), rs.getInt(2));
+            }
+
+            // The next login uses the upgraded key
+            login(password);
+            assertEquals(List.of("exampleUser", "examplePass1"), ManageCredentials.getCredentials("example.com"));
+            UserAuthentication.logoutUser();
+        } finally {
+            KeyDerivation.setTarget(KdfParameters.LEGACY, 12);
+        }
+    }
+
+    /*
+     * Test for changing the master password, which rewraps the data key without
+     * re-encrypting the vault.
+     */
+    @Test
+    public void testMasterPasswordChange() throws Exception {
+        String newPassword = "NewPassword456";
+        login(password);
+        assertEquals(1_200, ManageCredentials.storeKeys(createEntries(1_200)));
+        byte[] wrappedKey = getWrappedKey(1);
+        Object storedPassword = getStoredPassword("site7.com");
+        assertFalse(MasterPasswordChange.change("WrongPassword1".toCharArray(), newPassword.toCharArray()));
+
+        assertTrue(MasterPasswordChange.change(password.toCharArray(), newPassword.toCharArray()));
+        assertFalse(Arrays.equals(wrappedKey, getWrappedKey(1)));
+        assertEquals(storedPassword, getStoredPassword("site7.com"));
+        assertEquals(List.of("user7", "StrongPass7"), ManageCredentials.getCredentials("site7.com"));
+        UserAuthentication.logoutUser();
+
+        // Only the new password opens the vault
+        assertFalse(LoginSession.start(username).checkPassword(password.toCharArray()));
+        login(newPassword);
+        assertEquals(1_200, ManageCredentials.getAllCredentials().size());
+        assertEquals(List.of("user1199", "StrongPass1199"), ManageCredentials.getCredentials("site1199.com"));
+        // The index key is rewrapped with the data keys, so the password index still matches
+        assertEquals(List.of("site7.com"), ManageCredentials.getWebsitesWithPassword("StrongPass7"));
+        UserAuthentication.logoutUser();
+    }
+
+    /*
+     * Test for taking a new data key into use, with the entries re-encrypted in the background.
+     */
+    @Test
+    public void testRotateDataKey() throws Exception {
+        login(password);
+        assertEquals(1_200, ManageCredentials.storeKeys(createEntries(1_200)));
+        assertFalse(DataKeys.rotate("WrongPassword1".toCharArray()));
+
+        // A change queued with the old key is written with it before the new key is used
+        CompletableFuture<Boolean> queued = ManageCredentials.storeKeyAsync("queued.com", "queuedUser",
+                                                                            "StrongPassQueued");
+        assertTrue(DataKeys.rotate(password.toCharArray()));
+        assertTrue(queued.isDone());
+        assertEquals(2, AESKeyHolder.getKeyVersion());
+
+        // Written with the new key while the older entries are still re-encrypted
+        assertTrue(ManageCredentials.storeKey("new.com", "newUser", "StrongPassNew"));
+        assertEquals(List.of("user0", "StrongPass0"), ManageCredentials.getCredentials("site0.com"));
+        assertEquals(1_201, DataKeys.awaitMigration());
+        assertEquals(0, countEntries("key_version <> 2"));
+        assertEquals(null, getWrappedKey(1));
+        UserAuthentication.logoutUser();
+
+        login(password);
+        assertEquals(List.of("user1199", "StrongPass1199"), ManageCredentials.getCredentials("site1199.com"));
+        assertEquals(List.of("newUser", "StrongPassNew"), ManageCredentials.getCredentials("new.com"));
+        assertEquals(List.of("queuedUser", "StrongPassQueued"), ManageCredentials.getCredentials("queued.com"));
+        UserAuthentication.logoutUser();
+    }
+
+    /*
+     * Test that a row records the version of the key that encrypted it, also when
+     * it is written after a new data key has been taken into use, so that the
+     * migration re-encrypts it.
+     */
+    @Test
+    public void testKeyVersionOfLateWrite() throws Exception {
+        login(password);
+        AESKeyHolder.DataKey oldKey = AESKeyHolder.getDataKey();
+        Object lateUsername = ManageCredentials.encryptField("lateUser", oldKey);
+        Object latePassword = ManageCredentials.encryptField("StrongPassLate", oldKey);
+        assertTrue(DataKeys.rotate(password.toCharArray()));
+        assertEquals(0, DataKeys.awaitMigration());
+
+        CredentialWriteQueue queue = new CredentialWriteQueue(0);
+        assertTrue(queue.store(getUserId(), "late.com", lateUsername, latePassword, oldKey.getVersion()).get());
+        assertEquals(1, countEntries("key_version = " + oldKey.getVersion()));
+
+        // Converting the ciphertext to BLOBs keeps the version
+        DatabaseHelper.migrateCiphertextToBlob();
+        assertEquals(1, countEntries("key_version = " + oldKey.getVersion()));
+        assertEquals(1, DataKeys.migrateEntries(getUserId()));
+        assertEquals(0, countEntries("key_version <> " + AESKeyHolder.getKeyVersion()));
+        UserAuthentication.logoutUser();
+
+        login(password);
+        assertEquals(List.of("lateUser", "StrongPassLate"), ManageCredentials.getCredentials("late.com"));
+        UserAuthentication.logoutUser();
+    }
+
+    /*
+     * Test for a user from before the data keys: the first login creates a data key and
+     * the entries are re-encrypted in the background, also across a password change
+     * and an interrupted migration.
+     */
+    @Test
+    public void testLegacyUserMigration() throws Exception {
+        String newPassword = "NewPassword456";
+        try (Connection conn = DatabaseHelper.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM data_keys WHERE user_id = " + getUserId() + ";");
+            stmt.execute("UPDATE users SET data_key_version = 0 WHERE id = " + getUserId() + ";");
+        }
+        // The TOTP secret and the entries are encrypted with the password key itself
+        String totpSecret = TOTPUtil.generateSecretKey();
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "UPDATE users SET totp_secret = ? WHERE username = ?")) {
+            AESKeyHolder.storeKey(getPasswordKey(password));
+            pstmt.setString(1, AESUtil.encrypt(totpSecret));
+            pstmt.setString(2, username);
+            pstmt.executeUpdate();
+            UserAuthentication.setUserId(getUserId());
+            assertEquals(1_200, ManageCredentials.storeKeys(createEntries(1_200)));
+            UserAuthentication.logoutUser();
+        }
+
+        // Fail the migration after the first chunk has been committed
+        try (Connection conn = DatabaseHelper.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TRIGGER interrupt_migration BEFORE UPDATE OF site_password ON credentials " +
+                         "WHEN NEW.id > (SELECT MIN(id) FROM credentials) + 600 " +
+                         "BEGIN SELECT RAISE(ABORT, 'interrupted'); END;");
+        }
+        try {
+            login(password);
+            assertEquals(1, AESKeyHolder.getKeyVersion());
+            assertEquals(-1, DataKeys.awaitMigration());
+            assertEquals(700, countEntries("key_version = 0"));
+            assertEquals(List.of("user0", "StrongPass0"), ManageCredentials.getCredentials("site0.com"));
+            assertEquals(List.of("user1199", "StrongPass1199"), ManageCredentials.getCredentials("site1199.com"));
+
+            // The password key of the rest is kept wrapped with the new password
+            assertTrue(MasterPasswordChange.change(password.toCharArray(), newPassword.toCharArray()));
+            assertNotNull(getWrappedKey(0));
+            UserAuthentication.logoutUser();
+        } finally {
+            try (Connection conn = DatabaseHelper.getConnection();
+                 Statement stmt = conn.createStatement()) {
+                stmt.execute("DROP TRIGGER interrupt_migration;");
+            }
+        }
+
+        login(newPassword);
+        assertEquals(700, DataKeys.awaitMigration());
+        assertEquals(0, countEntries("key_version <> 1"));
+        assertEquals(null, getWrappedKey(0));
+        assertEquals(1_200, ManageCredentials.getAllCredentials().size());
+        assertEquals(List.of("user1199", "StrongPass1199"), ManageCredentials.getCredentials("site1199.com"));
+        UserAuthentication.logoutUser();
+    }
+
+    /*
+     * Test that the duplicates moved aside by the migrations keep their data key until
+     * they are re-encrypted too, also across a password change.
+     */
+    @Test
+    public void testLegacyDuplicatesMigration() throws Exception {
+        String newPassword = "NewPassword456";
+        try (Connection conn = DatabaseHelper.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM data_keys WHERE user_id = " + getUserId() + ";");
+            stmt.execute("UPDATE users SET data_key_version = 0 WHERE id = " + getUserId() + ";");
+        }
+        String totpSecret = TOTPUtil.generateSecretKey();
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "UPDATE users SET totp_secret = ? WHERE username = ?");
+             PreparedStatement duplicate = conn.prepareStatement(
+                 "INSERT INTO credentials_duplicates (user_id, site_name, site_username, site_password) " +
+                 "VALUES (?, 'site0.com', ?, ?)")) {
+            AESKeyHolder.storeKey(getPasswordKey(password));
+            pstmt.setString(1, AESUtil.encrypt(totpSecret));
+            pstmt.setString(2, username);
+            pstmt.executeUpdate();
+            duplicate.setInt(1, getUserId());
+            duplicate.setBytes(2, AESUtil.encrypt("olduser".getBytes(StandardCharsets.UTF_8)));
+            duplicate.setBytes(3, AESUtil.encrypt("OldPass0".getBytes(StandardCharsets.UTF_8)));
+            duplicate.executeUpdate();
+            UserAuthentication.setUserId(getUserId());
+            assertEquals(3, ManageCredentials.storeKeys(createEntries(3)));
+            UserAuthentication.logoutUser();
+        }
+
+        // Fail the migration once the credentials are done
+        try (Connection conn = DatabaseHelper.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TRIGGER interrupt_migration BEFORE UPDATE ON credentials_duplicates " +
+                         "BEGIN SELECT RAISE(ABORT, 'interrupted'); END;");
+        }
+        try {
+            login(password);
+            assertEquals(-1, DataKeys.awaitMigration());
+            assertEquals(0, countEntries("key_version <> 1"));
+
+            // The password key of the duplicate is kept wrapped with the new password
+            assertTrue(MasterPasswordChange.change(password.toCharArray(), newPassword.toCharArray()));
+            assertNotNull(getWrappedKey(0));
+            UserAuthentication.logoutUser();
+        } finally {
+            try (Connection conn = DatabaseHelper.getConnection();
+                 Statement stmt = conn.createStatement()) {
+                stmt.execute("DROP TRIGGER interrupt_migration;");
+            }
+        }
+
+        login(newPassword);
+        assertEquals(1, DataKeys.awaitMigration());
+        assertEquals(null, getWrappedKey(0));
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT key_version, site_password FROM credentials_duplicates WHERE user_id = ?")) {
+            pstmt.setInt(1, getUserId());
+            ResultSet rs = pstmt.executeQuery();
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt("key_version"));
+            assertEquals("OldPass0", new String(AESUtil.decrypt(rs.getBytes("site_password")),
+                                                StandardCharsets.UTF_8));
+            rs.close();
+        } finally {
+            UserAuthentication.logoutUser();
+            try (Connection conn = DatabaseHelper.getConnection();
+                 Statement stmt = conn.createStatement()) {
+                stmt.execute("DELETE FROM credentials_duplicates WHERE user_id = " + getUserId() + ";");
+            }
+        }
+    }
+
+    /*
+     * Test that rows labelled with a later data key than the one that encrypted them,
+     * as the key version triggers could do, are relabelled after the next login, and
+     * then decrypted with their own key and re-encrypted.
+     */
+    @Test
+    public void testMislabelledKeyVersions() throws Exception {
+        login(password);
+        assertEquals(3, ManageCredentials.storeKeys(createEntries(3)));
+        UserAuthentication.logoutUser();
+
+        // Switch to data key 2 the way the triggers saw it: every row labelled with it
+        SecretKeySpec passwordKey = getPasswordKey(password);
+        SecretKeySpec dataKey = DataKeys.generateKey();
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement select = conn.prepareStatement("SELECT totp_secret FROM users WHERE id = ?");
+             PreparedStatement insert = conn.prepareStatement(
+                 "INSERT INTO data_keys (user_id, version, wrapped_key) VALUES (?, 2, ?)");
+             PreparedStatement update = conn.prepareStatement(
+                 "UPDATE users SET data_key_version = 2, totp_secret = ?, key_versions_checked = 0 WHERE id = ?");
+             PreparedStatement label = conn.prepareStatement(
+                 "UPDATE credentials SET key_version = 2 WHERE user_id = ?")) {
+            assertTrue(DataKeys.load(getUserId(), passwordKey));
+            select.setInt(1, getUserId());
+            ResultSet rs = select.executeQuery();
+            String totpSecret = AESUtil.decrypt(rs.getString(1));
+            rs.close();
+            AESKeyHolder.storeKey(dataKey);
+            insert.setInt(1, getUserId());
+            insert.setBytes(2, DataKeys.wrap(passwordKey, dataKey));
+            insert.executeUpdate();
+            update.setString(1, AESUtil.encrypt(totpSecret));
+            update.setInt(2, getUserId());
+            update.executeUpdate();
+            label.setInt(1, getUserId());
+            label.executeUpdate();
+            AESKeyHolder.clearKey();
+        }
+
+        login(password);
+        assertEquals(3, DataKeys.awaitMigration());
+        assertEquals(0, countEntries("key_version <> 2"));
+        assertEquals(null, getWrappedKey(1));
+        assertEquals(List.of("user2", "StrongPass2"), ManageCredentials.getCredentials("site2.com"));
+        assertEquals(0, DataKeys.checkKeyVersions(getUserId()));
+        UserAuthentication.logoutUser();
+    }
+
+    private int getUserId() throws SQLException {
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement("SELECT id FROM users WHERE username = ?")) {
+            pstmt.setString(1, username);
+            return pstmt.executeQuery().getInt(1);
+        }
+    }
+
+    private SecretKeySpec getPasswordKey(String password) throws Exception {
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT salt, kdf_algorithm, kdf_iterations FROM users WHERE username = ?")) {
+            pstmt.setString(1, username);
+            ResultSet rs = pstmt.executeQuery();
+            KdfParameters parameters = new KdfParameters(rs.getString("kdf_algorithm"), rs.getInt("kdf_iterations"));
+            return AESUtil.deriveKey(password.toCharArray(), rs.getString("salt"), parameters);
+        }
+    }
+
+    private byte[] getWrappedKey(int version) throws SQLException {
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT wrapped_key FROM data_keys WHERE user_id = ? AND version = ?")) {
+            pstmt.setInt(1, getUserId());
+            pstmt.setInt(2, version);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? rs.getBytes(1) : null;
+        }
+    }
+
+    private Object getStoredPassword(String site) throws SQLException {
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT site_password FROM credentials WHERE site_name = ?")) {
+            pstmt.setString(1, site);
+            return pstmt.executeQuery().getObject(1);
+        }
+    }
+
+    private int countEntries(String condition) throws SQLException {
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT COUNT(*) FROM credentials WHERE user_id = ? AND " + condition)) {
+            pstmt.setInt(1, getUserId());
+            return pstmt.executeQuery().getInt(1);
+        }
+    }
+
+    private void login(String password) throws Exception {
+        LoginSession session = LoginSession.start(username);
+        assertTrue(session.checkPassword(password.toCharArray()));
+        // The code is generated last, so that it does not expire during the password check
+        String code = getCurrentTOTPCode(password);
+        assertTrue(session.verifyTOTP(password.toCharArray(), code));
+    }
+
+    private static List<VaultEntry> createEntries(int count) {
+        List<VaultEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new VaultEntry("site" + i + ".com", "user" + i, "StrongPass" + i));
+        }
+        return entries;
+    }
+
+    private int getFailedAttempts() throws SQLException {
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT failed_attempts FROM users WHERE username = ?")) {
+            pstmt.setString(1, username);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.getInt(1);
+        }
+    }
+
+    private String getCurrentTOTPCode() throws Exception {
+        return getCurrentTOTPCode(password);
+    }
+
+    private String getCurrentTOTPCode(String password) throws Exception {
+        try (Connection conn = DatabaseHelper.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT totp_secret FROM users WHERE username = ?")) {
+            pstmt.setString(1, username);
+            ResultSet rs = pstmt.executeQuery();
+            assertTrue(DataKeys.load(getUserId(), getPasswordKey(password)));
+            String secret = AESUtil.decrypt(rs.getString("totp_secret"));
+            AESKeyHolder.clearKey();
+
+            TimeBasedOneTimePasswordGenerator totp = new TimeBasedOneTimePasswordGenerator();
+            SecretKeySpec key = new SecretKeySpec(new Base32().decode(secret), totp.getAlgorithm());
+            return String.format("%06d", totp.generateOneTimePassword(key, Instant.now()));
+        }
+    }
 }